@@ -0,0 +1,84 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class CompressionQueryTest {
+  @Test
+  public void doLargeResponseTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13"))
+            .header("Accept-Encoding", "gzip")
+            .build();
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+    assertEquals(200, response.statusCode());
+    assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(""));
+
+    // HttpClient doesn't decompress, so the body must be valid gzip of the usual JSON
+    try (JsonReader reader =
+        Json.createReader(
+            new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(response.body())),
+                StandardCharsets.UTF_8))) {
+      JsonObject json = reader.readObject();
+      assertEquals(32990, json.getInt("returnCount"));
+    }
+  }
+
+  @Test
+  public void doSmallResponseTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:8080/myquery/point?m=docker&c=channel1&t=2019-08-13"))
+            .header("Accept-Encoding", "gzip")
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    // Smaller than COMPRESSION_MIN_BYTES, so sent as-is
+    assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+
+    try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+      JsonObject json = reader.readObject();
+      assertTrue(json.containsKey("data"));
+    }
+  }
+
+  @Test
+  public void doNotAcceptedTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13"))
+            .header("Accept-Encoding", "gzip;q=0")
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+  }
+}
@@ -1,6 +1,7 @@
 package org.jlab.myquery;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import jakarta.json.Json;
 import jakarta.json.JsonObject;
@@ -11,6 +12,8 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.junit.Test;
 
 public class IntervalQueryTest {
@@ -153,4 +156,166 @@ public class IntervalQueryTest {
       assertEquals(23, count);
     }
   }
+
+  @Test
+  public void doColumnsTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13&l=100000&o=columns"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+
+    JsonObject json;
+    try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+      json = reader.readObject();
+    }
+
+    int count = json.getInt("returnCount");
+    assertEquals(32990, count);
+
+    JsonObject data = json.getJsonObject("data");
+    assertEquals(count, data.getJsonArray("d").size());
+    assertEquals(count, data.getJsonArray("v").size());
+    assertEquals(count, data.getJsonArray("t").size());
+    assertEquals("2019-08-12T00:00:00", data.getJsonArray("d").getString(0));
+    assertEquals("95.1802", data.getJsonArray("v").getJsonNumber(0).toString());
+    assertEquals("ORIGIN_OF_CHANNELS_HISTORY", data.getJsonArray("t").getString(0));
+  }
+
+  @Test
+  public void doColumnsWithoutLimitTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13&o=columns"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    // Columns are buffered, so the events must be bounded
+    assertEquals(400, response.statusCode());
+  }
+
+  @Test
+  public void doArrowTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13"))
+            .header("Accept", "application/vnd.apache.arrow.stream")
+            .build();
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+    assertEquals(200, response.statusCode());
+    assertEquals(
+        "application/vnd.apache.arrow.stream",
+        response.headers().firstValue("Content-Type").orElse("").split(";")[0]);
+
+    byte[] body = response.body();
+    // Schema message continuation marker, and the end-of-stream marker
+    assertEquals(-1, ByteBuffer.wrap(body, 0, 4).getInt());
+    assertEquals(-1, ByteBuffer.wrap(body, body.length - 8, 4).getInt());
+    assertEquals(0, ByteBuffer.wrap(body, body.length - 4, 4).getInt());
+  }
+
+  @Test
+  public void doCborTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13"))
+            .header("Accept", "application/cbor")
+            .build();
+    HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+    assertEquals(200, response.statusCode());
+    assertEquals(
+        "application/cbor", response.headers().firstValue("Content-Type").orElse("").split(";")[0]);
+    // Chosen by the Accept header, so caches must key on it
+    assertTrue(
+        response.headers().allValues("Vary").stream()
+            .flatMap(vary -> Arrays.stream(vary.split(",")))
+            .anyMatch(name -> name.trim().equalsIgnoreCase("Accept")));
+
+    byte[] body = response.body();
+    // Indefinite length map, ended by a break
+    assertEquals((byte) 0xBF, body[0]);
+    assertEquals((byte) 0xFF, body[body.length - 1]);
+  }
+
+  @Test
+  public void doNdjsonTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13&format=ndjson"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    assertEquals(
+        "application/x-ndjson",
+        response.headers().firstValue("Content-Type").orElse("").split(";")[0]);
+
+    String[] lines = response.body().split("\n");
+    // Header, events, and returnCount
+    assertEquals(32990 + 2, lines.length);
+
+    JsonObject header;
+    try (JsonReader reader = Json.createReader(new StringReader(lines[0]))) {
+      header = reader.readObject();
+    }
+    assertEquals("DBR_DOUBLE", header.getString("datatype"));
+
+    JsonObject first;
+    try (JsonReader reader = Json.createReader(new StringReader(lines[1]))) {
+      first = reader.readObject();
+    }
+    assertEquals("2019-08-12T00:00:00", first.getString("d"));
+
+    JsonObject last;
+    try (JsonReader reader = Json.createReader(new StringReader(lines[lines.length - 1]))) {
+      last = reader.readObject();
+    }
+    assertEquals(32990, last.getInt("returnCount"));
+  }
+
+  @Test
+  public void doTimingTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/interval?m=docker&c=channel1&b=2019-08-12&e=2019-08-13&timing"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+    assertTrue(
+        response.headers().firstValue("Server-Timing").orElse("").contains("metadata;dur="));
+
+    try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+      JsonObject json = reader.readObject();
+
+      assertEquals(32990, json.getInt("returnCount"));
+
+      JsonObject timing = json.getJsonObject("timing");
+      assertTrue(timing.containsKey("open"));
+      assertTrue(timing.containsKey("fetch"));
+      assertTrue(timing.containsKey("serialize"));
+    }
+  }
 }
@@ -0,0 +1,41 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import org.junit.Test;
+
+public class MetricsQueryTest {
+  @Test
+  public void countsRequests() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest point =
+        HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:8080/myquery/point?m=docker&c=channel1&t=2019-08-13"))
+            .build();
+    client.send(point, HttpResponse.BodyHandlers.ofString());
+
+    HttpRequest request =
+        HttpRequest.newBuilder().uri(URI.create("http://localhost:8080/myquery/metrics")).build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    // System.out.println(response.body());
+
+    assertEquals(200, response.statusCode());
+    assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+    assertTrue(
+        response
+            .body()
+            .contains("myquery_requests_total{controller=\"PointController\",status=\"2xx\"}"));
+    assertTrue(
+        response
+            .body()
+            .contains("myquery_request_duration_seconds_bucket{controller=\"PointController\""));
+    assertTrue(response.body().contains("myquery_pool_wait_seconds_count{deployment=\"docker\"}"));
+  }
+}
@@ -1180,4 +1180,30 @@ public class MySamplerQueryTest {
       assertEquals(200, response.statusCode());
     }
   }
+
+  @Test
+  public void compactTest() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(
+                URI.create(
+                    "http://localhost:8080/myquery/mysampler?c=channel1&b=2019-08-12+23%3A59%3A00&n=5&s=15000&m=docker&o=compact"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(200, response.statusCode());
+
+    JsonObject data;
+    try (JsonReader reader = Json.createReader(new StringReader(response.body()))) {
+      JsonObject channel = reader.readObject().getJsonObject("channels").getJsonObject("channel1");
+      data = channel.getJsonObject("data");
+    }
+
+    // The fixed step replaces the timestamps
+    assertEquals(15000, data.getInt("step"));
+    assertEquals(false, data.containsKey("d"));
+    assertEquals(5, data.getJsonArray("v").size());
+    assertEquals("94.5501", data.getJsonArray("v").getJsonNumber(0).toString());
+  }
 }
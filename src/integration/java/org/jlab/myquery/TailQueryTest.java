@@ -0,0 +1,73 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class TailQueryTest {
+  @Test
+  public void priorPoint() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:8080/myquery/tail?m=docker&c=channel1"))
+            .build();
+    HttpResponse<InputStream> response =
+        client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+    assertEquals(200, response.statusCode());
+    assertTrue(
+        response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+      assertEquals("event: point", reader.readLine());
+
+      String data = reader.readLine();
+
+      // System.out.println(data);
+
+      assertTrue(data.startsWith("data: {\"channel\":\"channel1\",\"datatype\":\"DBR_DOUBLE\""));
+    }
+  }
+
+  @Test
+  public void unknownChannel() throws IOException, InterruptedException {
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:8080/myquery/tail?m=docker&c=doesnotexist"))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(400, response.statusCode());
+  }
+
+  @Test
+  public void tooManyChannels() throws IOException, InterruptedException {
+    StringBuilder c = new StringBuilder("channel1");
+    for (int i = 0; i < TailController.MAX_CHANNELS; i++) {
+      c.append(",channel").append(i + 100);
+    }
+
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request =
+        HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:8080/myquery/tail?m=docker&c=" + c))
+            .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+
+    assertEquals(400, response.statusCode());
+    assertTrue(response.body().contains("Too many channels"));
+  }
+}
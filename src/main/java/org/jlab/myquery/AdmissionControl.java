@@ -0,0 +1,392 @@
+package org.jlab.myquery;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control, so one client's expensive queries can't take every database connection.
+ *
+ * <p>Each client (by remote address, or by a header set by a trusted reverse proxy) may have at
+ * most ADMISSION_CLIENT_CONCURRENCY query requests in progress. Once a request has estimated its
+ * cost in events to read (from its queries and window lengths, without querying), a request costing
+ * at least ADMISSION_EXPENSIVE_EVENTS must also take one of the ADMISSION_EXPENSIVE_SLOTS of its
+ * deployment, waiting up to ADMISSION_QUEUE_MILLIS for one, and a client may only run
+ * ADMISSION_CLIENT_EXPENSIVE of them at once. Keeping the expensive slots below the size of the
+ * deployment's connection pool reserves connections for cheap requests such as /point, which is
+ * exempt. A /tail stays open for a long time without querying, so instead of counting as a request
+ * in progress it counts against the client's ADMISSION_CLIENT_TAILS. A request which isn't admitted
+ * is answered with 429 Too Many Requests and a Retry-After header.
+ *
+ * @author agent
+ */
+public final class AdmissionControl {
+
+  /** Max query requests of one client in progress at once (0 for no limit) */
+  public static final int CLIENT_CONCURRENCY =
+      ConfigUtil.getEnvInt("ADMISSION_CLIENT_CONCURRENCY", 8);
+
+  /** Estimated events at which a request is expensive */
+  public static final long EXPENSIVE_EVENTS =
+      ConfigUtil.getEnvLong("ADMISSION_EXPENSIVE_EVENTS", 1_000_000);
+
+  /** Max expensive requests of one deployment in progress at once (0 for no limit) */
+  public static final int EXPENSIVE_SLOTS = ConfigUtil.getEnvInt("ADMISSION_EXPENSIVE_SLOTS", 2);
+
+  /** Max expensive requests of one client in progress at once (0 for no limit) */
+  public static final int CLIENT_EXPENSIVE = ConfigUtil.getEnvInt("ADMISSION_CLIENT_EXPENSIVE", 1);
+
+  /** Max /tail responses of one client open at once (0 for no limit) */
+  public static final int CLIENT_TAILS = ConfigUtil.getEnvInt("ADMISSION_CLIENT_TAILS", 4);
+
+  /** Max milliseconds an expensive request waits for a slot */
+  public static final long QUEUE_MILLIS = ConfigUtil.getEnvLong("ADMISSION_QUEUE_MILLIS", 10000);
+
+  /** The Retry-After seconds of a rejected request */
+  public static final long RETRY_AFTER_SECONDS =
+      ConfigUtil.getEnvLong("ADMISSION_RETRY_AFTER_SECONDS", 10);
+
+  /** The events per hour of a channel assumed when estimating the cost of a window */
+  public static final long EVENTS_PER_HOUR =
+      ConfigUtil.getEnvLong("ADMISSION_EVENTS_PER_HOUR", 3600);
+
+  /** The header identifying the client, such as X-Forwarded-For, or null for the remote address */
+  public static final String CLIENT_HEADER = System.getenv("ADMISSION_CLIENT_HEADER");
+
+  /** The trusted proxies appending to the client header, so the entry counted from the right */
+  public static final int CLIENT_HEADER_HOPS = ConfigUtil.getEnvInt("ADMISSION_CLIENT_HOPS", 1);
+
+  /** The events each query (such as a prior point lookup) is charged as */
+  public static final long QUERY_EVENTS = 1000;
+
+  private static final String TICKET_ATTRIBUTE = AdmissionControl.class.getName() + ".ticket";
+
+  private static final ConcurrentHashMap<String, Semaphore> EXPENSIVE = new ConcurrentHashMap<>();
+
+  private static final ConcurrentHashMap<String, Usage> CLIENTS = new ConcurrentHashMap<>();
+
+  private static final LongAdder ADMITTED = new LongAdder();
+  private static final LongAdder ADMITTED_EXPENSIVE = new LongAdder();
+  private static final LongAdder REJECTED_CLIENT = new LongAdder();
+  private static final LongAdder REJECTED_EXPENSIVE = new LongAdder();
+  private static final LongAdder QUEUED_NANOS = new LongAdder();
+
+  private AdmissionControl() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Admit a request for its client, to be closed when the request is done.
+   *
+   * @param request The request
+   * @param deployment The deployment the request queries
+   * @return The ticket
+   * @throws RejectedException If the client has too many requests in progress
+   */
+  public static Ticket enter(HttpServletRequest request, String deployment)
+      throws RejectedException {
+    return enter(request, deployment, false);
+  }
+
+  /**
+   * Admit a /tail for its client, to be closed when the tail ends.
+   *
+   * @param request The request
+   * @param deployment The deployment the tail watches
+   * @return The ticket
+   * @throws RejectedException If the client has too many tails open
+   */
+  public static Ticket enterTail(HttpServletRequest request, String deployment)
+      throws RejectedException {
+    return enter(request, deployment, true);
+  }
+
+  private static Ticket enter(HttpServletRequest request, String deployment, boolean tail)
+      throws RejectedException {
+    String client = getClient(request);
+    // Decided inside the compute, as another request of the client may change the usage after it
+    boolean[] admitted = new boolean[1];
+    CLIENTS.compute(
+        client,
+        (key, existing) -> {
+          Usage u = existing == null ? new Usage() : existing;
+          if (tail) {
+            admitted[0] = CLIENT_TAILS <= 0 || u.tails < CLIENT_TAILS;
+            if (admitted[0]) {
+              u.tails++;
+            }
+          } else {
+            admitted[0] = CLIENT_CONCURRENCY <= 0 || u.requests < CLIENT_CONCURRENCY;
+            if (admitted[0]) {
+              u.requests++;
+            }
+          }
+          return u;
+        });
+
+    if (!admitted[0]) {
+      REJECTED_CLIENT.increment();
+      throw new RejectedException(
+          tail
+              ? "Too many tails open from client: " + CLIENT_TAILS + " allowed"
+              : "Too many requests in progress from client: " + CLIENT_CONCURRENCY + " allowed");
+    }
+
+    ADMITTED.increment();
+
+    Ticket ticket = new Ticket(client, deployment, tail);
+    request.setAttribute(TICKET_ATTRIBUTE, ticket);
+    return ticket;
+  }
+
+  /**
+   * Admit the estimated cost of a request, waiting for an expensive slot if need be. The slot is
+   * released when the request's ticket is closed. Has no effect on a request without a ticket.
+   *
+   * @param request The request
+   * @param events The estimated events the request will read
+   * @throws RejectedException If the request is expensive and not admitted
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public static void admitCost(HttpServletRequest request, long events)
+      throws RejectedException, InterruptedException {
+    Ticket ticket = (Ticket) request.getAttribute(TICKET_ATTRIBUTE);
+
+    if (ticket == null || ticket.tail || ticket.expensive || events < EXPENSIVE_EVENTS) {
+      return;
+    }
+
+    boolean[] admitted = new boolean[1];
+    CLIENTS.computeIfPresent(
+        ticket.client,
+        (key, u) -> {
+          admitted[0] = CLIENT_EXPENSIVE <= 0 || u.expensive < CLIENT_EXPENSIVE;
+          if (admitted[0]) {
+            u.expensive++;
+          }
+          return u;
+        });
+
+    if (!admitted[0]) {
+      REJECTED_EXPENSIVE.increment();
+      throw new RejectedException(
+          "Too many expensive requests in progress from client: " + CLIENT_EXPENSIVE + " allowed");
+    }
+
+    ticket.expensive = true;
+
+    if (EXPENSIVE_SLOTS > 0) {
+      // Only created once the controller has found the deployment, so its name is valid
+      Semaphore slots =
+          EXPENSIVE.computeIfAbsent(ticket.deployment, d -> new Semaphore(EXPENSIVE_SLOTS, true));
+
+      long start = System.nanoTime();
+      boolean acquired = slots.tryAcquire(QUEUE_MILLIS, TimeUnit.MILLISECONDS);
+      QUEUED_NANOS.add(System.nanoTime() - start);
+
+      if (!acquired) {
+        REJECTED_EXPENSIVE.increment();
+        throw new RejectedException(
+            "Deployment '"
+                + ticket.deployment
+                + "' busy with expensive requests; estimated events: "
+                + events);
+      }
+
+      ticket.slot = slots;
+    }
+
+    ADMITTED_EXPENSIVE.increment();
+  }
+
+  /**
+   * Add to an estimated cost without overflowing.
+   *
+   * @param cost The cost so far
+   * @param events The events to add
+   * @return The sum, or Long.MAX_VALUE if too large
+   */
+  public static long addCost(long cost, long events) {
+    long sum = cost + events;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  /**
+   * Get the cost of queries of a number of channels.
+   *
+   * @param channels The channels
+   * @param queriesEach The queries of each channel
+   * @return The cost in events, or Long.MAX_VALUE if too large
+   */
+  public static long queryCost(long channels, long queriesEach) {
+    if (channels <= 0 || queriesEach <= 0) {
+      return 0;
+    }
+
+    double events = (double) channels * queriesEach * QUERY_EVENTS;
+    return events >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) events;
+  }
+
+  /**
+   * Estimate the events a query of a channel will read from the length of its window. The estimate
+   * costs no query, so it can be made before the request is admitted.
+   *
+   * @param begin The window begin
+   * @param end The window end
+   * @return The estimated events, or Long.MAX_VALUE if too large
+   */
+  public static long estimateEvents(Instant begin, Instant end) {
+    long millis = Math.max(Duration.between(begin, end).toMillis(), 0);
+    double events = (double) millis * EVENTS_PER_HOUR / 3_600_000;
+    return events >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) events;
+  }
+
+  /**
+   * Get the client a request is from.
+   *
+   * @param request The request
+   * @return The client
+   */
+  public static String getClient(HttpServletRequest request) {
+    if (CLIENT_HEADER != null && !CLIENT_HEADER.trim().isEmpty()) {
+      String value = request.getHeader(CLIENT_HEADER.trim());
+
+      if (value != null && !value.trim().isEmpty()) {
+        return getClientEntry(value, CLIENT_HEADER_HOPS);
+      }
+    }
+
+    return request.getRemoteAddr();
+  }
+
+  /**
+   * Get the client from a proxy chain header. Entries to the left may be anything the client sent,
+   * as each proxy appends the address it received the request from, so the client is the entry
+   * appended by the first trusted proxy: the given number of entries from the right.
+   *
+   * @param value The header value, such as "spoofed, 192.0.2.1"
+   * @param hops The trusted proxies appending to the header
+   * @return The client, or the leftmost entry if there are fewer entries than hops
+   */
+  static String getClientEntry(String value, int hops) {
+    String[] entries = value.split(",");
+    int index = Math.max(entries.length - Math.max(hops, 1), 0);
+
+    return entries[index].trim();
+  }
+
+  public static long getAdmittedCount() {
+    return ADMITTED.sum();
+  }
+
+  public static long getAdmittedExpensiveCount() {
+    return ADMITTED_EXPENSIVE.sum();
+  }
+
+  public static long getRejectedClientCount() {
+    return REJECTED_CLIENT.sum();
+  }
+
+  public static long getRejectedExpensiveCount() {
+    return REJECTED_EXPENSIVE.sum();
+  }
+
+  /**
+   * Get the total time expensive requests have waited for a slot.
+   *
+   * @return The nanoseconds
+   */
+  public static long getQueuedNanos() {
+    return QUEUED_NANOS.sum();
+  }
+
+  /**
+   * Get the number of expensive requests in progress, across all deployments.
+   *
+   * @return The count
+   */
+  public static int getExpensiveInProgress() {
+    int count = 0;
+
+    for (Semaphore slots : EXPENSIVE.values()) {
+      count += EXPENSIVE_SLOTS - slots.availablePermits();
+    }
+
+    return count;
+  }
+
+  /**
+   * Get the number of requests of a client in progress.
+   *
+   * @param client The client
+   * @return The count
+   */
+  static int getRequestsInProgress(String client) {
+    Usage usage = CLIENTS.get(client);
+    return usage == null ? 0 : usage.requests;
+  }
+
+  /** A client's requests in progress; only modified inside a compute of the client map. */
+  private static final class Usage {
+    private int requests = 0;
+    private int expensive = 0;
+    private int tails = 0;
+  }
+
+  /** An admitted request, which frees what it holds when closed. */
+  public static final class Ticket implements AutoCloseable {
+    private final String client;
+    private final String deployment;
+    private final boolean tail;
+    private volatile boolean expensive = false;
+    private volatile Semaphore slot = null;
+    private boolean closed = false;
+
+    private Ticket(String client, String deployment, boolean tail) {
+      this.client = client;
+      this.deployment = deployment;
+      this.tail = tail;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      if (slot != null) {
+        slot.release();
+      }
+
+      CLIENTS.computeIfPresent(
+          client,
+          (key, u) -> {
+            if (tail) {
+              u.tails--;
+            } else {
+              u.requests--;
+            }
+            if (expensive) {
+              u.expensive--;
+            }
+            return (u.requests <= 0 && u.tails <= 0) ? null : u;
+          });
+    }
+  }
+
+  /** Thrown when a request is not admitted. */
+  public static final class RejectedException extends Exception {
+    public RejectedException(String message) {
+      super(message);
+    }
+
+    public long getRetryAfterSeconds() {
+      return RETRY_AFTER_SECONDS;
+    }
+  }
+}
@@ -0,0 +1,687 @@
+package org.jlab.myquery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import org.jlab.mya.event.*;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * Writes events in the Apache Arrow IPC streaming format (a schema message, record batch messages
+ * and an end-of-stream marker), which Arrow based tools such as pyarrow, pandas and polars read
+ * without parsing.
+ *
+ * <p>The columns are timestamp (nanoseconds since Epoch, UTC), value (float64, int32, or a list of
+ * strings, null for disconnections), label (for labeled enum events), integration (for integrated
+ * float events) and code (the event code name, or null for ordinary updates, like the t key of the
+ * JSON output). Events are written in record batches of BATCH_ROWS rows so memory use is bounded.
+ *
+ * <p>The format's FlatBuffers metadata is encoded by a minimal builder in this class, which avoids
+ * a dependency on the Arrow libraries (and the off-heap memory configuration they require).
+ * Configured with the environment variable ARROW_BATCH_ROWS (default 65536). Not thread safe.
+ *
+ * @author agent
+ */
+public class ArrowIpcWriter {
+
+  public static final String CONTENT_TYPE = "application/vnd.apache.arrow.stream";
+
+  public static final int BATCH_ROWS = ConfigUtil.getEnvInt("ARROW_BATCH_ROWS", 65536);
+
+  private static final short METADATA_VERSION_V5 = 4;
+  private static final byte HEADER_SCHEMA = 1;
+  private static final byte HEADER_RECORD_BATCH = 3;
+
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_FLOATING_POINT = 3;
+  private static final byte TYPE_UTF8 = 5;
+  private static final byte TYPE_TIMESTAMP = 10;
+  private static final byte TYPE_LIST = 12;
+
+  private static final short PRECISION_DOUBLE = 2;
+  private static final short TIME_UNIT_NANOSECOND = 3;
+
+  private final OutputStream out;
+  private final Class<?> eventType;
+  private final Map<String, String> customMetadata;
+
+  private final LongColumn timestamp = new LongColumn("timestamp");
+  private final Column value;
+  private final Utf8Column label;
+  private final DoubleColumn integration;
+  private final Utf8Column code = new Utf8Column("code");
+  private final List<Column> columns = new ArrayList<>();
+
+  /**
+   * Create a new writer.
+   *
+   * @param out The OutputStream
+   * @param eventType The type of the events, which must be supported
+   * @param customMetadata Key value pairs to include in the schema, such as the channel datatype
+   */
+  public ArrowIpcWriter(OutputStream out, Class<?> eventType, Map<String, String> customMetadata) {
+    if (!supports(eventType)) {
+      throw new IllegalArgumentException("Unsupported data type: " + eventType);
+    }
+
+    this.out = out;
+    this.eventType = eventType;
+    this.customMetadata = customMetadata;
+
+    if (eventType == FloatEvent.class || eventType == AnalyzedFloatEvent.class) {
+      value = new DoubleColumn("value");
+    } else if (eventType == MultiStringEvent.class) {
+      value = new ListColumn("value");
+    } else {
+      value = new IntColumn("value");
+    }
+    label = (eventType == LabeledEnumEvent.class) ? new Utf8Column("label") : null;
+    integration = (eventType == AnalyzedFloatEvent.class) ? new DoubleColumn("integration") : null;
+
+    columns.add(timestamp);
+    columns.add(value);
+    if (label != null) {
+      columns.add(label);
+    }
+    if (integration != null) {
+      columns.add(integration);
+    }
+    columns.add(code);
+  }
+
+  /**
+   * Check whether events of a given type can be written.
+   *
+   * @param type The event type
+   * @return true if supported
+   */
+  public static boolean supports(Class<?> type) {
+    return EventArrayWriter.supports(type);
+  }
+
+  /**
+   * Write the schema, all events of a stream, and the end-of-stream marker.
+   *
+   * @param stream The stream, of the type given to the constructor
+   * @return The number of events written
+   * @throws IOException If unable to read the stream or write the output
+   */
+  public long writeStream(EventStream<? extends Event> stream) throws IOException {
+    if (stream.getType() != eventType) {
+      throw new IllegalArgumentException("Stream type does not match: " + stream.getType());
+    }
+
+    writeMessage(HEADER_SCHEMA, schema(), new byte[0]);
+
+    long count = 0;
+    int rows = 0;
+    Event event;
+    while ((event = stream.read()) != null) {
+      add(event);
+      count++;
+      rows++;
+
+      if (rows == BATCH_ROWS) {
+        writeBatch(rows);
+        rows = 0;
+      }
+    }
+
+    if (rows > 0) {
+      writeBatch(rows);
+    }
+
+    // End-of-stream: continuation marker followed by zero length metadata
+    writeIntLE(out, 0xFFFFFFFF);
+    writeIntLE(out, 0);
+    out.flush();
+
+    return count;
+  }
+
+  private void add(Event event) {
+    Instant instant = event.getTimestampAsInstant();
+    timestamp.add(instant.getEpochSecond() * 1_000_000_000L + instant.getNano());
+
+    boolean disconnection = event.getCode().isDisconnection();
+
+    if (value instanceof DoubleColumn) {
+      ((DoubleColumn) value).add(((FloatEvent) event).getValue(), !disconnection);
+    } else if (value instanceof ListColumn) {
+      ((ListColumn) value).add(disconnection ? null : ((MultiStringEvent) event).getValue());
+    } else {
+      ((IntColumn) value).add(((IntEvent) event).getValue(), !disconnection);
+    }
+
+    if (label != null) {
+      label.add(disconnection ? null : ((LabeledEnumEvent) event).getLabel());
+    }
+
+    if (integration != null) {
+      double[] stats = ((AnalyzedFloatEvent) event).getEventStats();
+      boolean valid = stats != null && stats.length == 1;
+      integration.add(valid ? stats[0] : 0, valid);
+    }
+
+    code.add(event.getCode().getDescription().isEmpty() ? null : event.getCode().name());
+  }
+
+  private Table schema() {
+    List<Table> fields = new ArrayList<>();
+    for (Column column : columns) {
+      fields.add(column.field());
+    }
+
+    List<Table> keyValues = new ArrayList<>();
+    if (customMetadata != null) {
+      for (Map.Entry<String, String> entry : customMetadata.entrySet()) {
+        Table keyValue = new Table().addOffset(0, entry.getKey()).addOffset(1, entry.getValue());
+        keyValues.add(keyValue);
+      }
+    }
+
+    return new Table().addOffset(1, fields).addOffset(2, keyValues);
+  }
+
+  private void writeBatch(int rows) throws IOException {
+    Body body = new Body();
+    StructVector nodes = new StructVector();
+    StructVector buffers = new StructVector();
+
+    for (Column column : columns) {
+      column.writeTo(nodes, buffers, body);
+      column.clear();
+    }
+
+    Table recordBatch = new Table().addLong(0, rows).addOffset(1, nodes).addOffset(2, buffers);
+
+    writeMessage(HEADER_RECORD_BATCH, recordBatch, body.toByteArray());
+  }
+
+  /** Writes an encapsulated message: marker, metadata length, padded metadata, then body. */
+  private void writeMessage(byte headerType, Table header, byte[] body) throws IOException {
+    Table message =
+        new Table()
+            .addShort(0, METADATA_VERSION_V5)
+            .addByte(1, headerType)
+            .addOffset(2, header)
+            .addLong(3, body.length);
+
+    byte[] metadata = FlatBuffers.finish(message);
+    int padded = (metadata.length + 7) & ~7;
+
+    writeIntLE(out, 0xFFFFFFFF);
+    writeIntLE(out, padded);
+    out.write(metadata);
+    out.write(new byte[padded - metadata.length]);
+    out.write(body);
+  }
+
+  private static Table fieldTable(String name, boolean nullable, byte type, Table typeTable) {
+    return fieldTable(name, nullable, type, typeTable, new ArrayList<>());
+  }
+
+  private static Table fieldTable(
+      String name, boolean nullable, byte type, Table typeTable, List<Table> children) {
+    return new Table()
+        .addOffset(0, name)
+        .addByte(1, nullable ? 1 : 0)
+        .addByte(2, type)
+        .addOffset(3, typeTable)
+        .addOffset(5, children);
+  }
+
+  private static void writeIntLE(OutputStream out, int value) throws IOException {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  /** A column of a record batch. */
+  private abstract static class Column {
+    final String name;
+    int length = 0;
+    int nullCount = 0;
+    byte[] validity = new byte[64];
+
+    Column(String name) {
+      this.name = name;
+    }
+
+    abstract Table field();
+
+    abstract void writeTo(StructVector nodes, StructVector buffers, Body body);
+
+    void setValid(boolean valid) {
+      if (length / 8 >= validity.length) {
+        validity = Arrays.copyOf(validity, validity.length * 2);
+      }
+      if (valid) {
+        validity[length / 8] |= (byte) (1 << (length % 8));
+      } else {
+        nullCount++;
+      }
+      length++;
+    }
+
+    void writeNodeAndValidity(StructVector nodes, StructVector buffers, Body body) {
+      nodes.add(length, nullCount);
+      if (nullCount == 0) {
+        buffers.add(body.size(), 0); // All valid, so the bitmap may be omitted
+      } else {
+        buffers.add(body.size(), (length + 7) / 8);
+        body.write(validity, 0, (length + 7) / 8);
+      }
+    }
+
+    void clear() {
+      Arrays.fill(validity, 0, (length + 7) / 8, (byte) 0);
+      length = 0;
+      nullCount = 0;
+    }
+  }
+
+  private static final class LongColumn extends Column {
+    private long[] values = new long[1024];
+
+    private LongColumn(String name) {
+      super(name);
+    }
+
+    private void add(long v) {
+      if (length == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[length] = v;
+      setValid(true);
+    }
+
+    @Override
+    Table field() {
+      Table type = new Table().addShort(0, TIME_UNIT_NANOSECOND).addOffset(1, "UTC");
+      return fieldTable(name, false, TYPE_TIMESTAMP, type);
+    }
+
+    @Override
+    void writeTo(StructVector nodes, StructVector buffers, Body body) {
+      writeNodeAndValidity(nodes, buffers, body);
+      buffers.add(body.size(), length * 8L);
+      for (int i = 0; i < length; i++) {
+        body.writeLong(values[i]);
+      }
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+    private double[] values = new double[1024];
+
+    private DoubleColumn(String name) {
+      super(name);
+    }
+
+    private void add(double v, boolean valid) {
+      if (length == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[length] = valid ? v : 0;
+      setValid(valid);
+    }
+
+    @Override
+    Table field() {
+      return fieldTable(name, true, TYPE_FLOATING_POINT, new Table().addShort(0, PRECISION_DOUBLE));
+    }
+
+    @Override
+    void writeTo(StructVector nodes, StructVector buffers, Body body) {
+      writeNodeAndValidity(nodes, buffers, body);
+      buffers.add(body.size(), length * 8L);
+      for (int i = 0; i < length; i++) {
+        body.writeLong(Double.doubleToRawLongBits(values[i]));
+      }
+    }
+  }
+
+  private static final class IntColumn extends Column {
+    private int[] values = new int[1024];
+
+    private IntColumn(String name) {
+      super(name);
+    }
+
+    private void add(int v, boolean valid) {
+      if (length == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[length] = valid ? v : 0;
+      setValid(valid);
+    }
+
+    @Override
+    Table field() {
+      Table type = new Table().addInt(0, 32).addByte(1, 1);
+      return fieldTable(name, true, TYPE_INT, type);
+    }
+
+    @Override
+    void writeTo(StructVector nodes, StructVector buffers, Body body) {
+      writeNodeAndValidity(nodes, buffers, body);
+      buffers.add(body.size(), length * 4L);
+      for (int i = 0; i < length; i++) {
+        body.writeInt(values[i]);
+      }
+    }
+  }
+
+  private static class Utf8Column extends Column {
+    private int[] offsets = new int[1025];
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    private Utf8Column(String name) {
+      super(name);
+    }
+
+    void add(String v) {
+      if (length + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      if (v != null) {
+        byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+        data.write(bytes, 0, bytes.length);
+      }
+      offsets[length + 1] = data.size();
+      setValid(v != null);
+    }
+
+    @Override
+    Table field() {
+      return fieldTable(name, true, TYPE_UTF8, new Table());
+    }
+
+    @Override
+    void writeTo(StructVector nodes, StructVector buffers, Body body) {
+      writeNodeAndValidity(nodes, buffers, body);
+      buffers.add(body.size(), (length + 1) * 4L);
+      for (int i = 0; i <= length; i++) {
+        body.writeInt(offsets[i]);
+      }
+      buffers.add(body.size(), data.size());
+      body.write(data.toByteArray(), 0, data.size());
+    }
+
+    @Override
+    void clear() {
+      super.clear();
+      data.reset();
+    }
+  }
+
+  private static final class ListColumn extends Column {
+    private int[] offsets = new int[1025];
+    private final Utf8Column items = new Utf8Column("item");
+
+    private ListColumn(String name) {
+      super(name);
+    }
+
+    private void add(String[] v) {
+      if (length + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      if (v != null) {
+        for (String item : v) {
+          items.add(item);
+        }
+      }
+      offsets[length + 1] = items.length;
+      setValid(v != null);
+    }
+
+    @Override
+    Table field() {
+      List<Table> children = new ArrayList<>();
+      children.add(items.field());
+      return fieldTable(name, true, TYPE_LIST, new Table(), children);
+    }
+
+    @Override
+    void writeTo(StructVector nodes, StructVector buffers, Body body) {
+      writeNodeAndValidity(nodes, buffers, body);
+      buffers.add(body.size(), (length + 1) * 4L);
+      for (int i = 0; i <= length; i++) {
+        body.writeInt(offsets[i]);
+      }
+      items.writeTo(nodes, buffers, body);
+    }
+
+    @Override
+    void clear() {
+      super.clear();
+      items.clear();
+    }
+  }
+
+  /** The body of a message: buffers, each padded to a multiple of 8 bytes. */
+  private static final class Body {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final byte[] scratch = new byte[8];
+
+    private long size() {
+      pad();
+      return bytes.size();
+    }
+
+    private void pad() {
+      while (bytes.size() % 8 != 0) {
+        bytes.write(0);
+      }
+    }
+
+    private void write(byte[] b, int off, int len) {
+      bytes.write(b, off, len);
+    }
+
+    private void writeInt(int v) {
+      for (int i = 0; i < 4; i++) {
+        scratch[i] = (byte) (v >>> (8 * i));
+      }
+      bytes.write(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) {
+      for (int i = 0; i < 8; i++) {
+        scratch[i] = (byte) (v >>> (8 * i));
+      }
+      bytes.write(scratch, 0, 8);
+    }
+
+    private byte[] toByteArray() {
+      pad();
+      return bytes.toByteArray();
+    }
+  }
+
+  /** A vector of 16 byte structs of two longs (Arrow FieldNode and Buffer). */
+  private static final class StructVector {
+    private final Body body = new Body();
+    private int count = 0;
+
+    private void add(long first, long second) {
+      body.writeLong(first);
+      body.writeLong(second);
+      count++;
+    }
+  }
+
+  /** A FlatBuffers table under construction; fields are identified by their schema index. */
+  private static final class Table {
+    private final List<Slot> slots = new ArrayList<>();
+
+    private Table add(int id, int size, long value, Object child) {
+      slots.add(new Slot(id, size, value, child));
+      return this;
+    }
+
+    private Table addByte(int id, int value) {
+      return add(id, 1, value, null);
+    }
+
+    private Table addShort(int id, int value) {
+      return add(id, 2, value, null);
+    }
+
+    private Table addInt(int id, int value) {
+      return add(id, 4, value, null);
+    }
+
+    private Table addLong(int id, long value) {
+      return add(id, 8, value, null);
+    }
+
+    /** The child is a Table, String, List of Table, or StructVector. */
+    private Table addOffset(int id, Object child) {
+      return add(id, 4, 0, child);
+    }
+  }
+
+  private static final class Slot {
+    private final int id;
+    private final int size;
+    private final long value;
+    private final Object child;
+
+    private Slot(int id, int size, long value, Object child) {
+      this.id = id;
+      this.size = size;
+      this.value = value;
+      this.child = child;
+    }
+  }
+
+  /**
+   * Serializes Tables front to back. Every object is written after the object referring to it, so
+   * all offsets point forward as FlatBuffers requires, and scalars are aligned to their size.
+   */
+  private static final class FlatBuffers {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final ArrayDeque<Object[]> pending = new ArrayDeque<>();
+
+    private static byte[] finish(Table root) {
+      FlatBuffers fb = new FlatBuffers();
+      List<int[]> patches = new ArrayList<>();
+
+      fb.writeLE(0, 4); // Root offset
+      fb.pending.add(new Object[] {0, root});
+
+      while (!fb.pending.isEmpty()) {
+        Object[] next = fb.pending.poll();
+        int fieldPos = (Integer) next[0];
+        int target = fb.writeObject(next[1]);
+        patches.add(new int[] {fieldPos, target - fieldPos});
+      }
+
+      byte[] buffer = fb.bytes.toByteArray();
+      for (int[] patch : patches) {
+        for (int i = 0; i < 4; i++) {
+          buffer[patch[0] + i] = (byte) (patch[1] >>> (8 * i));
+        }
+      }
+      return buffer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int writeObject(Object object) {
+      if (object instanceof Table) {
+        return writeTable((Table) object);
+      } else if (object instanceof String) {
+        byte[] utf8 = ((String) object).getBytes(StandardCharsets.UTF_8);
+        alignTo(4, 0);
+        int start = bytes.size();
+        writeLE(utf8.length, 4);
+        bytes.write(utf8, 0, utf8.length);
+        bytes.write(0);
+        return start;
+      } else if (object instanceof StructVector) {
+        StructVector vector = (StructVector) object;
+        alignTo(8, 4); // So the 8 byte aligned elements follow the length
+        int start = bytes.size();
+        writeLE(vector.count, 4);
+        byte[] elements = vector.body.toByteArray();
+        bytes.write(elements, 0, elements.length);
+        return start;
+      } else {
+        List<Table> tables = (List<Table>) object;
+        alignTo(4, 0);
+        int start = bytes.size();
+        writeLE(tables.size(), 4);
+        for (Table table : tables) {
+          pending.add(new Object[] {bytes.size(), table});
+          writeLE(0, 4);
+        }
+        return start;
+      }
+    }
+
+    private int writeTable(Table table) {
+      List<Slot> slots = new ArrayList<>(table.slots);
+      // Largest first; with the table start at 4 mod 8 every field is then aligned to its size
+      slots.sort(Comparator.comparingInt((Slot slot) -> slot.size).reversed());
+
+      int fieldCount = 0;
+      for (Slot slot : slots) {
+        fieldCount = Math.max(fieldCount, slot.id + 1);
+      }
+
+      int[] fieldOffsets = new int[fieldCount];
+      int tableSize = 4;
+      for (Slot slot : slots) {
+        fieldOffsets[slot.id] = tableSize;
+        tableSize += slot.size;
+      }
+
+      alignTo(2, 0);
+      int vtable = bytes.size();
+      writeLE(4 + 2 * fieldCount, 2);
+      writeLE(tableSize, 2);
+      for (int offset : fieldOffsets) {
+        writeLE(offset, 2);
+      }
+
+      alignTo(8, 4);
+      int start = bytes.size();
+      writeLE(start - vtable, 4);
+
+      for (Slot slot : slots) {
+        if (slot.child != null) {
+          pending.add(new Object[] {bytes.size(), slot.child});
+          writeLE(0, 4);
+        } else {
+          writeLE(slot.value, slot.size);
+        }
+      }
+
+      return start;
+    }
+
+    private void alignTo(int alignment, int remainder) {
+      while (bytes.size() % alignment != remainder) {
+        bytes.write(0);
+      }
+    }
+
+    private void writeLE(long value, int size) {
+      for (int i = 0; i < size; i++) {
+        bytes.write((int) (value >>> (8 * i)));
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package org.jlab.myquery;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.jlab.mya.Metadata;
+import org.jlab.mya.RunningStatistics;
+import org.jlab.mya.event.FloatEvent;
+import org.jlab.mya.stream.BoundaryAwareStream;
+import org.jlab.mya.stream.EventStream;
+import org.jlab.mya.stream.FloatAnalysisStream;
+
+/**
+ * Computes the RunningStatistics of consecutive time bins from a single event stream.
+ *
+ * <p>Opening a prior point query and an event stream per bin costs two database round trips per
+ * bin. Instead, this engine does one prior point query and opens one event stream for the whole
+ * range, splitting the events into bins as they are read. Each bin is still analyzed by a
+ * FloatAnalysisStream wrapping a BoundaryAwareStream, with the prior event of each bin being the
+ * last event at or before the bin begin (exactly what a prior point query would return), so the
+ * statistics are the same as if each bin were queried separately.
+ *
+ * @author adamc
+ */
+public class BinnedStatisticsEngine {
+
+  private final IntervalWebService intervalService;
+  private final PointWebService pointService;
+
+  public BinnedStatisticsEngine(IntervalWebService intervalService, PointWebService pointService) {
+    this.intervalService = intervalService;
+    this.pointService = pointService;
+  }
+
+  /**
+   * Split a time range into bins. The bins are equal whole seconds in size, except the last bin
+   * which ends at the range end.
+   *
+   * @param begin The range begin
+   * @param end The range end
+   * @param numBins The number of bins
+   * @return The numBins + 1 bin boundaries, starting with begin and ending with end
+   */
+  public static List<Instant> getBinBoundaries(Instant begin, Instant end, long numBins) {
+    double interval =
+        ((end.getEpochSecond() + end.getNano() / 1_000_000_000d)
+                - (begin.getEpochSecond() + begin.getNano() / 1_000_000_000d))
+            / numBins;
+
+    List<Instant> boundaries = new ArrayList<>();
+    boundaries.add(begin);
+
+    Instant binEnd = begin;
+    for (int i = 1; i <= numBins; i++) {
+      if (i == numBins) {
+        binEnd = end;
+      } else {
+        binEnd = binEnd.plusSeconds((long) interval);
+      }
+      boundaries.add(binEnd);
+    }
+
+    return boundaries;
+  }
+
+  /**
+   * Calculate the statistics of each bin.
+   *
+   * @param metadata The channel metadata; must be a FloatEvent channel
+   * @param boundaries The bin boundaries, as returned by getBinBoundaries (or a contiguous subList)
+   * @param updatesOnly Whether to only include updates
+   * @return The statistics of each bin, in bin order
+   * @throws Exception If unable to query the database
+   */
+  @SuppressWarnings("unchecked")
+  public List<RunningStatistics> calculate(
+      Metadata<FloatEvent> metadata, List<Instant> boundaries, boolean updatesOnly)
+      throws Exception {
+    Instant begin = boundaries.get(0);
+    Instant end = boundaries.get(boundaries.size() - 1);
+    Class<FloatEvent> type = metadata.getType();
+
+    FloatEvent priorEvent =
+        (FloatEvent) pointService.findEvent(metadata, updatesOnly, begin, true, true, false);
+
+    List<RunningStatistics> statsList = new ArrayList<>(boundaries.size() - 1);
+
+    try (EventStream<FloatEvent> stream =
+        intervalService.openEventStream(metadata, updatesOnly, begin, end, null, type)) {
+      SharedSource source = new SharedSource(stream);
+
+      for (int i = 1; i < boundaries.size(); i++) {
+        Instant binBegin = boundaries.get(i - 1);
+        Instant binEnd = boundaries.get(i);
+
+        // Prior point (less than or equal) of this bin, as a prior point query would find it: the
+        // last of any events at the bin begin, which are still read by the bin
+        FloatEvent atBegin = source.lastAt(binBegin);
+        if (atBegin != null) {
+          priorEvent = atBegin;
+        } else if (source.last != null) {
+          priorEvent = source.last;
+        }
+
+        EventStream<FloatEvent> binStream = new BinStream(source, binEnd, type);
+
+        if (priorEvent != null) {
+          binStream =
+              new BoundaryAwareStream<>(binStream, binBegin, binEnd, priorEvent, updatesOnly, type);
+        }
+
+        try (FloatAnalysisStream fas = new FloatAnalysisStream(binStream)) {
+          while (fas.read() != null) {
+            // Read through the entire bin.  We only want statistics from it
+          }
+          statsList.add(fas.getLatestStats());
+        }
+      }
+    }
+
+    return statsList;
+  }
+
+  /**
+   * The underlying stream of the whole range with a look ahead, usually of one event but through
+   * all events sharing a timestamp when looking for the last of them.
+   */
+  private static final class SharedSource {
+    private final EventStream<FloatEvent> stream;
+    private final ArrayDeque<FloatEvent> pending = new ArrayDeque<>();
+    private FloatEvent last;
+    private boolean exhausted = false;
+
+    private SharedSource(EventStream<FloatEvent> stream) {
+      this.stream = stream;
+    }
+
+    private FloatEvent peek() throws IOException {
+      if (pending.isEmpty()) {
+        readAhead();
+      }
+      return pending.peekFirst();
+    }
+
+    private FloatEvent take() {
+      last = pending.pollFirst();
+      return last;
+    }
+
+    /**
+     * Get the last of the events next in the stream with a timestamp, without taking them.
+     *
+     * @param timestamp The timestamp
+     * @return The last event, or null if the next event doesn't have the timestamp
+     * @throws IOException If unable to read the stream
+     */
+    private FloatEvent lastAt(Instant timestamp) throws IOException {
+      FloatEvent lastAt = null;
+
+      for (FloatEvent event : pending) {
+        if (!event.getTimestampAsInstant().equals(timestamp)) {
+          return lastAt;
+        }
+        lastAt = event;
+      }
+
+      FloatEvent event;
+      while ((event = readAhead()) != null && event.getTimestampAsInstant().equals(timestamp)) {
+        lastAt = event;
+      }
+
+      return lastAt;
+    }
+
+    private FloatEvent readAhead() throws IOException {
+      FloatEvent event = exhausted ? null : stream.read();
+
+      if (event == null) {
+        exhausted = true;
+      } else {
+        pending.addLast(event);
+      }
+
+      return event;
+    }
+  }
+
+  /** The events of the shared source before the bin end. Closing does not close the source. */
+  private static final class BinStream extends EventStream<FloatEvent> {
+    private final SharedSource source;
+    private final Instant binEnd;
+
+    private BinStream(SharedSource source, Instant binEnd, Class<FloatEvent> type) {
+      super(type);
+      this.source = source;
+      this.binEnd = binEnd;
+    }
+
+    @Override
+    public FloatEvent read() throws IOException {
+      FloatEvent event = source.peek();
+
+      if (event == null || !event.getTimestampAsInstant().isBefore(binEnd)) {
+        return null;
+      }
+
+      return source.take();
+    }
+
+    @Override
+    public void close() {
+      // The shared source is closed once all bins have been read
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package org.jlab.myquery;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the requests of a deployment being handled at once, so an overloaded archive (for example
+ * a slow history deployment) can only tie up its own share of the server. Each deployment has its
+ * own bulkhead: at most BULKHEAD_MAX_CONCURRENT requests in progress, and at most
+ * BULKHEAD_MAX_WAITING more waiting up to BULKHEAD_WAIT_MILLIS for one of them to finish. Requests
+ * beyond that are refused right away rather than piling up.
+ *
+ * <p>Each deployment also has its own executor for running a request's queries in parallel, with a
+ * bounded queue. When the queue is full a task runs on the thread submitting it instead, so the
+ * request still progresses but without adding to the deployment's backlog.
+ *
+ * @author agent
+ */
+public final class Bulkhead {
+
+  /** Max requests of one deployment in progress at once (0 for no limit) */
+  public static final int MAX_CONCURRENT = ConfigUtil.getEnvInt("BULKHEAD_MAX_CONCURRENT", 32);
+
+  /** Max requests of one deployment waiting to start */
+  public static final int MAX_WAITING = ConfigUtil.getEnvInt("BULKHEAD_MAX_WAITING", 64);
+
+  /** Max milliseconds a request waits to start */
+  public static final long WAIT_MILLIS = ConfigUtil.getEnvLong("BULKHEAD_WAIT_MILLIS", 10000);
+
+  /** Max parallel query tasks of one deployment waiting for a thread */
+  public static final int MAX_QUEUED_QUERIES =
+      ConfigUtil.getEnvInt("BULKHEAD_MAX_QUEUED_QUERIES", 256);
+
+  private final String deployment;
+  private final Semaphore permits;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ThreadPoolExecutor executor;
+
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder rejectedFull = new LongAdder();
+  private final LongAdder rejectedTimeout = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder queryOverflows = new LongAdder();
+
+  /**
+   * Create a new Bulkhead.
+   *
+   * @param deployment The deployment name
+   * @param queryThreads The threads running parallel queries
+   */
+  public Bulkhead(String deployment, int queryThreads) {
+    this.deployment = deployment;
+    this.permits = MAX_CONCURRENT > 0 ? new Semaphore(MAX_CONCURRENT, true) : null;
+    this.executor =
+        new ThreadPoolExecutor(
+            queryThreads,
+            queryThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(MAX_QUEUED_QUERIES, 1)),
+            new QueryThreadFactory(deployment),
+            (task, pool) -> {
+              queryOverflows.increment();
+              if (!pool.isShutdown()) {
+                task.run();
+              }
+            });
+  }
+
+  public String getDeployment() {
+    return deployment;
+  }
+
+  /**
+   * Start a request, waiting if the deployment is busy. The request must call {@link #exit} when
+   * done.
+   *
+   * @throws FullException If too many requests are waiting, or none finished in time
+   * @throws InterruptedException If interrupted while waiting
+   */
+  public void enter() throws FullException, InterruptedException {
+    if (permits == null) {
+      admitted.increment();
+      return;
+    }
+
+    if (permits.tryAcquire()) {
+      admitted.increment();
+      return;
+    }
+
+    if (waiting.incrementAndGet() > MAX_WAITING) {
+      waiting.decrementAndGet();
+      rejectedFull.increment();
+      throw new FullException("Too many requests waiting for deployment: '" + deployment + "'");
+    }
+
+    long start = System.nanoTime();
+    boolean acquired;
+    try {
+      acquired = permits.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } finally {
+      waiting.decrementAndGet();
+      waitNanos.add(System.nanoTime() - start);
+    }
+
+    if (!acquired) {
+      rejectedTimeout.increment();
+      throw new FullException("Timed out waiting for deployment: '" + deployment + "'");
+    }
+
+    admitted.increment();
+  }
+
+  /** End a request started with {@link #enter}. */
+  public void exit() {
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  /**
+   * Get the executor for running queries in parallel. The executor has a bounded number of threads
+   * so parallel queries never hold more than that many connections.
+   *
+   * @return The executor
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Get the number of requests in progress.
+   *
+   * @return The count
+   */
+  public int getActiveCount() {
+    return permits == null ? 0 : MAX_CONCURRENT - permits.availablePermits();
+  }
+
+  /**
+   * Get the number of requests waiting to start.
+   *
+   * @return The count
+   */
+  public int getWaitingCount() {
+    return waiting.get();
+  }
+
+  public long getAdmittedCount() {
+    return admitted.sum();
+  }
+
+  /**
+   * Get the number of requests refused because too many were already waiting.
+   *
+   * @return The count
+   */
+  public long getRejectedFullCount() {
+    return rejectedFull.sum();
+  }
+
+  /**
+   * Get the number of requests refused because they waited BULKHEAD_WAIT_MILLIS without starting.
+   *
+   * @return The count
+   */
+  public long getRejectedTimeoutCount() {
+    return rejectedTimeout.sum();
+  }
+
+  /**
+   * Get the total time requests have waited to start.
+   *
+   * @return The nanoseconds
+   */
+  public long getWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  /**
+   * Get the number of parallel query tasks waiting for a thread.
+   *
+   * @return The count
+   */
+  public int getQueuedQueryCount() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Get the number of parallel query tasks run by the submitting thread because the queue was
+   * full.
+   *
+   * @return The count
+   */
+  public long getQueryOverflowCount() {
+    return queryOverflows.sum();
+  }
+
+  /** Stop the query threads, such as when the application is undeployed. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** Thrown when a deployment is too busy to start a request. */
+  public static final class FullException extends Exception {
+    public FullException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class QueryThreadFactory implements ThreadFactory {
+    private final String deployment;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private QueryThreadFactory(String deployment) {
+      this.deployment = deployment;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "myquery-" + deployment + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -28,7 +28,8 @@ import java.util.Arrays;
 @WebFilter(
     filterName = "CacheAndEncodingFilter",
     urlPatterns = {"/*"},
-    dispatcherTypes = {DispatcherType.REQUEST, DispatcherType.FORWARD})
+    dispatcherTypes = {DispatcherType.REQUEST, DispatcherType.FORWARD},
+    asyncSupported = true)
 public class CacheAndEncodingFilter implements Filter {
 
   public static final long EXPIRE_MILLIS = 31536000000L; // 365 days is max expires per spec
@@ -39,6 +40,8 @@ public class CacheAndEncodingFilter implements Filter {
         "text/javascript",
         "application/javascript",
         "application/json",
+        "application/cbor",
+        "application/vnd.apache.arrow.stream",
         "image/png",
         "image/jpeg",
         "image/jpg",
@@ -0,0 +1,34 @@
+package org.jlab.myquery;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.naming.NamingException;
+import org.jlab.mya.nexus.PooledNexus;
+
+/**
+ * A PooledNexus whose connections are tracked by the QueryCanceller of the request using them, so
+ * the request's queries can be cancelled if the request is abandoned. The time taken to get each
+ * connection from the pool is recorded in the metrics.
+ *
+ * @author agent
+ */
+public class CancellableNexus extends PooledNexus {
+
+  public CancellableNexus(String deployment) throws NamingException {
+    super(deployment);
+  }
+
+  @Override
+  public Connection getConnection(String host) throws SQLException {
+    long start = System.nanoTime();
+    Connection connection = super.getConnection(host);
+    QueryMetrics.recordPoolWait(getDeployment(), System.nanoTime() - start);
+    QueryCanceller canceller = QueryCanceller.current();
+
+    if (canceller == null) {
+      return connection;
+    }
+
+    return canceller.track(connection);
+  }
+}
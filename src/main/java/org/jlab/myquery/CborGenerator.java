@@ -0,0 +1,366 @@
+package org.jlab.myquery;
+
+import jakarta.json.JsonException;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JsonGenerator which writes CBOR (RFC 8949) instead of JSON text, so the same generator calls
+ * produce a compact binary encoding of the same document.
+ *
+ * <p>Objects and arrays are written with indefinite length so nothing needs to be buffered.
+ * Numbers are written as integers if integral, otherwise as single precision floats if that is
+ * exact, else double precision. Output is buffered and written in chunks. Not thread safe.
+ *
+ * @author agent
+ */
+public class CborGenerator implements JsonGenerator {
+
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+
+  private static final int START_INDEFINITE_ARRAY = 0x9F;
+  private static final int START_INDEFINITE_MAP = 0xBF;
+  private static final int FALSE = 0xF4;
+  private static final int TRUE = 0xF5;
+  private static final int NULL = 0xF6;
+  private static final int FLOAT32 = 0xFA;
+  private static final int FLOAT64 = 0xFB;
+  private static final int BREAK = 0xFF;
+
+  private final OutputStream out;
+  private final byte[] buf = new byte[8192];
+  private int pos = 0;
+  private int depth = 0;
+
+  public CborGenerator(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Encode a text string.
+   *
+   * @param text The text
+   * @return The CBOR bytes
+   */
+  public static byte[] encodeText(String text) {
+    CborGenerator gen = new CborGenerator(null);
+    gen.text(text);
+    byte[] encoded = new byte[gen.pos];
+    System.arraycopy(gen.buf, 0, encoded, 0, gen.pos);
+    return encoded;
+  }
+
+  @Override
+  public JsonGenerator writeStartObject() {
+    depth++;
+    return raw(START_INDEFINITE_MAP);
+  }
+
+  @Override
+  public JsonGenerator writeStartObject(String name) {
+    return writeKey(name).writeStartObject();
+  }
+
+  @Override
+  public JsonGenerator writeKey(String name) {
+    return text(name);
+  }
+
+  @Override
+  public JsonGenerator writeStartArray() {
+    depth++;
+    return raw(START_INDEFINITE_ARRAY);
+  }
+
+  @Override
+  public JsonGenerator writeStartArray(String name) {
+    return writeKey(name).writeStartArray();
+  }
+
+  @Override
+  public JsonGenerator write(String name, JsonValue value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, String value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, BigInteger value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, BigDecimal value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, int value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, long value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, double value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator write(String name, boolean value) {
+    return writeKey(name).write(value);
+  }
+
+  @Override
+  public JsonGenerator writeNull(String name) {
+    return writeKey(name).writeNull();
+  }
+
+  @Override
+  public JsonGenerator writeEnd() {
+    if (depth == 0) {
+      throw new JsonException("writeEnd() without a started object or array");
+    }
+    depth--;
+    return raw(BREAK);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public JsonGenerator write(JsonValue value) {
+    switch (value.getValueType()) {
+      case TRUE:
+        return write(true);
+      case FALSE:
+        return write(false);
+      case NULL:
+        return writeNull();
+      case STRING:
+        return write(((JsonString) value).getString());
+      case NUMBER:
+        return number((JsonNumber) value);
+      case ARRAY:
+        writeStartArray();
+        for (JsonValue element : (List<JsonValue>) value) {
+          write(element);
+        }
+        return writeEnd();
+      default:
+        writeStartObject();
+        for (Map.Entry<String, JsonValue> member : ((Map<String, JsonValue>) value).entrySet()) {
+          write(member.getKey(), member.getValue());
+        }
+        return writeEnd();
+    }
+  }
+
+  @Override
+  public JsonGenerator write(String value) {
+    return text(value);
+  }
+
+  @Override
+  public JsonGenerator write(BigDecimal value) {
+    if (value.signum() == 0 || value.stripTrailingZeros().scale() <= 0) {
+      try {
+        return write(value.longValueExact());
+      } catch (ArithmeticException e) {
+        // Too big for a long
+      }
+    }
+    return write(value.doubleValue());
+  }
+
+  @Override
+  public JsonGenerator write(BigInteger value) {
+    if (value.bitLength() < 64) {
+      return write(value.longValue());
+    }
+    return write(value.doubleValue());
+  }
+
+  @Override
+  public JsonGenerator write(int value) {
+    return write((long) value);
+  }
+
+  @Override
+  public JsonGenerator write(long value) {
+    if (value >= 0) {
+      head(MAJOR_UNSIGNED, value);
+    } else {
+      head(MAJOR_NEGATIVE, -1 - value);
+    }
+    return this;
+  }
+
+  @Override
+  public JsonGenerator write(double value) {
+    float single = (float) value;
+
+    if (single == value || Double.isNaN(value)) {
+      ensureCapacity(5);
+      buf[pos++] = (byte) FLOAT32;
+      int bits = Float.floatToIntBits(single);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        buf[pos++] = (byte) (bits >>> shift);
+      }
+    } else {
+      ensureCapacity(9);
+      buf[pos++] = (byte) FLOAT64;
+      long bits = Double.doubleToLongBits(value);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        buf[pos++] = (byte) (bits >>> shift);
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public JsonGenerator write(boolean value) {
+    return raw(value ? TRUE : FALSE);
+  }
+
+  @Override
+  public JsonGenerator writeNull() {
+    return raw(NULL);
+  }
+
+  @Override
+  public void close() {
+    flush();
+    try {
+      out.close();
+    } catch (IOException e) {
+      throw new JsonException("Unable to close output", e);
+    }
+
+    if (depth != 0) {
+      throw new JsonException("Generator closed with an incomplete object or array");
+    }
+  }
+
+  @Override
+  public void flush() {
+    try {
+      out.write(buf, 0, pos);
+      pos = 0;
+      out.flush();
+    } catch (IOException e) {
+      throw new JsonException("Unable to write output", e);
+    }
+  }
+
+  /** Integral numbers (without a fraction or exponent in their text) are written as integers. */
+  private JsonGenerator number(JsonNumber value) {
+    String text = value.toString();
+    boolean integral = text.indexOf('.') < 0 && text.indexOf('E') < 0 && text.indexOf('e') < 0;
+
+    if (integral && text.length() < 19) {
+      return write(Long.parseLong(text));
+    }
+
+    return write(Double.parseDouble(text));
+  }
+
+  private JsonGenerator text(String value) {
+    int length = value.length();
+    boolean ascii = true;
+    for (int i = 0; i < length && ascii; i++) {
+      ascii = value.charAt(i) < 0x80;
+    }
+
+    if (ascii) {
+      head(MAJOR_TEXT, length);
+      ensureCapacity(length);
+      if (length > buf.length) {
+        bytes(value.getBytes(StandardCharsets.US_ASCII));
+      } else {
+        for (int i = 0; i < length; i++) {
+          buf[pos++] = (byte) value.charAt(i);
+        }
+      }
+    } else {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      head(MAJOR_TEXT, utf8.length);
+      ensureCapacity(utf8.length);
+      bytes(utf8);
+    }
+    return this;
+  }
+
+  private void bytes(byte[] bytes) {
+    if (bytes.length > buf.length) {
+      try {
+        out.write(bytes);
+      } catch (IOException e) {
+        throw new JsonException("Unable to write output", e);
+      }
+    } else {
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+  }
+
+  /** Writes the initial byte of a data item with its argument. */
+  private void head(int major, long argument) {
+    ensureCapacity(9);
+    int type = major << 5;
+
+    if (argument < 24) {
+      buf[pos++] = (byte) (type | argument);
+    } else if (argument < 0x100) {
+      buf[pos++] = (byte) (type | 24);
+      buf[pos++] = (byte) argument;
+    } else if (argument < 0x10000) {
+      buf[pos++] = (byte) (type | 25);
+      buf[pos++] = (byte) (argument >>> 8);
+      buf[pos++] = (byte) argument;
+    } else if (argument < 0x100000000L) {
+      buf[pos++] = (byte) (type | 26);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        buf[pos++] = (byte) (argument >>> shift);
+      }
+    } else {
+      buf[pos++] = (byte) (type | 27);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        buf[pos++] = (byte) (argument >>> shift);
+      }
+    }
+  }
+
+  private JsonGenerator raw(int b) {
+    ensureCapacity(1);
+    buf[pos++] = (byte) b;
+    return this;
+  }
+
+  /** Makes room in the buffer, writing it out if necessary (never for a static encode). */
+  private void ensureCapacity(int length) {
+    if (pos + length > buf.length && out != null) {
+      try {
+        out.write(buf, 0, pos);
+        pos = 0;
+      } catch (IOException e) {
+        throw new JsonException("Unable to write output", e);
+      }
+    }
+  }
+}
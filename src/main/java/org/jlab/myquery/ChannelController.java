@@ -1,6 +1,5 @@
 package org.jlab.myquery;
 
-import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -19,7 +18,8 @@ import org.jlab.mya.Metadata;
  */
 @WebServlet(
     name = "ChannelController",
-    urlPatterns = {"/channel"})
+    urlPatterns = {"/channel"},
+    asyncSupported = true)
 public class ChannelController extends QueryController {
 
   private static final Logger LOGGER = Logger.getLogger(ChannelController.class.getName());
@@ -35,11 +35,12 @@ public class ChannelController extends QueryController {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     String jsonp = request.getParameter("jsonp");
+    ResponseEncoding encoding = getResponseEncoding(request, response);
 
     if (jsonp != null) {
       response.setContentType("application/javascript");
     } else {
-      response.setContentType("application/json");
+      response.setContentType(encoding.getContentType());
     }
 
     String errorReason = null;
@@ -97,7 +98,7 @@ public class ChannelController extends QueryController {
       out.write((jsonp + "(").getBytes(StandardCharsets.UTF_8));
     }
 
-    try (JsonGenerator gen = Json.createGenerator(out)) {
+    try (JsonGenerator gen = encoding.createGenerator(out)) {
       if (errorReason != null) {
         gen.writeStartObject();
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -0,0 +1,269 @@
+package org.jlab.myquery;
+
+import jakarta.json.JsonValue;
+import jakarta.json.stream.JsonGenerator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import org.jlab.mya.event.*;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * Writes events as parallel arrays (columns) instead of an array of objects, so keys are not
+ * repeated for every event and plotting clients can use the arrays directly.
+ *
+ * <p>The columns are members of the data object: d (timestamps) and v (values, null for
+ * disconnections) are always present; x (true for disconnections), t (the event code name, or
+ * null) and i (integration) are only present if at least one event has them. Values are formatted
+ * the same as in the row layout.
+ *
+ * <p>With delta timestamps (the compact layout) d holds milliseconds since Epoch for the first
+ * event and then the (possibly adjusted) milliseconds elapsed since the previous event, which are
+ * much shorter than full timestamps. If a fixed step is given (such as the /mysampler step) and
+ * every event is exactly one step after the previous, d is replaced by start (the first timestamp)
+ * and step members.
+ *
+ * <p>Unlike the row layout, columns can't be streamed since each one must be complete before the
+ * next begins, so each column is buffered in memory until the stream is exhausted. Requests must
+ * therefore bound their events up front with {@link #checkMaxEvents}. Not thread safe.
+ *
+ * @author agent
+ */
+public class ColumnarEventWriter {
+
+  /** Max events of one set of columns, as they are buffered in memory (0 for no limit) */
+  public static final long MAX_EVENTS = ConfigUtil.getEnvLong("COLUMNAR_MAX_EVENTS", 100_000);
+
+  private final ResponseEncoding encoding;
+  private final boolean formatAsMillisSinceEpoch;
+  private final boolean adjustMillisWithServerOffset;
+  private final DateTimeFormatter timestampFormatter;
+  private final short sigFigs;
+  private final boolean deltaTimestamps;
+  private final long step;
+
+  private final Column d;
+  private final Column v;
+  private final Column x;
+  private final Column t;
+  private final Column i;
+
+  private long count = 0;
+  private long startMillis;
+  private long previousMillis;
+  private boolean uniformStep;
+
+  public ColumnarEventWriter(
+      ResponseEncoding encoding,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs,
+      boolean deltaTimestamps,
+      long step) {
+    this.encoding = encoding;
+    this.formatAsMillisSinceEpoch = formatAsMillisSinceEpoch;
+    this.adjustMillisWithServerOffset = adjustMillisWithServerOffset;
+    this.timestampFormatter = timestampFormatter;
+    this.sigFigs = sigFigs;
+    this.deltaTimestamps = deltaTimestamps;
+    this.step = step;
+    this.uniformStep = deltaTimestamps && step > 0;
+
+    d = new Column("d");
+    v = new Column("v");
+    x = new Column("x");
+    t = new Column("t");
+    i = new Column("i");
+  }
+
+  /**
+   * Check whether events of a given type can be written.
+   *
+   * @param type The event type
+   * @return true if supported
+   */
+  public static boolean supports(Class<?> type) {
+    return EventArrayWriter.supports(type);
+  }
+
+  /**
+   * Check that a request's events are few enough to buffer as columns.
+   *
+   * @param maxEvents The most events the request can return, or -1 if unbounded
+   * @param parameter The request parameter bounding the events, for the error message
+   * @throws IllegalArgumentException If the events are unbounded or too many
+   */
+  public static void checkMaxEvents(long maxEvents, String parameter) {
+    if (MAX_EVENTS > 0 && (maxEvents < 0 || maxEvents > MAX_EVENTS)) {
+      throw new IllegalArgumentException(
+          "Column output layout (o) requires "
+              + parameter
+              + " of at most "
+              + MAX_EVENTS
+              + " since columns are buffered");
+    }
+  }
+
+  /**
+   * Add all events of a stream to the columns.
+   *
+   * @param stream The stream, of a supported type
+   * @return The number of events added
+   * @throws IOException If unable to read the stream
+   */
+  public long addStream(EventStream<? extends Event> stream) throws IOException {
+    Class<?> type = stream.getType();
+
+    if (!supports(type)) {
+      throw new IllegalArgumentException("Unsupported data type: " + type);
+    }
+
+    long added = 0;
+    Event event;
+    while ((event = stream.read()) != null) {
+      added++;
+      add(event);
+    }
+    return added;
+  }
+
+  /**
+   * Add an event to the columns.
+   *
+   * @param event The event
+   */
+  public void add(Event event) {
+    count++;
+
+    if (deltaTimestamps) {
+      addDelta(event.getTimestampAsInstant());
+    } else {
+      FormatUtil.writeTimestampJSON(
+          d.gen,
+          event.getTimestampAsInstant(),
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter);
+    }
+
+    boolean disconnection = event.getCode().isDisconnection();
+
+    if (disconnection) {
+      v.gen.writeNull();
+    } else if (event instanceof FloatEvent) {
+      SignificantFigureFormatter.write(v.gen, ((FloatEvent) event).getValue(), sigFigs);
+    } else if (event instanceof LabeledEnumEvent && ((LabeledEnumEvent) event).getLabel() != null) {
+      v.gen.write(((LabeledEnumEvent) event).getLabel());
+    } else if (event instanceof IntEvent) {
+      v.gen.write(((IntEvent) event).getValue());
+    } else if (event instanceof MultiStringEvent) {
+      v.gen.writeStartArray();
+      for (String value : ((MultiStringEvent) event).getValue()) {
+        v.gen.write(value);
+      }
+      v.gen.writeEnd();
+    } else {
+      throw new IllegalArgumentException("Unsupported data type: " + event.getClass());
+    }
+
+    x.gen.write(disconnection ? JsonValue.TRUE : JsonValue.FALSE);
+    x.used |= disconnection;
+
+    if (event.getCode().getDescription().isEmpty()) {
+      t.gen.writeNull();
+    } else {
+      t.gen.write(event.getCode().name());
+      t.used = true;
+    }
+
+    double[] stats =
+        (event instanceof AnalyzedFloatEvent) ? ((AnalyzedFloatEvent) event).getEventStats() : null;
+    if (stats != null && stats.length == 1) {
+      SignificantFigureFormatter.write(i.gen, stats[0], sigFigs);
+      i.used = true;
+    } else {
+      i.gen.writeNull();
+    }
+  }
+
+  private void addDelta(Instant timestamp) {
+    long millis =
+        (timestamp.getEpochSecond() * 1000) + (timestamp.getLong(ChronoField.MILLI_OF_SECOND));
+
+    if (adjustMillisWithServerOffset) {
+      millis = TimestampEncoder.get(timestampFormatter).toLocalMillis(millis);
+    }
+
+    if (count == 1) {
+      startMillis = millis;
+      d.gen.write(millis);
+    } else {
+      long delta = millis - previousMillis;
+      uniformStep &= (delta == step);
+      d.gen.write(delta);
+    }
+
+    previousMillis = millis;
+  }
+
+  /**
+   * Get the number of events added.
+   *
+   * @return The count
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Write the columns as the members of an object. The object must already be started by the
+   * generator, which is flushed before the columns are written directly to the output, and the
+   * object is ended by the caller.
+   *
+   * @param gen The generator which started the object
+   * @param out The OutputStream the generator writes to
+   * @throws IOException If unable to write
+   */
+  public void writeTo(JsonGenerator gen, OutputStream out) throws IOException {
+    if (uniformStep && count > 0) {
+      gen.write("start", startMillis);
+      gen.write("step", step);
+      gen.flush();
+      v.writeTo(out, false);
+    } else {
+      gen.flush();
+      d.writeTo(out, true);
+      v.writeTo(out, false);
+    }
+    for (Column column : new Column[] {x, t, i}) {
+      if (column.used) {
+        column.writeTo(out, false);
+      }
+    }
+  }
+
+  /** An array buffered in memory, in the response encoding. */
+  private final class Column {
+    private final String name;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final JsonGenerator gen = encoding.createGenerator(buffer);
+    private boolean used = false;
+
+    private Column(String name) {
+      this.name = name;
+      gen.writeStartArray();
+    }
+
+    private void writeTo(OutputStream out, boolean first) throws IOException {
+      gen.writeEnd();
+      gen.close();
+
+      out.write(encoding.encodeName(name, first));
+      buffer.writeTo(out);
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package org.jlab.myquery;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This WebFilter gzip compresses responses for clients which accept it, so large query results
+ * cross slow networks quickly.
+ *
+ * <p>The response is compressed incrementally as it is written, so a streamed response is never
+ * held in memory. Only the first COMPRESSION_MIN_BYTES are buffered, to decide whether the
+ * response is worth compressing: responses which end before then are sent as-is. Flushing the
+ * OutputStream before then is deferred; use HttpServletResponse.flushBuffer to commit a streamed
+ * response immediately. After the decision each flush is a deflate sync flush, so streamed data
+ * is not held back by the compressor.
+ *
+ * <p>A servlet which handles the request asynchronously must finish the response itself, since this
+ * filter returns before the response is written: it removes the FINISHER_ATTRIBUTE request
+ * attribute and closes it once done.
+ *
+ * <p>The data query endpoints use their own compression level and a larger buffer, since their
+ * responses can be many megabytes. A level of 0 disables compression.
+ *
+ * @author agent
+ */
+@WebFilter(
+    filterName = "CompressionFilter",
+    urlPatterns = {"/*"},
+    dispatcherTypes = {DispatcherType.REQUEST},
+    asyncSupported = true)
+public class CompressionFilter implements Filter {
+
+  /** The gzip level (1-9) of responses other than data queries, or 0 to not compress them */
+  public static final int LEVEL = ConfigUtil.getEnvInt("COMPRESSION_LEVEL", 6);
+
+  /** The gzip level of data query responses, or 0 to not compress them */
+  public static final int DATA_LEVEL = ConfigUtil.getEnvInt("COMPRESSION_DATA_LEVEL", 4);
+
+  /** Responses smaller than this aren't compressed */
+  public static final int MIN_BYTES = ConfigUtil.getEnvInt("COMPRESSION_MIN_BYTES", 1024);
+
+  /** The compressor buffer size for data query responses */
+  public static final int DATA_BUFFER_BYTES =
+      ConfigUtil.getEnvInt("COMPRESSION_DATA_BUFFER_BYTES", 65536);
+
+  /** The request attribute holding the Closeable which finishes the compressed response */
+  public static final String FINISHER_ATTRIBUTE = CompressionFilter.class.getName() + ".finisher";
+
+  private static final int BUFFER_BYTES = 8192;
+
+  private static final Set<String> DATA_PATHS = Set.of("/interval", "/mysampler", "/mystats");
+
+  public static final String[] COMPRESSIBLE_CONTENT_TYPES =
+      new String[] {
+        "text/css",
+        "text/html",
+        "text/plain",
+        "text/javascript",
+        "application/javascript",
+        "application/json",
+        "application/cbor",
+        "application/vnd.apache.arrow.stream",
+        "application/x-ndjson",
+        "image/svg+xml"
+      };
+
+  static {
+    Arrays.sort(COMPRESSIBLE_CONTENT_TYPES);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+    boolean data = DATA_PATHS.contains(httpRequest.getServletPath());
+    int level = data ? DATA_LEVEL : LEVEL;
+
+    if (level <= 0 || "HEAD".equals(httpRequest.getMethod())) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    httpResponse.addHeader("Vary", "Accept-Encoding");
+
+    if (!acceptsGzip(httpRequest.getHeader("Accept-Encoding"))) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    CompressingResponse wrapper =
+        new CompressingResponse(httpResponse, level, data ? DATA_BUFFER_BYTES : BUFFER_BYTES);
+
+    Closeable finisher = wrapper::finish;
+    request.setAttribute(FINISHER_ATTRIBUTE, finisher);
+
+    chain.doFilter(request, wrapper);
+
+    // Unless the servlet took it to finish the response asynchronously
+    if (request.getAttribute(FINISHER_ATTRIBUTE) == finisher) {
+      request.removeAttribute(FINISHER_ATTRIBUTE);
+      finisher.close();
+    }
+  }
+
+  /**
+   * Determine whether an Accept-Encoding header allows gzip, either by name or by wildcard, with a
+   * non-zero quality.
+   *
+   * @param acceptEncoding The header value, or null
+   * @return true if gzip is acceptable
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+
+    Boolean gzip = null;
+    boolean wildcard = false;
+
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.split(";");
+      String coding = parts[0].trim().toLowerCase();
+      boolean acceptable = true;
+
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            acceptable = Double.parseDouble(param.substring(2).trim()) > 0;
+          } catch (NumberFormatException e) {
+            acceptable = false;
+          }
+        }
+      }
+
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        gzip = acceptable;
+      } else if (coding.equals("*")) {
+        wildcard = acceptable;
+      }
+    }
+
+    return gzip == null ? wildcard : gzip;
+  }
+
+  private static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+
+    int semicolon = contentType.indexOf(';');
+    String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim();
+
+    return Arrays.binarySearch(COMPRESSIBLE_CONTENT_TYPES, type) > -1;
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {}
+
+  @Override
+  public void destroy() {}
+
+  /** Defers the Content-Length and output until the compression decision is made. */
+  private static final class CompressingResponse extends HttpServletResponseWrapper {
+    private final int level;
+    private final int bufferSize;
+    private CompressingOutputStream stream;
+    private PrintWriter writer;
+    private long contentLength = -1;
+
+    private CompressingResponse(HttpServletResponse response, int level, int bufferSize) {
+      super(response);
+      this.level = level;
+      this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called");
+      }
+
+      return stream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        if (stream != null) {
+          throw new IllegalStateException("getOutputStream() has already been called");
+        }
+
+        writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+      }
+
+      return writer;
+    }
+
+    @Override
+    public void setContentLength(int length) {
+      setContentLengthLong(length);
+    }
+
+    @Override
+    public void setContentLengthLong(long length) {
+      if (stream != null && stream.target != null) {
+        if (!stream.compressing) {
+          super.setContentLengthLong(length);
+        }
+      } else {
+        contentLength = length;
+      }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        setContentLengthLong(value == null ? -1 : Long.parseLong(value.trim()));
+      } else {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+
+      if (stream != null) {
+        stream.commit();
+        stream.flush();
+      }
+
+      super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+      super.resetBuffer();
+
+      if (stream != null && stream.target == null) {
+        stream.pendingLength = 0;
+      }
+    }
+
+    @Override
+    public void reset() {
+      super.reset();
+      contentLength = -1;
+
+      if (stream != null && stream.target == null) {
+        stream.pendingLength = 0;
+      }
+    }
+
+    private CompressingOutputStream stream() {
+      if (stream == null) {
+        stream = new CompressingOutputStream(this);
+      }
+
+      return stream;
+    }
+
+    private void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+
+      if (stream != null) {
+        stream.close();
+      }
+    }
+  }
+
+  /** Buffers up to MIN_BYTES, then writes through a GZIPOutputStream or directly. */
+  private static final class CompressingOutputStream extends ServletOutputStream {
+    private final CompressingResponse response;
+    private final byte[] pending = new byte[Math.max(MIN_BYTES, 0)];
+    private int pendingLength = 0;
+    private OutputStream target;
+    private boolean compressing = false;
+    private boolean closed = false;
+
+    private CompressingOutputStream(CompressingResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (target == null && !closed && pendingLength < pending.length) {
+        pending[pendingLength++] = (byte) b;
+      } else {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+
+      if (target == null) {
+        if (pendingLength + len <= pending.length) {
+          System.arraycopy(b, off, pending, pendingLength, len);
+          pendingLength += len;
+          return;
+        }
+
+        decide(true);
+      }
+
+      target.write(b, off, len);
+    }
+
+    /** Make the compression decision now, as if the response will be large. */
+    private void commit() throws IOException {
+      if (target == null) {
+        decide(true);
+      }
+    }
+
+    private void decide(boolean large) throws IOException {
+      HttpServletResponse wrapped = (HttpServletResponse) response.getResponse();
+
+      compressing =
+          large
+              && isCompressible(response.getContentType())
+              && !wrapped.containsHeader("Content-Encoding");
+
+      if (compressing) {
+        wrapped.setHeader("Content-Encoding", "gzip");
+        target = new LevelGZIPOutputStream(wrapped.getOutputStream(), response.bufferSize);
+        ((LevelGZIPOutputStream) target).setLevel(response.level);
+      } else {
+        if (response.contentLength >= 0) {
+          wrapped.setContentLengthLong(response.contentLength);
+        }
+        target = wrapped.getOutputStream();
+      }
+
+      target.write(pending, 0, pendingLength);
+      pendingLength = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // Deferred until the compression decision is made
+      if (target != null) {
+        target.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+
+      if (target == null) {
+        // The whole response fit in the buffer, so it is small
+        decide(pendingLength > 0 && pendingLength >= MIN_BYTES);
+      }
+
+      closed = true;
+      target.close();
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      throw new UnsupportedOperationException("Non-blocking output is not supported");
+    }
+  }
+
+  /** A GZIPOutputStream with a settable level, which sync flushes so streamed data isn't held. */
+  private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+    private LevelGZIPOutputStream(OutputStream out, int size) throws IOException {
+      super(out, size, true);
+    }
+
+    private void setLevel(int level) {
+      def.setLevel(level);
+    }
+  }
+}
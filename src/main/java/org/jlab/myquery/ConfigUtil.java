@@ -0,0 +1,32 @@
+package org.jlab.myquery;
+
+/**
+ * Reads optional tuning parameters from environment variables, falling back to a default when a
+ * variable is not set.
+ *
+ * @author agent
+ */
+public class ConfigUtil {
+
+  private ConfigUtil() {
+    // Can't instantiate publicly
+  }
+
+  public static int getEnvInt(String name, int defaultValue) {
+    return (int) getEnvLong(name, defaultValue);
+  }
+
+  public static long getEnvLong(String name, long defaultValue) {
+    String value = System.getenv(name);
+
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " is not a number: " + value, e);
+    }
+  }
+}
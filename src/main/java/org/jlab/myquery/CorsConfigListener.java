@@ -23,9 +23,12 @@ public class CorsConfigListener implements ServletContextListener {
 
       ServletContext context = event.getServletContext();
 
-      FilterRegistration registration =
+      FilterRegistration.Dynamic registration =
           context.addFilter("CorsFilter", "org.apache.catalina.filters.CorsFilter");
 
+      // The query servlets handle requests asynchronously
+      registration.setAsyncSupported(true);
+
       registration.addMappingForUrlPatterns(null, false, "/*");
 
       registration.setInitParameter("cors.allowed.origins", origins);
@@ -0,0 +1,76 @@
+package org.jlab.myquery;
+
+import java.io.IOException;
+import org.jlab.mya.event.Event;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * An EventStream which ends early when a deadline passes, so a response can be ended cleanly with
+ * the events read so far and marked as partial. A read failing after the deadline (such as the
+ * database ending the query at its timeout) also ends the stream.
+ *
+ * @param <T> The event type
+ * @author agent
+ */
+public class DeadlineStream<T extends Event> extends EventStream<T> {
+
+  /** Events read between checks of the clock */
+  private static final int CHECK_INTERVAL = 256;
+
+  private final EventStream<T> wrapped;
+  private final long deadlineNanos;
+  private int untilCheck = 0;
+  private boolean expired = false;
+
+  /**
+   * Create a new DeadlineStream.
+   *
+   * @param wrapped The stream to read from
+   * @param deadlineNanos The System.nanoTime of the deadline
+   */
+  public DeadlineStream(EventStream<T> wrapped, long deadlineNanos) {
+    super(wrapped.getType());
+    this.wrapped = wrapped;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  @Override
+  public T read() throws IOException {
+    if (expired) {
+      return null;
+    }
+
+    if (--untilCheck <= 0) {
+      untilCheck = CHECK_INTERVAL;
+
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        expired = true;
+        return null;
+      }
+    }
+
+    try {
+      return wrapped.read();
+    } catch (IOException e) {
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        expired = true;
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Determine whether the stream was ended by the deadline, rather than running out of events.
+   *
+   * @return true if ended early
+   */
+  public boolean isExpired() {
+    return expired;
+  }
+
+  @Override
+  public void close() throws IOException {
+    wrapped.close();
+  }
+}
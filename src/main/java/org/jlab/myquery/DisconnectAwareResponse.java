@@ -0,0 +1,114 @@
+package org.jlab.myquery;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * A response which cancels the request's queries when writing to the client fails, since that
+ * means the client has gone away and the rest of the results would be discarded anyway. It also
+ * counts the bytes written, for the metrics.
+ *
+ * @author agent
+ */
+public class DisconnectAwareResponse extends HttpServletResponseWrapper {
+
+  private final QueryCanceller canceller;
+  private ServletOutputStream stream;
+  private long bytesWritten = 0;
+
+  public DisconnectAwareResponse(HttpServletResponse response, QueryCanceller canceller) {
+    super(response);
+    this.canceller = canceller;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (stream == null) {
+      stream = new DisconnectAwareOutputStream(super.getOutputStream());
+    }
+
+    return stream;
+  }
+
+  /**
+   * Get the bytes written to the output stream, before any compression.
+   *
+   * @return The bytes
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    try {
+      super.flushBuffer();
+    } catch (IOException e) {
+      canceller.cancel();
+      throw e;
+    }
+  }
+
+  private final class DisconnectAwareOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+
+    private DisconnectAwareOutputStream(ServletOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+        bytesWritten++;
+      } catch (IOException e) {
+        canceller.cancel();
+        throw e;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+        bytesWritten += len;
+      } catch (IOException e) {
+        canceller.cancel();
+        throw e;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        canceller.cancel();
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } catch (IOException e) {
+        canceller.cancel();
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean isReady() {
+      return out.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      out.setWriteListener(writeListener);
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package org.jlab.myquery;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import org.jlab.mya.event.*;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * Writes events as the elements of a JSON array directly into a reusable byte buffer, bypassing
+ * the generic JsonGenerator.
+ *
+ * <p>The keys (d, v, x, t, i) are pre-encoded, timestamps are written by a TimestampEncoder, float
+ * values by the SignificantFigureFormatter, and strings are escaped exactly as the JsonGenerator
+ * does, so the bytes are the same as those the QueryController write methods produce. The buffer
+ * is written to the output stream only when full (or on flush), in large chunks.
+ *
+ * <p>The array itself must already be started by the JsonGenerator, and the generator must be
+ * flushed before the events are written so the output stays in order; the generator then ends the
+ * array after this writer is flushed. Alternatively events can be written as lines (newline
+ * delimited JSON) instead of array elements. Not thread safe.
+ *
+ * @author agent
+ */
+public class EventArrayWriter implements Flushable {
+
+  /** The number of bytes buffered before writing to the output stream */
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final byte[] D_KEY = ascii("{\"d\":");
+  private static final byte[] V_KEY = ascii(",\"v\":");
+  private static final byte[] X_TRUE = ascii(",\"x\":true");
+  private static final byte[] T_KEY = ascii(",\"t\":");
+  private static final byte[] I_KEY = ascii(",\"i\":");
+
+  /** Large enough for any key plus number or timestamp */
+  private static final int MAX_FIELD_LENGTH = 64;
+
+  private final OutputStream out;
+  private final boolean formatAsMillisSinceEpoch;
+  private final boolean adjustMillisWithServerOffset;
+  private final TimestampEncoder timestampEncoder;
+  private final short sigFigs;
+  private final boolean lines;
+  private final byte[] buf = new byte[BUFFER_SIZE];
+  private int pos = 0;
+  private boolean first = true;
+
+  public EventArrayWriter(
+      OutputStream out,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs) {
+    this(
+        out,
+        formatAsMillisSinceEpoch,
+        adjustMillisWithServerOffset,
+        timestampFormatter,
+        sigFigs,
+        false);
+  }
+
+  /**
+   * Create a writer of array elements or lines.
+   *
+   * @param out The OutputStream
+   * @param formatAsMillisSinceEpoch true to format timestamps as millis since epoch
+   * @param adjustMillisWithServerOffset true to adjust timestamps to the server timezone offset
+   * @param timestampFormatter The timestamp formatter
+   * @param sigFigs The number of significant figures to round float values to
+   * @param lines true to end each event with a newline instead of separating them with commas
+   */
+  public EventArrayWriter(
+      OutputStream out,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs,
+      boolean lines) {
+    this.out = out;
+    this.formatAsMillisSinceEpoch = formatAsMillisSinceEpoch;
+    this.adjustMillisWithServerOffset = adjustMillisWithServerOffset;
+    this.timestampEncoder = TimestampEncoder.get(timestampFormatter);
+    this.sigFigs = sigFigs;
+    this.lines = lines;
+  }
+
+  /**
+   * Check whether events of a given type can be written.
+   *
+   * @param type The event type
+   * @return true if supported
+   */
+  public static boolean supports(Class<?> type) {
+    return type == IntEvent.class
+        || type == FloatEvent.class
+        || type == AnalyzedFloatEvent.class
+        || type == LabeledEnumEvent.class
+        || type == MultiStringEvent.class;
+  }
+
+  /**
+   * Write all events of a stream.
+   *
+   * @param stream The stream, of a supported type
+   * @return The number of events written
+   * @throws IOException If unable to read the stream or write the output
+   */
+  public long writeStream(EventStream<? extends Event> stream) throws IOException {
+    Class<?> type = stream.getType();
+
+    if (!supports(type)) {
+      throw new IllegalArgumentException("Unsupported data type: " + type);
+    }
+
+    long count = 0;
+    Event event;
+    while ((event = stream.read()) != null) {
+      count++;
+      writeEvent(event);
+    }
+    return count;
+  }
+
+  /**
+   * Write an event of a supported type.
+   *
+   * @param event The event
+   * @throws IOException If unable to write the output
+   */
+  public void writeEvent(Event event) throws IOException {
+    if (event instanceof AnalyzedFloatEvent) {
+      writeAnalyzedFloatEvent((AnalyzedFloatEvent) event);
+    } else if (event instanceof FloatEvent) {
+      writeFloatEvent((FloatEvent) event);
+    } else if (event instanceof LabeledEnumEvent) {
+      writeLabeledEnumEvent((LabeledEnumEvent) event);
+    } else if (event instanceof IntEvent) {
+      writeIntEvent((IntEvent) event);
+    } else if (event instanceof MultiStringEvent) {
+      writeMultiStringEvent((MultiStringEvent) event);
+    } else {
+      throw new IllegalArgumentException("Unsupported data type: " + event.getClass());
+    }
+  }
+
+  public void writeIntEvent(IntEvent event) throws IOException {
+    writeStart(event.getTimestampAsInstant());
+    if (!event.getCode().isDisconnection()) {
+      write(V_KEY);
+      writeLong(event.getValue());
+    }
+    writeEnd(event);
+  }
+
+  public void writeFloatEvent(FloatEvent event) throws IOException {
+    writeStart(event.getTimestampAsInstant());
+    if (!event.getCode().isDisconnection()) {
+      write(V_KEY);
+      pos = SignificantFigureFormatter.format(event.getValue(), sigFigs, buf, pos);
+    }
+    writeEnd(event);
+  }
+
+  public void writeAnalyzedFloatEvent(AnalyzedFloatEvent event) throws IOException {
+    writeStart(event.getTimestampAsInstant());
+    if (!event.getCode().isDisconnection()) {
+      write(V_KEY);
+      pos = SignificantFigureFormatter.format(event.getValue(), sigFigs, buf, pos);
+    }
+    writeDisconnectAndType(event);
+
+    // Only integration is supported, same as QueryController.writeAnalyzedFloatEvent
+    double[] stats = event.getEventStats();
+    if (stats != null && stats.length == 1) {
+      ensureCapacity(MAX_FIELD_LENGTH);
+      write(I_KEY);
+      pos = SignificantFigureFormatter.format(stats[0], sigFigs, buf, pos);
+    }
+    endObject();
+  }
+
+  public void writeLabeledEnumEvent(LabeledEnumEvent event) throws IOException {
+    writeStart(event.getTimestampAsInstant());
+    if (!event.getCode().isDisconnection()) {
+      write(V_KEY);
+      if (event.getLabel() == null) {
+        writeLong(event.getValue());
+      } else {
+        writeString(event.getLabel());
+      }
+    }
+    writeEnd(event);
+  }
+
+  public void writeMultiStringEvent(MultiStringEvent event) throws IOException {
+    writeStart(event.getTimestampAsInstant());
+    if (!event.getCode().isDisconnection()) {
+      write(V_KEY);
+      buf[pos++] = '[';
+      String[] values = event.getValue();
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          ensureCapacity(1);
+          buf[pos++] = ',';
+        }
+        writeString(values[i]);
+      }
+      ensureCapacity(1);
+      buf[pos++] = ']';
+    }
+    writeEnd(event);
+  }
+
+  /** Write everything buffered to the output stream and flush it. */
+  @Override
+  public void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  private void writeStart(Instant timestamp) throws IOException {
+    ensureCapacity(2 * MAX_FIELD_LENGTH);
+    if (first || lines) {
+      first = false;
+    } else {
+      buf[pos++] = ',';
+    }
+    write(D_KEY);
+
+    if (formatAsMillisSinceEpoch || adjustMillisWithServerOffset) {
+      // Same as FormatUtil.writeTimestampJSON
+      long millis =
+          (timestamp.getEpochSecond() * 1000) + (timestamp.getLong(ChronoField.MILLI_OF_SECOND));
+
+      if (adjustMillisWithServerOffset) {
+        millis = timestampEncoder.toLocalMillis(millis);
+      }
+
+      writeLong(millis);
+    } else {
+      buf[pos++] = '"';
+      pos = timestampEncoder.encode(timestamp, buf, pos);
+      buf[pos++] = '"';
+    }
+  }
+
+  private void writeEnd(Event event) throws IOException {
+    writeDisconnectAndType(event);
+    endObject();
+  }
+
+  private void endObject() throws IOException {
+    ensureCapacity(2);
+    buf[pos++] = '}';
+    if (lines) {
+      buf[pos++] = '\n';
+    }
+  }
+
+  private void writeDisconnectAndType(Event event) throws IOException {
+    ensureCapacity(MAX_FIELD_LENGTH);
+    if (event.getCode().isDisconnection()) {
+      write(X_TRUE);
+    }
+    if (!event.getCode().getDescription().isEmpty()) {
+      write(T_KEY);
+      writeString(event.getCode().name());
+    }
+  }
+
+  private void write(byte[] bytes) {
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      write(ascii(Long.toString(value)));
+      return;
+    }
+    if (value < 0) {
+      buf[pos++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    for (int i = pos + digits - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    pos += digits;
+  }
+
+  /** Writes a quoted string escaped the same way as the JsonGenerator. */
+  private void writeString(String value) throws IOException {
+    int length = value.length();
+    ensureCapacity(1);
+    buf[pos++] = '"';
+
+    int i = 0;
+    while (i < length) {
+      char c = value.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        ensureCapacity(2);
+        buf[pos++] = '\\';
+        buf[pos++] = (byte) c;
+        i++;
+      } else if (c < 0x20) {
+        ensureCapacity(6);
+        buf[pos++] = '\\';
+        switch (c) {
+          case '\b':
+            buf[pos++] = 'b';
+            break;
+          case '\f':
+            buf[pos++] = 'f';
+            break;
+          case '\n':
+            buf[pos++] = 'n';
+            break;
+          case '\r':
+            buf[pos++] = 'r';
+            break;
+          case '\t':
+            buf[pos++] = 't';
+            break;
+          default:
+            buf[pos++] = 'u';
+            buf[pos++] = '0';
+            buf[pos++] = '0';
+            buf[pos++] = (byte) Character.forDigit(c >> 4, 16);
+            buf[pos++] = (byte) Character.forDigit(c & 0xF, 16);
+        }
+        i++;
+      } else if (c < 0x80) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) c;
+        i++;
+      } else {
+        // Encode the run of characters needing no escape at once so surrogate pairs stay together
+        int end = i + 1;
+        while (end < length) {
+          char next = value.charAt(end);
+          if (next < 0x20 || next == '"' || next == '\\') {
+            break;
+          }
+          end++;
+        }
+        byte[] encoded = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+        writeBytes(encoded);
+        i = end;
+      }
+    }
+
+    ensureCapacity(1);
+    buf[pos++] = '"';
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    if (bytes.length > buf.length) {
+      drain();
+      out.write(bytes);
+    } else {
+      ensureCapacity(bytes.length);
+      write(bytes);
+    }
+  }
+
+  private void ensureCapacity(int length) throws IOException {
+    if (pos + length > buf.length) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    if (pos > 0) {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+}
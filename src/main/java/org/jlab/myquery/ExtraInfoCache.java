@@ -0,0 +1,197 @@
+package org.jlab.myquery;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.jlab.mya.ExtraInfo;
+import org.jlab.mya.Metadata;
+import org.jlab.mya.nexus.DataNexus;
+
+/**
+ * A cache of the complete ExtraInfo history (for example enum_strings) of each channel in a single
+ * deployment.
+ *
+ * <p>The full history of a channel is fetched once and requests for any time range are answered
+ * from memory by returning the entry in effect at the begin time followed by those up to and
+ * including the end time, just as DataNexus.findExtraInfo does. History before the time it was
+ * fetched never changes, but new entries may still be appended, so a request that reaches past the
+ * fetch time (the open-ended tail) triggers a query for just the newer entries once the tail is
+ * older than the tail time-to-live.
+ *
+ * <p>Configured with the environment variables EXTRA_INFO_CACHE_MAX_SIZE (default 10000, zero
+ * disables caching) and EXTRA_INFO_CACHE_TAIL_TTL_SECONDS (default 60).
+ *
+ * @author agent
+ */
+public class ExtraInfoCache {
+
+  public static final int MAX_SIZE = ConfigUtil.getEnvInt("EXTRA_INFO_CACHE_MAX_SIZE", 10000);
+  public static final long TAIL_TTL_NANOS =
+      ConfigUtil.getEnvLong("EXTRA_INFO_CACHE_TAIL_TTL_SECONDS", 60) * 1_000_000_000L;
+
+  /** Entries may be archived with a timestamp slightly before the time they are inserted */
+  private static final long TAIL_MARGIN_SECONDS = 60;
+
+  private static final Comparator<ExtraInfo> BY_TIMESTAMP =
+      Comparator.comparing(ExtraInfo::getTimestamp);
+
+  private final DataNexus nexus;
+  private final Map<String, History> historyMap;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder tailRefreshes = new LongAdder();
+
+  public ExtraInfoCache(DataNexus nexus) {
+    this.nexus = nexus;
+
+    // Access-ordered so the eldest entry is the least recently used
+    this.historyMap =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, History> eldest) {
+            return size() > MAX_SIZE;
+          }
+        };
+  }
+
+  /**
+   * Find the ExtraInfo of a given type for a channel over a time range.
+   *
+   * @param metadata The channel metadata
+   * @param type The ExtraInfo type, such as enum_strings
+   * @param begin The begin time, or null for the beginning of history
+   * @param end The end time, or null for the end of history
+   * @return The ExtraInfo list, ordered by timestamp
+   * @throws SQLException If unable to query the database
+   */
+  public List<ExtraInfo> findExtraInfo(Metadata metadata, String type, Instant begin, Instant end)
+      throws SQLException {
+    if (MAX_SIZE <= 0) {
+      misses.increment();
+      return nexus.findExtraInfo(metadata, type, begin, end);
+    }
+
+    String key = type + ":" + metadata.getName();
+    long now = System.nanoTime();
+    History history;
+
+    synchronized (historyMap) {
+      history = historyMap.get(key);
+    }
+
+    if (history == null) {
+      misses.increment();
+      history = load(metadata, type, now);
+    } else if ((end == null || end.isAfter(history.completeThrough))
+        && now - history.fetchedAt > TAIL_TTL_NANOS) {
+      tailRefreshes.increment();
+      history = refreshTail(history, metadata, type, now);
+    } else {
+      hits.increment();
+    }
+
+    synchronized (historyMap) {
+      historyMap.put(key, history);
+    }
+
+    return history.subList(begin, end);
+  }
+
+  private History load(Metadata metadata, String type, long now) throws SQLException {
+    Instant completeThrough = Instant.now().minusSeconds(TAIL_MARGIN_SECONDS);
+
+    List<ExtraInfo> entries = new ArrayList<>(nexus.findExtraInfo(metadata, type, null, null));
+    entries.sort(BY_TIMESTAMP);
+
+    return new History(entries, completeThrough, now);
+  }
+
+  private History refreshTail(History history, Metadata metadata, String type, long now)
+      throws SQLException {
+    Instant completeThrough = Instant.now().minusSeconds(TAIL_MARGIN_SECONDS);
+
+    List<ExtraInfo> tail = nexus.findExtraInfo(metadata, type, history.completeThrough, null);
+
+    List<ExtraInfo> entries = new ArrayList<>(history.entries.size() + tail.size());
+    for (ExtraInfo info : history.entries) {
+      if (info.getTimestamp().isBefore(history.completeThrough)) {
+        entries.add(info);
+      }
+    }
+    // The tail includes the entry in effect at the previous completeThrough, which we already have
+    for (ExtraInfo info : tail) {
+      if (!info.getTimestamp().isBefore(history.completeThrough)) {
+        entries.add(info);
+      }
+    }
+    entries.sort(BY_TIMESTAMP);
+
+    return new History(entries, completeThrough, now);
+  }
+
+  /** Discard all cached entries. */
+  public void clear() {
+    synchronized (historyMap) {
+      historyMap.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (historyMap) {
+      return historyMap.size();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getTailRefreshCount() {
+    return tailRefreshes.sum();
+  }
+
+  private static final class History {
+    private final List<ExtraInfo> entries;
+    private final Instant completeThrough;
+    private final long fetchedAt;
+
+    private History(List<ExtraInfo> entries, Instant completeThrough, long fetchedAt) {
+      this.entries = Collections.unmodifiableList(entries);
+      this.completeThrough = completeThrough;
+      this.fetchedAt = fetchedAt;
+    }
+
+    private List<ExtraInfo> subList(Instant begin, Instant end) {
+      int from = 0;
+      int to = entries.size();
+
+      if (begin != null) {
+        // Start with the entry in effect at begin (last one at or before it)
+        for (int i = 0; i < entries.size(); i++) {
+          if (entries.get(i).getTimestamp().isAfter(begin)) {
+            break;
+          }
+          from = i;
+        }
+      }
+
+      if (end != null) {
+        while (to > from && entries.get(to - 1).getTimestamp().isAfter(end)) {
+          to--;
+        }
+      }
+
+      return entries.subList(from, to);
+    }
+  }
+}
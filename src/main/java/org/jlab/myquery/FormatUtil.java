@@ -6,8 +6,6 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoField;
-import java.util.Calendar;
-import java.util.Date;
 import org.jlab.mya.TimeUtil;
 
 /**
@@ -89,12 +87,33 @@ public class FormatUtil {
           (timestamp.getEpochSecond() * 1000) + (timestamp.getLong(ChronoField.MILLI_OF_SECOND));
 
       if (formatAsMillisPlusLocalOffset) {
-        millis = getLocalTime(millis);
+        millis = TimestampEncoder.get(formatter).toLocalMillis(millis);
       }
 
       gen.write(name, millis);
     } else {
-      gen.write(name, timestamp.atZone(DEFAULT_ZONE).format(formatter));
+      gen.write(name, TimestampEncoder.get(formatter).format(timestamp));
+    }
+  }
+
+  /** Same as the named variant, but writes the timestamp as an array element. */
+  public static void writeTimestampJSON(
+      JsonGenerator gen,
+      Instant timestamp,
+      boolean formatAsMillisSinceEpoch,
+      boolean formatAsMillisPlusLocalOffset,
+      DateTimeFormatter formatter) {
+    if (formatAsMillisSinceEpoch || formatAsMillisPlusLocalOffset) {
+      long millis =
+          (timestamp.getEpochSecond() * 1000) + (timestamp.getLong(ChronoField.MILLI_OF_SECOND));
+
+      if (formatAsMillisPlusLocalOffset) {
+        millis = TimestampEncoder.get(formatter).toLocalMillis(millis);
+      }
+
+      gen.write(millis);
+    } else {
+      gen.write(TimestampEncoder.get(formatter).format(timestamp));
     }
   }
 
@@ -128,20 +147,23 @@ public class FormatUtil {
    * skipped hour). It probably is at least graphically doing what many of us envision daylight
    * savings to be doing so may be okay depending on your use-case.
    *
+   * <p>When formatting many timestamps use TimestampEncoder.toLocalMillis, which caches the offset
+   * until the next daylight savings change.
+   *
    * @param millisSinceEpoch The milliseconds since Epoch in UTC
    * @return milliseconds since Epoch adjusted with local time offset
    */
   public static long getLocalTime(long millisSinceEpoch) {
-    Calendar cal = Calendar.getInstance();
-    cal.setTime(new Date(millisSinceEpoch));
     // Here is where timezone database is used to lookup offsets for both zone and day light savings
-    long localOffset = cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET);
+    long localOffset =
+        DEFAULT_ZONE.getRules().getOffset(Instant.ofEpochMilli(millisSinceEpoch)).getTotalSeconds()
+            * 1000L;
 
     // Example: Nov. 3 01:00 2019 EST is -05:00 or 1572757200000 milliseconds from Epoch
     // But in UTC that would be Nov. 3 06:00 2019.  So we can adjust it back by adding the -5 hour
     // EST offset
     // Note: Nov. 3 01:00 2019 EDT is -04:00.   At 02:00 time "falls back" to 01:00 EST.
 
-    return cal.getTimeInMillis() + localOffset;
+    return millisSinceEpoch + localOffset;
   }
 }
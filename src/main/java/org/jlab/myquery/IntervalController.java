@@ -1,6 +1,5 @@
 package org.jlab.myquery;
 
-import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -9,11 +8,14 @@ import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.sql.SQLTimeoutException;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jlab.mya.*;
@@ -27,11 +29,24 @@ import org.jlab.mya.stream.LabeledEnumStream;
  */
 @WebServlet(
     name = "IntervalController",
-    urlPatterns = {"/interval"})
+    urlPatterns = {"/interval"},
+    asyncSupported = true)
 public class IntervalController extends QueryController {
 
   private static final Logger LOGGER = Logger.getLogger(IntervalController.class.getName());
 
+  public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+  /** The max events written to an NDJSON response before it is flushed to the client */
+  public static final int NDJSON_FLUSH_EVENTS = ConfigUtil.getEnvInt("NDJSON_FLUSH_EVENTS", 1000);
+
+  /** The max milliseconds events are held before an NDJSON response is flushed to the client */
+  public static final long NDJSON_FLUSH_MILLIS = ConfigUtil.getEnvLong("NDJSON_FLUSH_MILLIS", 250);
+
+  /** The seconds a request's queries may take unless the client asks for another timeout */
+  public static final long DEADLINE_SECONDS =
+      ConfigUtil.getEnvLong("INTERVAL_DEADLINE_SECONDS", 300);
+
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -45,14 +60,26 @@ public class IntervalController extends QueryController {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
     String jsonp = request.getParameter("jsonp");
+    String format = request.getParameter("format");
+    boolean arrow = jsonp == null && isArrowRequested(format, request.getHeader("Accept"));
+    boolean ndjson =
+        jsonp == null && !arrow && isNdjsonRequested(format, request.getHeader("Accept"));
+    ResponseEncoding encoding = getResponseEncoding(request, response);
 
     if (jsonp != null) {
       response.setContentType("application/javascript");
+    } else if (arrow) {
+      response.setContentType(ArrowIpcWriter.CONTENT_TYPE);
+    } else if (ndjson) {
+      response.setContentType(NDJSON_CONTENT_TYPE);
     } else {
-      response.setContentType("application/json");
+      response.setContentType(encoding.getContentType());
     }
 
     String errorReason = null;
+    boolean timedOut = false;
+    boolean rejected = false;
+    long deadlineSeconds = 0;
     EventStream stream = null;
     Event priorEvent = null;
     Long count = null;
@@ -74,8 +101,97 @@ public class IntervalController extends QueryController {
     String v = request.getParameter("v");
     String t = request.getParameter("t");
     String i = request.getParameter("i");
+    String w = request.getParameter("w");
+    String o = request.getParameter("o");
+
+    // Phases are timed for the Server-Timing header, and written in the response if requested
+    ServerTiming timing = new ServerTiming();
+    boolean timingRequested = request.getParameter("timing") != null;
+
+    String cacheKey = getCacheKey(request, encoding);
+    // Only JSON and CBOR responses are cached, and not with timing, which differs every time
+    ResponseCache.CachedResponse cached =
+        (arrow || ndjson || timingRequested) ? null : ResponseCache.INTERVAL_CACHE.get(cacheKey);
+
+    if (cached != null) {
+      writeCachedResponse(response, jsonp, cached.getBody(), cached.isSampled(), false);
+      return;
+    }
+
+    // Started before waiting for an identical request, so the wait counts against the deadline
+    String deadlineError = null;
+    try {
+      deadlineSeconds = startDeadline(request.getParameter("timeout"), DEADLINE_SECONDS);
+    } catch (IllegalArgumentException ex) {
+      deadlineError = ex.getMessage();
+    }
+
+    // Identical JSON and CBOR requests in flight share one query and its serialized response
+    SingleFlight<IntervalWebService.SharedResponse>.Flight flight = null;
+    if (!arrow && !ndjson && !timingRequested && deadlineError == null) {
+      flight = IntervalWebService.RESPONSE_FLIGHTS.join(cacheKey);
+
+      if (!flight.isLeader()) {
+        long waitMillis = IntervalWebService.SINGLE_FLIGHT_WAIT_MILLIS;
+        QueryCanceller canceller = QueryCanceller.current();
+        if (canceller != null && canceller.hasDeadline()) {
+          long remainingNanos = canceller.getDeadlineNanos() - System.nanoTime();
+          waitMillis = Math.min(waitMillis, Math.max(remainingNanos / 1_000_000, 0));
+        }
+
+        IntervalWebService.SharedResponse shared;
+        // Waiting doesn't query, so the deployment's other requests may run meanwhile
+        leaveBulkhead(request);
+        try {
+          shared = flight.await(waitMillis);
+
+          // Out of time, the request only reports that, so it needs no permit
+          if (shared == null && !QueryCanceller.isCurrentExpired()) {
+            reenterBulkhead(request);
+          }
+        } catch (Bulkhead.FullException ex) {
+          sendRejection(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, ex.getMessage());
+          return;
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new ServletException("Interrupted while waiting for an identical request", ex);
+        }
+
+        if (shared != null) {
+          writeCachedResponse(
+              response, jsonp, shared.getBody(), shared.isSampled(), shared.isLive());
+          return;
+        }
+
+        // The leader had nothing to share in time, so do the query, but without leading
+        flight = null;
+      }
+    }
+
+    boolean cacheable = false;
+    boolean live = false;
+    boolean streamWriter = false;
+    boolean columnar = false;
+    boolean deltaTimestamps = isCompactLayout(o);
 
     try {
+      if (format != null
+          && !format.equals("json")
+          && !format.equals("cbor")
+          && !format.equals("arrow")
+          && !format.equals("ndjson")) {
+        throw new Exception("Unrecognized format: '" + format + "'");
+      }
+      if (deadlineError != null) {
+        throw new IllegalArgumentException(deadlineError);
+      }
+      if (QueryCanceller.isCurrentExpired()) {
+        throw new SQLTimeoutException("Query deadline exceeded waiting for an identical request");
+      }
+      // The stream writer only writes JSON
+      streamWriter = useEventArrayWriter(w) && encoding == ResponseEncoding.JSON;
+      columnar = useColumnarLayout(o);
+
       if (c == null || c.trim().isEmpty()) {
         throw new Exception("Channel (c) is required");
       }
@@ -100,6 +216,17 @@ public class IntervalController extends QueryController {
       Instant begin = LocalDateTime.parse(b).atZone(ZoneId.systemDefault()).toInstant();
       Instant end = LocalDateTime.parse(e).atZone(ZoneId.systemDefault()).toInstant();
 
+      long limit = -1;
+
+      if (l != null && !l.trim().isEmpty()) {
+        limit = Long.parseLong(l);
+      }
+
+      if (columnar) {
+        // Sampling to the limit bounds the events buffered
+        ColumnarEventWriter.checkMaxEvents(limit, "a limit (l)");
+      }
+
       String deployment = "ops";
 
       if (m != null && !m.trim().isEmpty()) {
@@ -108,6 +235,7 @@ public class IntervalController extends QueryController {
 
       IntervalWebService service = new IntervalWebService(deployment);
 
+      timing.begin("metadata");
       metadata = service.findMetadata(c);
 
       if (metadata == null) {
@@ -119,16 +247,15 @@ public class IntervalController extends QueryController {
       boolean enumsAsStrings = (s != null);
 
       if (p != null || (t != null && t.equals("mysampler"))) { // Include prior point
+        timing.begin("prior");
         PointWebService pointService = new PointWebService(deployment);
         priorEvent =
             pointService.findEvent(metadata, updatesOnly, begin, true, false, enumsAsStrings);
       }
 
-      long limit = -1;
-
       if (l != null && !l.trim().isEmpty()) {
-        limit = Long.parseLong(l);
         // We were given a limit so we must count
+        timing.begin("count");
         count = service.count(metadata, updatesOnly, begin, end);
         // This query seems to take about 0.1 second, so we only do it if necessary
 
@@ -142,19 +269,29 @@ public class IntervalController extends QueryController {
         }
       }
 
+      // Expensive requests wait for one of a few slots, leaving connections for cheap requests
+      timing.begin("admit");
+      AdmissionControl.admitCost(
+          request,
+          count != null ? count : AdmissionControl.estimateEvents(begin, end));
+
       if (end.isAfter(
           Instant.now())) { // Don't tell client to cache response if contains future bounds!
         CacheAndEncodingFilter.disableCaching(response);
+        live = true;
       } else { // Let's cache, but only share value (proxy servers) if sampled
         if (!sample) {
           response.setHeader("Cache-Control", "private");
         }
+        cacheable =
+            !arrow && !ndjson && !timingRequested && ResponseCache.INTERVAL_CACHE.isCacheable(end);
       }
 
       boolean integrate = i != null && (t != null && !t.trim().isEmpty());
 
       Class type = metadata.getType();
 
+      timing.begin("open");
       if (sample) {
         if (type != FloatEvent.class) {
           throw new IllegalArgumentException("Only float events can be sampled");
@@ -181,16 +318,41 @@ public class IntervalController extends QueryController {
       }
 
       if (metadata.getMyaType() == MyaDataType.DBR_ENUM) {
+        timing.begin("extraInfo");
         enumLabels = service.findExtraInfo(metadata, "enum_strings", begin, end);
 
         if (enumsAsStrings) {
           stream = new LabeledEnumStream((EventStream<IntEvent>) stream, enumLabels);
         }
       }
+
+      timing.end();
+
+      if (timingRequested) {
+        // Inside any DeadlineStream, so the data can still be recognized as partial
+        stream = timing.timeReads(stream);
+      }
+
+      if (deadlineSeconds > 0) {
+        // Ends the data early, marked partial, rather than failing mid-response
+        stream = new DeadlineStream(stream, QueryCanceller.current().getDeadlineNanos());
+      }
     } catch (Exception ex) {
-      LOGGER.log(Level.SEVERE, "Unable to service request", ex);
       errorReason = ex.getMessage();
 
+      if (isRejected(ex, response)) {
+        rejected = true;
+        LOGGER.log(Level.INFO, "Request refused: " + errorReason);
+      } else {
+        LOGGER.log(Level.SEVERE, "Unable to service request", ex);
+      }
+
+      if (deadlineSeconds > 0 && isDeadlineExceeded(ex)) {
+        timedOut = true;
+        errorReason = "Query deadline of " + deadlineSeconds + " seconds exceeded";
+        QueryCanceller.recordExpired();
+      }
+
       try {
         if (stream != null) {
           stream.close();
@@ -201,74 +363,118 @@ public class IntervalController extends QueryController {
       }
     }
 
-    DateTimeFormatter timestampFormatter = FormatUtil.getInstantFormatter(f);
-    short sigFigs = FormatUtil.getSignificantFigures(v);
-    boolean formatAsMillisSinceEpoch = (u != null);
-    boolean adjustMillisWithServerOffset = (a != null);
+    timing.end();
+
+    if (!response.isCommitted()) {
+      response.setHeader("Server-Timing", timing.toHeader());
+    }
 
     try {
+      DateTimeFormatter timestampFormatter = FormatUtil.getInstantFormatter(f);
+      short sigFigs = FormatUtil.getSignificantFigures(v);
+      boolean formatAsMillisSinceEpoch = (u != null);
+      boolean adjustMillisWithServerOffset = (a != null);
+
+      if (arrow && errorReason == null) {
+        writeArrow(response.getOutputStream(), c, metadata, stream, sample, count, t);
+        return;
+      } else if (ndjson && errorReason == null) {
+        writeNdjson(
+            response,
+            metadata,
+            enumLabels,
+            sample,
+            count,
+            t,
+            stream,
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter,
+            sigFigs,
+            timingRequested ? timing : null);
+        return;
+      } else if (arrow || ndjson) {
+        response.setContentType(encoding.getContentType());
+      }
+
       OutputStream out = response.getOutputStream();
 
       if (jsonp != null) {
         out.write((jsonp + "(").getBytes(StandardCharsets.UTF_8));
       }
 
-      try (JsonGenerator gen = Json.createGenerator(out)) {
+      boolean partial = false;
+      ResponseCache.CaptureOutputStream capture = null;
+      if ((cacheable || flight != null) && errorReason == null) {
+        long limit = 0;
+        if (cacheable) {
+          limit = ResponseCache.INTERVAL_CACHE.getMaxEntryBytes();
+        }
+        if (flight != null) {
+          limit = Math.max(limit, IntervalWebService.SINGLE_FLIGHT_MAX_ENTRY_BYTES);
+        }
+        // Too big to share, so don't keep identical requests waiting
+        capture =
+            new ResponseCache.CaptureOutputStream(
+                out, limit, flight == null ? null : flight::abandon);
+      }
+
+      OutputStream genOut = capture == null ? out : capture;
+
+      try (JsonGenerator gen = encoding.createGenerator(genOut)) {
         gen.writeStartObject();
 
         if (errorReason != null) {
-          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+          response.setStatus(
+              timedOut
+                  ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                  : rejected ? SC_TOO_MANY_REQUESTS : HttpServletResponse.SC_BAD_REQUEST);
           gen.write("error", errorReason);
         } else {
-          if (metadata != null) {
-            gen.write("datatype", metadata.getMyaType().name());
-            gen.write("datasize", metadata.getSize());
-            gen.write("datahost", metadata.getHost());
-            if (metadata.getIoc() == null) {
-              gen.writeNull("ioc");
-            } else {
-              gen.write("ioc", metadata.getIoc());
-            }
-            gen.write("active", metadata.isActive());
-          }
-
-          if (enumLabels != null && enumLabels.size() > 0) {
-            gen.writeStartArray("labels");
-            for (ExtraInfo info : enumLabels) {
-              gen.writeStartObject();
-              FormatUtil.writeTimestampJSON(
-                  gen,
-                  "d",
-                  info.getTimestamp(),
-                  formatAsMillisSinceEpoch,
-                  adjustMillisWithServerOffset,
-                  timestampFormatter);
-              gen.writeStartArray("value");
-              for (String token : info.getValueAsArray()) {
-                if (token != null && !token.isEmpty()) {
-                  gen.write(token);
-                }
-              }
-              gen.writeEnd();
-              gen.writeEnd();
-            }
-            gen.writeEnd();
-          }
-
-          gen.write("sampled", sample);
-
-          if (count != null) {
-            gen.write("count", count);
-          }
-          if (sample) {
-            gen.write("sampleType", t);
+          writeHeader(
+              gen,
+              metadata,
+              enumLabels,
+              sample,
+              count,
+              t,
+              formatAsMillisSinceEpoch,
+              adjustMillisWithServerOffset,
+              timestampFormatter);
+
+          if (columnar) {
+            gen.writeStartObject("data");
+          } else {
+            gen.writeStartArray("data");
           }
 
-          gen.writeStartArray("data");
-
           long dataLength = 0;
+          long writeStart = System.nanoTime();
           if (stream == null) {
             // Didn't get a stream so presumably there is an errorReason
+          } else if (columnar && ColumnarEventWriter.supports(stream.getType())) {
+            dataLength =
+                generateColumns(
+                    gen,
+                    genOut,
+                    encoding,
+                    stream,
+                    formatAsMillisSinceEpoch,
+                    adjustMillisWithServerOffset,
+                    timestampFormatter,
+                    sigFigs,
+                    deltaTimestamps,
+                    0);
+          } else if (streamWriter && EventArrayWriter.supports(stream.getType())) {
+            dataLength =
+                generateEventArray(
+                    gen,
+                    genOut,
+                    stream,
+                    formatAsMillisSinceEpoch,
+                    adjustMillisWithServerOffset,
+                    timestampFormatter,
+                    sigFigs);
           } else if (stream.getType() == IntEvent.class) {
             dataLength =
                 generateIntStream(
@@ -317,15 +523,49 @@ public class IntervalController extends QueryController {
           gen.writeEnd();
 
           gen.write("returnCount", dataLength);
+          getMetrics().addEvents(dataLength);
+          getMetrics().addResponse(sample);
+
+          if (isPartial(stream)) {
+            partial = true;
+            gen.write("partial", true);
+          }
+
+          if (timingRequested) {
+            timing.addWrite(System.nanoTime() - writeStart);
+            timing.write("timing", gen);
+          }
         }
         gen.writeEnd();
 
         gen.flush();
       }
+
+      // A partial response is neither shared nor cached
+      byte[] captured = capture == null || partial ? null : capture.getCapturedBytes();
+
+      if (captured != null
+          && flight != null
+          && captured.length <= IntervalWebService.SINGLE_FLIGHT_MAX_ENTRY_BYTES) {
+        flight.complete(new IntervalWebService.SharedResponse(captured, sample, live));
+      }
+
+      if (captured != null
+          && cacheable
+          && captured.length <= ResponseCache.INTERVAL_CACHE.getMaxEntryBytes()) {
+        ResponseCache.INTERVAL_CACHE.put(
+            cacheKey, new ResponseCache.CachedResponse(captured, sample));
+      }
+
       if (jsonp != null) {
         out.write((");").getBytes(StandardCharsets.UTF_8));
       }
     } finally {
+      // No effect if the response was shared
+      if (flight != null) {
+        flight.abandon();
+      }
+
       try {
         if (stream != null) {
           stream.close();
@@ -335,4 +575,299 @@ public class IntervalController extends QueryController {
       }
     }
   }
+
+  /**
+   * Determine whether the data was ended early by the request deadline, counting it if so.
+   *
+   * @param stream The stream, which may be a DeadlineStream
+   * @return true if partial
+   */
+  private static boolean isPartial(EventStream<?> stream) {
+    if (stream instanceof DeadlineStream && ((DeadlineStream<?>) stream).isExpired()) {
+      QueryCanceller.recordExpired();
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Determine whether the response should be in the Arrow IPC streaming format, either because the
+   * format parameter is arrow, or because there is no format parameter and the Accept header
+   * includes the Arrow stream media type.
+   *
+   * @param format The format parameter: json, arrow, or null
+   * @param accept The Accept header, or null
+   * @return true for Arrow
+   */
+  private static boolean isArrowRequested(String format, String accept) {
+    if (format != null) {
+      return format.equals("arrow");
+    }
+
+    return ResponseEncoding.accepts(accept, ArrowIpcWriter.CONTENT_TYPE);
+  }
+
+  /**
+   * Determine whether the response should be newline delimited JSON, either because the format
+   * parameter is ndjson, or because there is no format parameter and the Accept header includes the
+   * NDJSON media type.
+   *
+   * @param format The format parameter: json, ndjson, or null
+   * @param accept The Accept header, or null
+   * @return true for NDJSON
+   */
+  private static boolean isNdjsonRequested(String format, String accept) {
+    if (format != null) {
+      return format.equals("ndjson");
+    }
+
+    return ResponseEncoding.accepts(accept, NDJSON_CONTENT_TYPE);
+  }
+
+  /** Write the top level members which precede the data. */
+  private void writeHeader(
+      JsonGenerator gen,
+      Metadata metadata,
+      List<ExtraInfo> enumLabels,
+      boolean sample,
+      Long count,
+      String sampleType,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter) {
+    if (metadata != null) {
+      gen.write("datatype", metadata.getMyaType().name());
+      gen.write("datasize", metadata.getSize());
+      gen.write("datahost", metadata.getHost());
+      if (metadata.getIoc() == null) {
+        gen.writeNull("ioc");
+      } else {
+        gen.write("ioc", metadata.getIoc());
+      }
+      gen.write("active", metadata.isActive());
+    }
+
+    if (enumLabels != null && enumLabels.size() > 0) {
+      gen.writeStartArray("labels");
+      for (ExtraInfo info : enumLabels) {
+        gen.writeStartObject();
+        FormatUtil.writeTimestampJSON(
+            gen,
+            "d",
+            info.getTimestamp(),
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter);
+        gen.writeStartArray("value");
+        for (String token : info.getValueAsArray()) {
+          if (token != null && !token.isEmpty()) {
+            gen.write(token);
+          }
+        }
+        gen.writeEnd();
+        gen.writeEnd();
+      }
+      gen.writeEnd();
+    }
+
+    gen.write("sampled", sample);
+
+    if (count != null) {
+      gen.write("count", count);
+    }
+    if (sample) {
+      gen.write("sampleType", sampleType);
+    }
+  }
+
+  /**
+   * Write the response as newline delimited JSON: a header line with the same members as the JSON
+   * response has before the data, a line per event, and a final line with the returnCount (and the
+   * timing object, if requested). The header is sent immediately, and events every
+   * NDJSON_FLUSH_EVENTS events or NDJSON_FLUSH_MILLIS milliseconds, whichever is first, so clients
+   * can render progressively.
+   */
+  private void writeNdjson(
+      HttpServletResponse response,
+      Metadata metadata,
+      List<ExtraInfo> enumLabels,
+      boolean sample,
+      Long count,
+      String sampleType,
+      EventStream<? extends Event> stream,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs,
+      ServerTiming timing)
+      throws IOException, ServletException {
+    if (!EventArrayWriter.supports(stream.getType())) {
+      throw new ServletException("Unsupported data type: " + stream.getClass());
+    }
+
+    OutputStream out = response.getOutputStream();
+
+    // Not closed, since that would close the response before the events are written
+    JsonGenerator gen = ResponseEncoding.JSON.createGenerator(out);
+    gen.writeStartObject();
+    writeHeader(
+        gen,
+        metadata,
+        enumLabels,
+        sample,
+        count,
+        sampleType,
+        formatAsMillisSinceEpoch,
+        adjustMillisWithServerOffset,
+        timestampFormatter);
+    gen.writeEnd();
+    gen.flush();
+    out.write('\n');
+    response.flushBuffer();
+
+    EventArrayWriter writer =
+        new EventArrayWriter(
+            out,
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter,
+            sigFigs,
+            true);
+
+    long dataLength = 0;
+    long writeStart = System.nanoTime();
+    long unflushed = 0;
+    long flushNanos = System.nanoTime() + NDJSON_FLUSH_MILLIS * 1_000_000L;
+    Event event;
+    while ((event = stream.read()) != null) {
+      dataLength++;
+      writer.writeEvent(event);
+
+      if (++unflushed >= NDJSON_FLUSH_EVENTS || System.nanoTime() - flushNanos >= 0) {
+        writer.flush();
+        response.flushBuffer();
+        unflushed = 0;
+        flushNanos = System.nanoTime() + NDJSON_FLUSH_MILLIS * 1_000_000L;
+      }
+    }
+    writer.flush();
+
+    String partial = isPartial(stream) ? ",\"partial\":true" : "";
+    String timed = "";
+    if (timing != null) {
+      timing.addWrite(System.nanoTime() - writeStart);
+      timed = ",\"timing\":" + timing.toJson();
+    }
+    out.write(
+        ("{\"returnCount\":" + dataLength + partial + timed + "}\n")
+            .getBytes(StandardCharsets.UTF_8));
+    out.flush();
+
+    getMetrics().addEvents(dataLength);
+    getMetrics().addResponse(sample);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeArrow(
+      OutputStream out,
+      String channel,
+      Metadata metadata,
+      EventStream stream,
+      boolean sample,
+      Long count,
+      String sampleType)
+      throws IOException, ServletException {
+    if (!ArrowIpcWriter.supports(stream.getType())) {
+      throw new ServletException("Unsupported data type: " + stream.getClass());
+    }
+
+    // The JSON response's top level members, as schema metadata
+    Map<String, String> schemaMetadata = new LinkedHashMap<>();
+    schemaMetadata.put("channel", channel);
+    schemaMetadata.put("datatype", metadata.getMyaType().name());
+    schemaMetadata.put("datasize", String.valueOf(metadata.getSize()));
+    schemaMetadata.put("datahost", metadata.getHost());
+    schemaMetadata.put("sampled", String.valueOf(sample));
+    if (count != null) {
+      schemaMetadata.put("count", String.valueOf(count));
+    }
+    if (sample) {
+      schemaMetadata.put("sampleType", sampleType);
+    }
+
+    long dataLength =
+        new ArrowIpcWriter(out, stream.getType(), schemaMetadata).writeStream(stream);
+
+    getMetrics().addEvents(dataLength);
+    getMetrics().addResponse(sample);
+  }
+
+  /**
+   * Build the response cache key from the request parameters which affect the response body.
+   * Parameters which are flags (only presence matters) are normalized to their presence, and dates
+   * are normalized the same way they are parsed.
+   *
+   * @param request The request
+   * @param encoding The response encoding
+   * @return The cache key
+   */
+  private static String getCacheKey(HttpServletRequest request, ResponseEncoding encoding) {
+    String m = request.getParameter("m");
+    String deployment = (m == null || m.trim().isEmpty()) ? "ops" : m;
+
+    StringBuilder key = new StringBuilder(deployment);
+    key.append('|').append(encoding);
+    key.append('|').append(request.getParameter("c"));
+    key.append('|').append(normalizeDate(request.getParameter("b")));
+    key.append('|').append(normalizeDate(request.getParameter("e")));
+    for (String name : new String[] {"l", "t", "f", "v", "o"}) {
+      String value = request.getParameter(name);
+      key.append('|').append(value == null ? "" : value.trim());
+    }
+    for (String name : new String[] {"d", "p", "i", "s", "u", "a"}) {
+      key.append('|').append(request.getParameter(name) != null);
+    }
+
+    return key.toString();
+  }
+
+  private static String normalizeDate(String date) {
+    if (date == null) {
+      return null;
+    }
+
+    date = date.replace(' ', 'T');
+
+    if (date.length() == 10) {
+      date = date + "T00:00:00";
+    }
+
+    return date;
+  }
+
+  private void writeCachedResponse(
+      HttpServletResponse response, String jsonp, byte[] body, boolean sampled, boolean live)
+      throws IOException {
+    getMetrics().addResponse(sampled);
+
+    // Same headers as when the response was first generated
+    if (live) {
+      CacheAndEncodingFilter.disableCaching(response);
+    } else if (!sampled) {
+      response.setHeader("Cache-Control", "private");
+    }
+
+    OutputStream out = response.getOutputStream();
+
+    if (jsonp != null) {
+      out.write((jsonp + "(").getBytes(StandardCharsets.UTF_8));
+    }
+
+    out.write(body);
+
+    if (jsonp != null) {
+      out.write((");").getBytes(StandardCharsets.UTF_8));
+    }
+  }
 }
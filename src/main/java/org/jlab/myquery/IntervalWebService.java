@@ -15,6 +15,33 @@ import org.jlab.mya.stream.*;
  */
 public class IntervalWebService extends QueryWebService {
 
+  /** The largest response shared with identical requests in flight */
+  public static final long SINGLE_FLIGHT_MAX_ENTRY_BYTES =
+      ConfigUtil.getEnvLong("SINGLE_FLIGHT_MAX_ENTRY_BYTES", 4L * 1024 * 1024);
+
+  /** The memory available for holding responses for identical requests in flight */
+  public static final long SINGLE_FLIGHT_MEMORY_BYTES =
+      ConfigUtil.getEnvLong("SINGLE_FLIGHT_MEMORY_BYTES", 128L * 1024 * 1024);
+
+  /** The max milliseconds a request waits for an identical request in flight to finish */
+  public static final long SINGLE_FLIGHT_WAIT_MILLIS =
+      ConfigUtil.getEnvLong("SINGLE_FLIGHT_WAIT_MILLIS", 30000);
+
+  /**
+   * Identical requests in flight at once share one query and its serialized response. Each flight
+   * holds at most SINGLE_FLIGHT_MAX_ENTRY_BYTES, so the number of flights bounds the memory used.
+   */
+  public static final SingleFlight<SharedResponse> RESPONSE_FLIGHTS =
+      new SingleFlight<>(
+          SINGLE_FLIGHT_MAX_ENTRY_BYTES <= 0
+              ? 0
+              : (int) Math.min(
+                  Integer.MAX_VALUE, SINGLE_FLIGHT_MEMORY_BYTES / SINGLE_FLIGHT_MAX_ENTRY_BYTES));
+
+  /** Identical /mystats calculations in flight at once share one set of queries */
+  public static final SingleFlight<MyStatsResults> STATS_FLIGHTS =
+      new SingleFlight<>(ConfigUtil.getEnvInt("SINGLE_FLIGHT_MAX_STATS_QUERIES", 100));
+
   private final DataNexus nexus;
 
   public IntervalWebService(String deployment) {
@@ -22,12 +49,12 @@ public class IntervalWebService extends QueryWebService {
   }
 
   public Metadata findMetadata(String c) throws SQLException {
-    return nexus.findMetadata(c);
+    return findCachedMetadata(nexus, c);
   }
 
   public List<ExtraInfo> findExtraInfo(Metadata metadata, String type, Instant begin, Instant end)
       throws SQLException {
-    return nexus.findExtraInfo(metadata, type, begin, end);
+    return findCachedExtraInfo(nexus, metadata, type, begin, end);
   }
 
   @SuppressWarnings("unchecked")
@@ -202,4 +229,34 @@ public class IntervalWebService extends QueryWebService {
 
     return stream;
   }
+
+  /** A serialized response body plus what is needed to reproduce its headers. */
+  public static final class SharedResponse {
+    private final byte[] body;
+    private final boolean sampled;
+    private final boolean live;
+
+    public SharedResponse(byte[] body, boolean sampled, boolean live) {
+      this.body = body;
+      this.sampled = sampled;
+      this.live = live;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public boolean isSampled() {
+      return sampled;
+    }
+
+    /**
+     * Determine whether the time window extends into the future, so clients must not cache it.
+     *
+     * @return true if live
+     */
+    public boolean isLive() {
+      return live;
+    }
+  }
 }
@@ -0,0 +1,128 @@
+package org.jlab.myquery;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.jlab.mya.Metadata;
+import org.jlab.mya.nexus.DataNexus;
+
+/**
+ * A bounded, expiring cache of channel Metadata for a single deployment.
+ *
+ * <p>Channel metadata rarely changes, yet every query looks it up before reading any data. Entries
+ * are held for a configurable time-to-live and the least recently used entries are evicted once
+ * the cache is full. Unknown channels are cached too (as a negative result), but with a shorter
+ * time-to-live so that newly archived channels show up quickly.
+ *
+ * <p>Configured with the environment variables METADATA_CACHE_MAX_SIZE (default 10000, zero
+ * disables caching), METADATA_CACHE_TTL_SECONDS (default 600), and
+ * METADATA_CACHE_NEGATIVE_TTL_SECONDS (default 60).
+ *
+ * @author agent
+ */
+public class MetadataCache {
+
+  public static final int MAX_SIZE = ConfigUtil.getEnvInt("METADATA_CACHE_MAX_SIZE", 10000);
+  public static final long TTL_NANOS =
+      ConfigUtil.getEnvLong("METADATA_CACHE_TTL_SECONDS", 600) * 1_000_000_000L;
+  public static final long NEGATIVE_TTL_NANOS =
+      ConfigUtil.getEnvLong("METADATA_CACHE_NEGATIVE_TTL_SECONDS", 60) * 1_000_000_000L;
+
+  private final DataNexus nexus;
+  private final Map<String, Entry> entryMap;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+
+  public MetadataCache(DataNexus nexus) {
+    this.nexus = nexus;
+
+    // Access-ordered so the eldest entry is the least recently used
+    this.entryMap =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+          }
+        };
+  }
+
+  /**
+   * Find the Metadata for the named channel, querying the database only if it is not cached or the
+   * cached entry has expired.
+   *
+   * @param name The channel name
+   * @return The Metadata or null if the channel does not exist
+   * @throws SQLException If unable to query the database
+   */
+  public Metadata findMetadata(String name) throws SQLException {
+    if (MAX_SIZE <= 0) {
+      misses.increment();
+      return nexus.findMetadata(name);
+    }
+
+    long now = System.nanoTime();
+    Entry entry;
+
+    synchronized (entryMap) {
+      entry = entryMap.get(name);
+    }
+
+    if (entry != null && entry.expiresAt - now > 0) {
+      hits.increment();
+      if (entry.metadata == null) {
+        negativeHits.increment();
+      }
+      return entry.metadata;
+    }
+
+    misses.increment();
+
+    // Query outside of the lock; a concurrent miss on the same channel just does a redundant lookup
+    Metadata metadata = nexus.findMetadata(name);
+
+    entry = new Entry(metadata, now + (metadata == null ? NEGATIVE_TTL_NANOS : TTL_NANOS));
+
+    synchronized (entryMap) {
+      entryMap.put(name, entry);
+    }
+
+    return metadata;
+  }
+
+  /** Discard all cached entries. */
+  public void clear() {
+    synchronized (entryMap) {
+      entryMap.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (entryMap) {
+      return entryMap.size();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getNegativeHitCount() {
+    return negativeHits.sum();
+  }
+
+  private static final class Entry {
+    private final Metadata metadata;
+    private final long expiresAt;
+
+    private Entry(Metadata metadata, long expiresAt) {
+      this.metadata = metadata;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package org.jlab.myquery;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Request and query metrics in the Prometheus text exposition format.
+ *
+ * @author agent
+ */
+@WebServlet(
+    name = "MetricsController",
+    urlPatterns = {"/metrics"})
+public class MetricsController extends HttpServlet {
+
+  /**
+   * Handles the HTTP <code>GET</code> method.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    CacheAndEncodingFilter.disableCaching(response);
+    response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+
+    Writer out = response.getWriter();
+    QueryMetrics.writeTo(out);
+    out.flush();
+  }
+}
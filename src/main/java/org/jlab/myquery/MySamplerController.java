@@ -1,10 +1,10 @@
 package org.jlab.myquery;
 
-import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.*;
 import jakarta.servlet.annotation.*;
 import jakarta.servlet.http.*;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -13,6 +13,9 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.PatternSyntaxException;
@@ -30,11 +33,14 @@ import org.jlab.mya.stream.MySamplerStream;
  *
  * @author adamc
  */
-@WebServlet(name = "MySamplerController", value = "/mysampler")
+@WebServlet(name = "MySamplerController", value = "/mysampler", asyncSupported = true)
 public class MySamplerController extends QueryController {
 
   private static final Logger LOGGER = Logger.getLogger(MySamplerController.class.getName());
 
+  /** The max number of channels of a single request queried at the same time */
+  public static final int MAX_CONCURRENCY = ConfigUtil.getEnvInt("MYSAMPLER_MAX_CONCURRENCY", 4);
+
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -46,14 +52,16 @@ public class MySamplerController extends QueryController {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
     String jsonp = request.getParameter("jsonp");
+    ResponseEncoding encoding = getResponseEncoding(request, response);
 
     if (jsonp != null) {
       response.setContentType("application/javascript");
     } else {
-      response.setContentType("application/json");
+      response.setContentType(encoding.getContentType());
     }
 
     String errorReason = null;
+    boolean rejected = false;
     List<String> channels = null;
     MySamplerWebService service = null;
     long intervalMillis = -1;
@@ -74,10 +82,18 @@ public class MySamplerController extends QueryController {
     String a = request.getParameter("a"); // adjustMillisWithServerOffset
     String v = request.getParameter("v"); // decimalFormatter (value precision)
     String x = request.getParameter("x"); // Sampling strategy
+    String w = request.getParameter("w"); // Data array writer
+    String o = request.getParameter("o"); // Output layout (rows or columns)
 
     boolean updatesOnly = (d != null);
     boolean enumsAsStrings = (e != null);
+    boolean streamWriter = false;
+    boolean columnar = false;
+    boolean deltaTimestamps = isCompactLayout(o);
     try {
+      // The stream writer only writes JSON
+      streamWriter = useEventArrayWriter(w) && encoding == ResponseEncoding.JSON;
+      columnar = useColumnarLayout(o);
 
       if (x != null && x.equals("s")) {
         strategy = MySamplerStream.Strategy.STREAM;
@@ -136,6 +152,11 @@ public class MySamplerController extends QueryController {
         throw new Exception("Error parsing number of samples (n): '" + n + "'");
       }
 
+      if (columnar) {
+        // Each channel's columns are buffered in turn
+        ColumnarEventWriter.checkMaxEvents(sampleCount, "a number of samples (n)");
+      }
+
       // Don't tell client to cache response if contains future bounds!
       Instant end = begin.plusMillis(intervalMillis * (sampleCount - 1));
       if (end.isAfter(Instant.now())) {
@@ -144,9 +165,17 @@ public class MySamplerController extends QueryController {
         response.setHeader("Cache-Control", "private");
       }
 
+      AdmissionControl.admitCost(
+          request, estimateCost(channels, begin, end, sampleCount, strategy));
     } catch (Exception ex) {
-      LOGGER.log(Level.SEVERE, "Unable to service request", ex);
       errorReason = ex.getMessage();
+
+      if (isRejected(ex, response)) {
+        rejected = true;
+        LOGGER.log(Level.INFO, "Request refused: " + errorReason);
+      } else {
+        LOGGER.log(Level.SEVERE, "Unable to service request", ex);
+      }
     }
 
     DateTimeFormatter timestampFormatter = FormatUtil.getInstantFormatter(f);
@@ -176,8 +205,13 @@ public class MySamplerController extends QueryController {
       // before we process
       // any channels, let's write the error and close out.
       if (errorReason != null) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        out.write(("{\"error\": \"" + errorReason + "\"}").getBytes(StandardCharsets.UTF_8));
+        response.setStatus(rejected ? SC_TOO_MANY_REQUESTS : HttpServletResponse.SC_BAD_REQUEST);
+        if (encoding == ResponseEncoding.JSON) {
+          out.write(("{\"error\": \"" + errorReason + "\"}").getBytes(StandardCharsets.UTF_8));
+        } else {
+          JsonGenerator gen = encoding.createGenerator(out);
+          gen.writeStartObject().write("error", errorReason).writeEnd().flush();
+        }
         if (jsonp != null) {
           out.write((");").getBytes(StandardCharsets.UTF_8));
         }
@@ -185,7 +219,38 @@ public class MySamplerController extends QueryController {
         return;
       }
 
-      try (JsonGenerator gen = Json.createGenerator(out)) {
+      if (channels.size() > 1 && MAX_CONCURRENCY > 1) {
+        boolean anyErrors =
+            writeChannelsInParallel(
+                out,
+                encoding,
+                service,
+                deployment,
+                channels,
+                begin,
+                intervalMillis,
+                sampleCount,
+                updatesOnly,
+                formatAsMillisSinceEpoch,
+                adjustMillisWithServerOffset,
+                timestampFormatter,
+                sigFigs,
+                enumsAsStrings,
+                strategy,
+                streamWriter,
+                columnar,
+                deltaTimestamps);
+        if (anyErrors) {
+          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        }
+
+        if (jsonp != null) {
+          out.write((");").getBytes(StandardCharsets.UTF_8));
+        }
+        return;
+      }
+
+      try (JsonGenerator gen = encoding.createGenerator(out)) {
         gen.writeStartObject();
         boolean anyErrors = false;
         gen.writeStartObject("channels");
@@ -195,6 +260,8 @@ public class MySamplerController extends QueryController {
                   service,
                   deployment,
                   gen,
+                  out,
+                  encoding,
                   channelName,
                   begin,
                   intervalMillis,
@@ -205,7 +272,10 @@ public class MySamplerController extends QueryController {
                   timestampFormatter,
                   sigFigs,
                   enumsAsStrings,
-                  strategy);
+                  strategy,
+                  streamWriter,
+                  columnar,
+                  deltaTimestamps);
           if (error) {
             anyErrors = true;
           }
@@ -228,11 +298,175 @@ public class MySamplerController extends QueryController {
     }
   }
 
+  /**
+   * Estimate the cost of a request for admission control. The N_QUERIES strategy makes a query per
+   * sample, and the STREAM strategy reads every event of the window.
+   */
+  private static long estimateCost(
+      List<String> channels,
+      Instant begin,
+      Instant end,
+      long sampleCount,
+      MySamplerStream.Strategy strategy) {
+    if (strategy == MySamplerStream.Strategy.N_QUERIES) {
+      return AdmissionControl.queryCost(channels.size(), sampleCount);
+    }
+
+    long cost = AdmissionControl.queryCost(channels.size(), 1);
+
+    for (int i = 0; i < channels.size(); i++) {
+      cost = AdmissionControl.addCost(cost, AdmissionControl.estimateEvents(begin, end));
+    }
+
+    return cost;
+  }
+
+  /**
+   * Query the channels in parallel on the deployment's executor, with at most MAX_CONCURRENCY
+   * channels of this request in flight at once. Each channel is written to its own buffer and the
+   * buffers are written to the output in the requested channel order, producing the same document
+   * as writing the channels one after another.
+   *
+   * @return true if any channel had an error
+   */
+  private boolean writeChannelsInParallel(
+      OutputStream out,
+      ResponseEncoding encoding,
+      MySamplerWebService service,
+      String deployment,
+      List<String> channels,
+      Instant begin,
+      long intervalMillis,
+      long sampleCount,
+      boolean updatesOnly,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs,
+      boolean enumsAsStrings,
+      MySamplerStream.Strategy strategy,
+      boolean streamWriter,
+      boolean columnar,
+      boolean deltaTimestamps)
+      throws IOException, ServletException {
+    ExecutorService executor = QueryWebService.getExecutor(deployment);
+    List<Callable<ChannelResult>> tasks = new ArrayList<>();
+
+    for (String channelName : channels) {
+      tasks.add(
+          () -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            boolean error;
+            try (JsonGenerator gen = encoding.createGenerator(buffer)) {
+              // Wrapped in an object only so the generator accepts a named channel object
+              gen.writeStartObject();
+              error =
+                  processChannelRequest(
+                      service,
+                      deployment,
+                      gen,
+                      buffer,
+                      encoding,
+                      channelName,
+                      begin,
+                      intervalMillis,
+                      sampleCount,
+                      updatesOnly,
+                      formatAsMillisSinceEpoch,
+                      adjustMillisWithServerOffset,
+                      timestampFormatter,
+                      sigFigs,
+                      enumsAsStrings,
+                      strategy,
+                      streamWriter,
+                      columnar,
+                      deltaTimestamps);
+              gen.writeEnd();
+            } catch (Exception ex) {
+              // The document is already started, so the channel's error is reported in it
+              LOGGER.log(Level.SEVERE, "Unable to query channel: " + channelName, ex);
+              return errorResult(encoding, channelName, ex.getMessage());
+            }
+            return new ChannelResult(buffer.toByteArray(), error);
+          });
+    }
+
+    boolean anyErrors = false;
+    byte[] separator = encoding.getSeparator();
+
+    // Not closed, since that would close the response before any JSONP suffix is written
+    JsonGenerator gen = encoding.createGenerator(out);
+
+    try (OrderedTaskRunner<ChannelResult> runner =
+        new OrderedTaskRunner<>(executor, tasks, MAX_CONCURRENCY)) {
+      gen.writeStartObject();
+      gen.writeStartObject("channels");
+      gen.flush();
+      for (int i = 0; runner.hasNext(); i++) {
+        ChannelResult result;
+        try {
+          result = runner.next();
+        } catch (ExecutionException ex) {
+          LOGGER.log(Level.SEVERE, "Unable to query channel: " + channels.get(i), ex.getCause());
+          result = errorResult(encoding, channels.get(i), String.valueOf(ex.getCause()));
+        }
+
+        if (i > 0) {
+          out.write(separator);
+        }
+        // Strip the wrapping object start and end, leaving the named channel object
+        out.write(result.body, 1, result.body.length - 2);
+
+        if (result.error) {
+          anyErrors = true;
+        }
+      }
+      gen.writeEnd();
+      gen.writeEnd();
+      gen.flush();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ServletException("Interrupted while querying channels", ex);
+    }
+
+    return anyErrors;
+  }
+
+  /** Get the body of a channel which failed, the same as a channel error written in sequence. */
+  private static ChannelResult errorResult(
+      ResponseEncoding encoding, String channel, String message) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (JsonGenerator gen = encoding.createGenerator(buffer)) {
+      gen.writeStartObject();
+      gen.writeStartObject(channel);
+      if (message == null) {
+        gen.writeNull("error");
+      } else {
+        gen.write("error", message);
+      }
+      gen.writeEnd();
+      gen.writeEnd();
+    }
+    return new ChannelResult(buffer.toByteArray(), true);
+  }
+
+  private static final class ChannelResult {
+    private final byte[] body;
+    private final boolean error;
+
+    private ChannelResult(byte[] body, boolean error) {
+      this.body = body;
+      this.error = error;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private boolean processChannelRequest(
       MySamplerWebService service,
       String deployment,
       JsonGenerator gen,
+      OutputStream out,
+      ResponseEncoding encoding,
       String channel,
       Instant begin,
       long intervalMillis,
@@ -243,7 +477,10 @@ public class MySamplerController extends QueryController {
       DateTimeFormatter timestampFormatter,
       short sigFigs,
       boolean enumsAsStrings,
-      MySamplerStream.Strategy strategy)
+      MySamplerStream.Strategy strategy,
+      boolean streamWriter,
+      boolean columnar,
+      boolean deltaTimestamps)
       throws ServletException {
     gen.writeStartObject(channel);
     boolean error = false;
@@ -302,9 +539,36 @@ public class MySamplerController extends QueryController {
         stream = new LabeledEnumStream(stream, enumLabels);
       }
 
-      gen.writeStartArray("data");
+      if (columnar) {
+        gen.writeStartObject("data");
+      } else {
+        gen.writeStartArray("data");
+      }
       long dataLength = 0;
-      if (stream.getType() == IntEvent.class) {
+      if (columnar && ColumnarEventWriter.supports(stream.getType())) {
+        dataLength =
+            generateColumns(
+                gen,
+                out,
+                encoding,
+                stream,
+                formatAsMillisSinceEpoch,
+                adjustMillisWithServerOffset,
+                timestampFormatter,
+                sigFigs,
+                deltaTimestamps,
+                intervalMillis);
+      } else if (streamWriter && EventArrayWriter.supports(stream.getType())) {
+        dataLength =
+            generateEventArray(
+                gen,
+                out,
+                stream,
+                formatAsMillisSinceEpoch,
+                adjustMillisWithServerOffset,
+                timestampFormatter,
+                sigFigs);
+      } else if (stream.getType() == IntEvent.class) {
         dataLength =
             generateIntStream(
                 gen,
@@ -353,6 +617,7 @@ public class MySamplerController extends QueryController {
 
       gen.writeEnd();
       gen.write("returnCount", dataLength);
+      getMetrics().addEvents(dataLength);
     } catch (Exception ex) {
       // Can't just return or else we leave a connection open
       error = true;
@@ -26,12 +26,12 @@ public class MySamplerWebService extends QueryWebService {
   }
 
   public Metadata findMetadata(String c) throws SQLException {
-    return nexus.findMetadata(c);
+    return findCachedMetadata(nexus, c);
   }
 
   public List<ExtraInfo> findExtraInfo(Metadata metadata, String type, Instant begin, Instant end)
       throws SQLException {
-    return nexus.findExtraInfo(metadata, type, begin, end);
+    return findCachedExtraInfo(nexus, metadata, type, begin, end);
   }
 
   @SuppressWarnings("unchecked")
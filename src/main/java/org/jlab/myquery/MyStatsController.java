@@ -1,6 +1,5 @@
 package org.jlab.myquery;
 
-import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.annotation.*;
 import jakarta.servlet.http.*;
@@ -12,23 +11,31 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.PatternSyntaxException;
 import org.jlab.mya.Metadata;
 import org.jlab.mya.RunningStatistics;
 import org.jlab.mya.event.*;
-import org.jlab.mya.stream.FloatAnalysisStream;
 
 /**
  * This class provides functionality similar to the command line application myStats.
  *
  * @author adamc
  */
-@WebServlet(name = "MyStatsController", value = "/mystats")
+@WebServlet(name = "MyStatsController", value = "/mystats", asyncSupported = true)
 public class MyStatsController extends QueryController {
   private static final Logger LOGGER = Logger.getLogger(MyStatsController.class.getName());
 
+  /** The max number of (channel, bin range) work units of a single request run at the same time */
+  public static final int MAX_CONCURRENCY = ConfigUtil.getEnvInt("MYSTATS_MAX_CONCURRENCY", 4);
+
+  /** The seconds a request's queries may take unless the client asks for another timeout */
+  public static final long DEADLINE_SECONDS =
+      ConfigUtil.getEnvLong("MYSTATS_DEADLINE_SECONDS", 300);
+
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -41,16 +48,20 @@ public class MyStatsController extends QueryController {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     String jsonp = request.getParameter("jsonp");
+    ResponseEncoding encoding = getResponseEncoding(request, response);
 
     if (jsonp != null) {
       response.setContentType("application/javascript");
     } else {
-      response.setContentType("application/json");
+      response.setContentType(encoding.getContentType());
     }
 
     String errorReason = null;
+    boolean timedOut = false;
+    boolean rejected = false;
+    long deadlineSeconds = 0;
     List<Metadata> metadatas = null;
-    MyStatsResults results = new MyStatsResults();
+    MyStatsResults results = null;
 
     String c = request.getParameter("c"); // channels
     String b = request.getParameter("b"); // begin
@@ -64,6 +75,8 @@ public class MyStatsController extends QueryController {
     String v = request.getParameter("v"); // decimalFormatter (value precision)
 
     try {
+      deadlineSeconds = startDeadline(request.getParameter("timeout"), DEADLINE_SECONDS);
+
       if (c == null || c.trim().isEmpty()) {
         throw new Exception("Channel list (c) is required");
       }
@@ -136,35 +149,46 @@ public class MyStatsController extends QueryController {
         response.setHeader("Cache-Control", "private");
       }
 
-      PointWebService pws = new PointWebService(deployment);
-      for (Metadata metadata : metadatas) {
-
-        if (metadata.getType() != FloatEvent.class) {
-          continue;
-        }
-
-        double interval =
-            ((end.getEpochSecond() + end.getNano() / 1_000_000_000d)
-                    - (begin.getEpochSecond() + begin.getNano() / 1_000_000_000d))
-                / numBins;
-        Instant binBegin, binEnd = begin;
-        for (int i = 1; i <= numBins; i++) {
-          binBegin = binEnd;
-          if (i == numBins) {
-            binEnd = end;
-          } else {
-            binEnd = binBegin.plusSeconds((long) interval);
-          }
-          results.add(
-              metadata.getName(),
-              binBegin,
-              getBinStats(binBegin, binEnd, metadata, service, pws, updatesOnly));
-        }
+      // A prior point query and a stream per bin, plus the events of the window
+      long cost = AdmissionControl.queryCost(metadatas.size(), numBins);
+      for (int i = 0; i < metadatas.size(); i++) {
+        cost = AdmissionControl.addCost(cost, AdmissionControl.estimateEvents(begin, end));
       }
+      AdmissionControl.admitCost(request, cost);
+
+      // Identical requests in flight share the results, whatever their output formatting
+      String key =
+          deployment + "|" + c + "|" + begin + "|" + end + "|" + numBins + "|" + updatesOnly;
+      String dep = deployment;
+      List<Metadata> channelMetadatas = metadatas;
+      long bins = numBins;
+
+      results =
+          IntervalWebService.STATS_FLIGHTS.execute(
+              key,
+              () -> {
+                MyStatsResults calculated = new MyStatsResults();
+                calculateStatistics(
+                    dep, service, channelMetadatas, begin, end, bins, updatesOnly, calculated);
+                return calculated;
+              });
 
     } catch (Exception ex) {
-      LOGGER.log(Level.SEVERE, "Unable to service request", ex);
       errorReason = ex.getMessage();
+
+      if (isRejected(ex, response)) {
+        rejected = true;
+        LOGGER.log(Level.INFO, "Request refused: " + errorReason);
+      } else {
+        LOGGER.log(Level.SEVERE, "Unable to service request", ex);
+      }
+
+      // Partial statistics would be misleading, so running out of time is an error
+      if (deadlineSeconds > 0 && isDeadlineExceeded(ex)) {
+        timedOut = true;
+        errorReason = "Query deadline of " + deadlineSeconds + " seconds exceeded";
+        QueryCanceller.recordExpired();
+      }
     }
 
     DateTimeFormatter timestampFormatter = FormatUtil.getInstantFormatter(f);
@@ -178,11 +202,14 @@ public class MyStatsController extends QueryController {
       out.write((jsonp + "(").getBytes(StandardCharsets.UTF_8));
     }
 
-    try (JsonGenerator gen = Json.createGenerator(out)) {
+    try (JsonGenerator gen = encoding.createGenerator(out)) {
       gen.writeStartObject();
 
       if (errorReason != null) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.setStatus(
+            timedOut
+                ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                : rejected ? SC_TOO_MANY_REQUESTS : HttpServletResponse.SC_BAD_REQUEST);
         gen.write("error", errorReason);
       } else {
         if (metadatas != null) {
@@ -211,6 +238,7 @@ public class MyStatsController extends QueryController {
                     formatAsMillisSinceEpoch,
                     adjustMillisWithServerOffset);
             gen.write("returnCount", dataLength);
+            getMetrics().addEvents(dataLength);
             gen.writeEnd(); // metadata.getName()
           }
           gen.writeEnd(); // channels
@@ -226,41 +254,70 @@ public class MyStatsController extends QueryController {
   }
 
   /**
-   * Gets the statistics for a bin. Handle this as a separate method to ensure proper handling of
-   * prior events.
+   * Calculate the binned statistics of each FloatEvent channel and add them to the results.
    *
-   * @implNote There was also an intention to make testing easier, but mocking the web services was
-   *     not straightforward.
-   * @param binBegin The start of the bin.
-   * @param binEnd The end of the bin.
-   * @param metadata The metadata for the channel.
-   * @param intervalService The interval web service.
-   * @param pointService The point web service.
-   * @param updatesOnly Whether to only include updates.
-   * @return The statistics for the bin.
-   * @throws Exception If an error occurs.
+   * <p>The work is split into (channel, bin range) units run in parallel on the deployment's
+   * executor, with at most MAX_CONCURRENCY units of this request in flight. Each unit makes one
+   * prior point query and opens one event stream for its bin range. When there are fewer channels
+   * than MAX_CONCURRENCY the bins of each channel are split into contiguous ranges so all the
+   * allowed concurrency is used.
    */
-  private static RunningStatistics getBinStats(
-      Instant binBegin,
-      Instant binEnd,
-      Metadata metadata,
-      IntervalWebService intervalService,
-      PointWebService pointService,
-      boolean updatesOnly)
+  @SuppressWarnings("unchecked")
+  private static void calculateStatistics(
+      String deployment,
+      IntervalWebService service,
+      List<Metadata> metadatas,
+      Instant begin,
+      Instant end,
+      long numBins,
+      boolean updatesOnly,
+      MyStatsResults results)
       throws Exception {
-    Event priorEvent = pointService.findEvent(metadata, updatesOnly, binBegin, true, true, false);
-    RunningStatistics stats;
-
-    // Since we provide a priorPoint, the underlying stream should be a BoundaryAwareStream.
-    try (FloatAnalysisStream fas =
-        new FloatAnalysisStream(
-            intervalService.openEventStream(
-                metadata, updatesOnly, binBegin, binEnd, priorEvent, metadata.getType()))) {
-      while (fas.read() != null) {
-        // Read through the entire stream.  We only want statistics from it
+    BinnedStatisticsEngine engine =
+        new BinnedStatisticsEngine(service, new PointWebService(deployment));
+    List<Instant> boundaries = BinnedStatisticsEngine.getBinBoundaries(begin, end, numBins);
+
+    List<Metadata> floatMetadatas = new ArrayList<>();
+    for (Metadata metadata : metadatas) {
+      if (metadata.getType() == FloatEvent.class) {
+        floatMetadatas.add(metadata);
+      }
+    }
+
+    if (floatMetadatas.isEmpty()) {
+      return;
+    }
+
+    long unitsPerChannel = (MAX_CONCURRENCY + floatMetadatas.size() - 1) / floatMetadatas.size();
+    int rangesPerChannel = (int) Math.max(1, Math.min(numBins, unitsPerChannel));
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (Metadata metadata : floatMetadatas) {
+      for (int r = 0; r < rangesPerChannel; r++) {
+        int fromBin = (int) (numBins * r / rangesPerChannel);
+        int toBin = (int) (numBins * (r + 1) / rangesPerChannel);
+        tasks.add(
+            () -> {
+              List<RunningStatistics> statsList =
+                  engine.calculate(metadata, boundaries.subList(fromBin, toBin + 1), updatesOnly);
+              for (int i = 0; i < statsList.size(); i++) {
+                results.add(metadata.getName(), boundaries.get(fromBin + i), statsList.get(i));
+              }
+              return null;
+            });
+      }
+    }
+
+    try (OrderedTaskRunner<Void> runner =
+        new OrderedTaskRunner<>(QueryWebService.getExecutor(deployment), tasks, MAX_CONCURRENCY)) {
+      while (runner.hasNext()) {
+        runner.next();
+      }
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
       }
-      stats = fas.getLatestStats();
+      throw ex;
     }
-    return stats;
   }
 }
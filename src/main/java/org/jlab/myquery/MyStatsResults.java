@@ -3,7 +3,7 @@ package org.jlab.myquery;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import org.jlab.mya.RunningStatistics;
 
 /**
@@ -13,13 +13,16 @@ import org.jlab.mya.RunningStatistics;
  * tracking multiple channels with different binning, but you will probably be best served by
  * keeping all of the bin sizes the same.
  *
+ * <p>Bins may be added concurrently from multiple threads. Channels and bins are kept sorted so
+ * iteration order does not depend on the order in which they were added.
+ *
  * @author adamc
  */
 public class MyStatsResults {
   private final Map<String, Map<Instant, RunningStatistics>> statMap;
 
   public MyStatsResults() {
-    statMap = new TreeMap<>();
+    statMap = new ConcurrentSkipListMap<>();
   }
 
   /**
@@ -31,8 +34,7 @@ public class MyStatsResults {
    * @param stats The object containing the statistics values.
    */
   public void add(String channel, Instant timestamp, RunningStatistics stats) {
-    statMap.putIfAbsent(channel, new TreeMap<>());
-    statMap.get(channel).put(timestamp, stats);
+    statMap.computeIfAbsent(channel, k -> new ConcurrentSkipListMap<>()).put(timestamp, stats);
   }
 
   /**
@@ -0,0 +1,90 @@
+package org.jlab.myquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs a list of tasks on an executor with a bounded number of them in flight at once, handing back
+ * the results in task order. A new task is submitted each time a result is taken, so the caller can
+ * consume (for example write out) results in order while later tasks are still running.
+ *
+ * <p>With a max in flight of one or less the tasks are run on the calling thread as they are
+ * taken. Closing the runner cancels any tasks that have not completed.
+ *
+ * @param <T> The task result type
+ * @author agent
+ */
+public class OrderedTaskRunner<T> implements AutoCloseable {
+
+  private final ExecutorService executor;
+  private final List<Callable<T>> tasks;
+  private final int maxInFlight;
+  private final List<Future<T>> futures;
+  private int submitted = 0;
+  private int taken = 0;
+
+  public OrderedTaskRunner(ExecutorService executor, List<Callable<T>> tasks, int maxInFlight) {
+    this.executor = executor;
+    this.tasks = tasks;
+    this.maxInFlight = maxInFlight;
+    this.futures = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+
+    while (submitted < tasks.size() && submitted < maxInFlight) {
+      submitNext();
+    }
+  }
+
+  private void submitNext() {
+    // Queries of the task are cancelled with those of the request it is part of
+    futures.set(submitted, executor.submit(QueryCanceller.wrap(tasks.get(submitted))));
+    submitted++;
+  }
+
+  public boolean hasNext() {
+    return taken < tasks.size();
+  }
+
+  /**
+   * Wait for and return the result of the next task in order.
+   *
+   * @return The task result
+   * @throws InterruptedException If interrupted while waiting
+   * @throws ExecutionException If the task threw an exception
+   */
+  public T next() throws InterruptedException, ExecutionException {
+    Future<T> future;
+
+    if (maxInFlight <= 1) {
+      FutureTask<T> task = new FutureTask<>(tasks.get(taken));
+      task.run();
+      future = task;
+    } else {
+      future = futures.get(taken);
+      futures.set(taken, null);
+    }
+    taken++;
+
+    try {
+      return future.get();
+    } finally {
+      if (maxInFlight > 1 && submitted < tasks.size()) {
+        submitNext();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    for (Future<T> future : futures) {
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package org.jlab.myquery;
 
-import jakarta.json.Json;
 import jakarta.json.stream.JsonGenerator;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -23,11 +22,18 @@ import org.jlab.mya.event.*;
  */
 @WebServlet(
     name = "PointController",
-    urlPatterns = {"/point"})
+    urlPatterns = {"/point"},
+    asyncSupported = true)
 public class PointController extends QueryController {
 
   private static final Logger LOGGER = Logger.getLogger(PointController.class.getName());
 
+  /** A point is a single indexed lookup, so it is always admitted. */
+  @Override
+  protected boolean isAdmissionExempt() {
+    return true;
+  }
+
   /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -40,11 +46,12 @@ public class PointController extends QueryController {
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
     String jsonp = request.getParameter("jsonp");
+    ResponseEncoding encoding = getResponseEncoding(request, response);
 
     if (jsonp != null) {
       response.setContentType("application/javascript");
     } else {
-      response.setContentType("application/json");
+      response.setContentType(encoding.getContentType());
     }
 
     String errorReason = null;
@@ -128,7 +135,7 @@ public class PointController extends QueryController {
       out.write((jsonp + "(").getBytes(StandardCharsets.UTF_8));
     }
 
-    try (JsonGenerator gen = Json.createGenerator(out)) {
+    try (JsonGenerator gen = encoding.createGenerator(out)) {
       gen.writeStartObject();
       if (errorReason != null) {
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -140,6 +147,8 @@ public class PointController extends QueryController {
           gen.write("datahost", metadata.getHost());
         }
         if (event != null) {
+          getMetrics().addEvents(1);
+
           if (event instanceof IntEvent) {
             writeIntEvent(
                 "data",
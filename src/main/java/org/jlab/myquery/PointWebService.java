@@ -14,6 +14,10 @@ import org.jlab.mya.nexus.DataNexus;
  */
 public class PointWebService extends QueryWebService {
 
+  /** Identical point queries in flight at once share one database query */
+  public static final SingleFlight<Event> POINT_FLIGHTS =
+      new SingleFlight<>(ConfigUtil.getEnvInt("SINGLE_FLIGHT_MAX_POINT_QUERIES", 1000));
+
   private final DataNexus nexus;
 
   public PointWebService(String deployment) {
@@ -21,7 +25,7 @@ public class PointWebService extends QueryWebService {
   }
 
   public Metadata findMetadata(String c) throws SQLException {
-    return nexus.findMetadata(c);
+    return findCachedMetadata(nexus, c);
   }
 
   @SuppressWarnings("unchecked")
@@ -33,11 +37,47 @@ public class PointWebService extends QueryWebService {
       boolean orEqual,
       boolean enumsAsStrings)
       throws SQLException {
+    String key =
+        nexus.getDeployment()
+            + "|"
+            + metadata.getName()
+            + "|"
+            + t
+            + "|"
+            + updatesOnly
+            + "|"
+            + lessThan
+            + "|"
+            + orEqual
+            + "|"
+            + enumsAsStrings;
+
+    try {
+      return POINT_FLIGHTS.execute(
+          key, () -> doFindEvent(metadata, updatesOnly, t, lessThan, orEqual, enumsAsStrings));
+    } catch (SQLException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException(e);
+    }
+  }
 
+  @SuppressWarnings("unchecked")
+  private Event doFindEvent(
+      Metadata metadata,
+      boolean updatesOnly,
+      Instant t,
+      boolean lessThan,
+      boolean orEqual,
+      boolean enumsAsStrings)
+      throws SQLException {
     Event event = nexus.findEvent(metadata, t, lessThan, orEqual, updatesOnly);
 
     if (enumsAsStrings && metadata.getMyaType() == MyaDataType.DBR_ENUM) {
-      List<ExtraInfo> extraInfoList = nexus.findExtraInfo(metadata, "enum_strings", null, null);
+      // Only the label history up to the event is needed
+      Instant labelsThrough = (event == null) ? t : event.getTimestampAsInstant();
+      List<ExtraInfo> extraInfoList =
+          findCachedExtraInfo(nexus, metadata, "enum_strings", null, labelsThrough);
       event = LabeledEnumEvent.findLabelFromHistory((IntEvent) event, extraInfoList);
     }
 
@@ -0,0 +1,290 @@
+package org.jlab.myquery;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the statements a request's queries are running, so they can be cancelled when the request
+ * is abandoned, for example because the client disconnected. Cancelling stops the query in the
+ * database, so the statement's connection is released to the pool promptly instead of after the
+ * rest of a streamed result has been read and discarded.
+ *
+ * <p>The canceller of the request being handled is bound to the handling thread, and the
+ * connections obtained through a CancellableNexus while it is bound are tracked. Work handed to
+ * other threads must be wrapped with {@link #wrap} to be tracked too. A statement is only tracked
+ * until its connection is closed, so a cancel never reaches a connection back in the pool.
+ *
+ * <p>A request may also have a deadline, which is passed to the database as the query timeout of
+ * each statement the request creates.
+ *
+ * @author agent
+ */
+public final class QueryCanceller {
+
+  private static final Logger LOGGER = Logger.getLogger(QueryCanceller.class.getName());
+
+  private static final ThreadLocal<QueryCanceller> CURRENT = new ThreadLocal<>();
+
+  private static final LongAdder CANCELLED = new LongAdder();
+
+  private static final LongAdder EXPIRED = new LongAdder();
+
+  private final Set<TrackedConnection> connections = ConcurrentHashMap.newKeySet();
+  private volatile boolean cancelled = false;
+  private volatile boolean hasDeadline = false;
+  private volatile long deadlineNanos;
+
+  /**
+   * Get the canceller bound to the current thread.
+   *
+   * @return The canceller, or null if the thread isn't handling a request
+   */
+  public static QueryCanceller current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Bind a canceller to the current thread.
+   *
+   * @param canceller The canceller, or null to unbind
+   */
+  public static void bind(QueryCanceller canceller) {
+    if (canceller == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(canceller);
+    }
+  }
+
+  /**
+   * Wrap a task so it runs with the current thread's canceller bound, wherever it runs.
+   *
+   * @param task The task
+   * @param <V> The task result type
+   * @return The wrapped task, or the task itself if there is no current canceller
+   */
+  public static <V> Callable<V> wrap(Callable<V> task) {
+    QueryCanceller canceller = current();
+
+    if (canceller == null) {
+      return task;
+    }
+
+    return () -> {
+      QueryCanceller previous = current();
+      bind(canceller);
+      try {
+        return task.call();
+      } finally {
+        bind(previous);
+      }
+    };
+  }
+
+  /**
+   * Determine whether the current thread's request has been cancelled.
+   *
+   * @return true if cancelled
+   */
+  public static boolean isCurrentCancelled() {
+    QueryCanceller canceller = current();
+    return canceller != null && canceller.isCancelled();
+  }
+
+  /**
+   * Get the number of requests cancelled.
+   *
+   * @return The count
+   */
+  public static long getCancelledCount() {
+    return CANCELLED.sum();
+  }
+
+  /**
+   * Get the number of requests which ran out of time.
+   *
+   * @return The count
+   */
+  public static long getExpiredCount() {
+    return EXPIRED.sum();
+  }
+
+  /** Count a request which ran out of time. */
+  public static void recordExpired() {
+    EXPIRED.increment();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Set the deadline of the request's queries.
+   *
+   * @param timeoutMillis The milliseconds from now
+   */
+  public void setDeadline(long timeoutMillis) {
+    deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    hasDeadline = true;
+  }
+
+  /**
+   * Get the deadline.
+   *
+   * @return The System.nanoTime of the deadline
+   * @throws IllegalStateException If there is no deadline
+   */
+  public long getDeadlineNanos() {
+    if (!hasDeadline) {
+      throw new IllegalStateException("No deadline");
+    }
+
+    return deadlineNanos;
+  }
+
+  public boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  /**
+   * Determine whether the deadline has passed.
+   *
+   * @return true if there is a deadline and it has passed
+   */
+  public boolean isExpired() {
+    return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  /**
+   * Determine whether the current thread's request has run out of time.
+   *
+   * @return true if expired
+   */
+  public static boolean isCurrentExpired() {
+    QueryCanceller canceller = current();
+    return canceller != null && canceller.isExpired();
+  }
+
+  /** Cancel the statements running now and fail any started from now on. */
+  public void cancel() {
+    if (cancelled) {
+      return;
+    }
+
+    cancelled = true;
+    CANCELLED.increment();
+
+    for (TrackedConnection connection : connections) {
+      connection.cancel();
+    }
+  }
+
+  /**
+   * Track the statements created with a connection until it is closed.
+   *
+   * @param connection The connection
+   * @return The connection to use instead
+   * @throws SQLException If already cancelled
+   */
+  Connection track(Connection connection) throws SQLException {
+    if (cancelled) {
+      connection.close();
+      throw new SQLException("Request cancelled");
+    }
+
+    TrackedConnection tracked = new TrackedConnection(connection);
+    connections.add(tracked);
+
+    return (Connection)
+        Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, tracked);
+  }
+
+  /** Intercepts statement creation and close of a connection. */
+  private final class TrackedConnection implements InvocationHandler {
+    private final Connection connection;
+    private final List<Statement> statements = new ArrayList<>();
+    private boolean closed = false;
+
+    private TrackedConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("close")) {
+        connections.remove(this);
+        synchronized (this) {
+          closed = true;
+          statements.clear();
+        }
+      }
+
+      Object result = invokeTarget(method, args);
+
+      if (result instanceof Statement) {
+        Statement statement = (Statement) result;
+
+        synchronized (this) {
+          statements.add(statement);
+        }
+
+        if (cancelled) {
+          statement.close();
+          throw new SQLException("Request cancelled");
+        }
+
+        if (hasDeadline) {
+          long remainingNanos = deadlineNanos - System.nanoTime();
+
+          if (remainingNanos <= 0) {
+            statement.close();
+            throw new SQLTimeoutException("Query deadline exceeded");
+          }
+
+          // Whole seconds, rounded up, so the database doesn't end a query the request could use
+          statement.setQueryTimeout((int) TimeUnit.NANOSECONDS.toSeconds(remainingNanos) + 1);
+        }
+      }
+
+      return result;
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    private synchronized void cancel() {
+      if (closed) {
+        return;
+      }
+
+      for (Statement statement : statements) {
+        try {
+          statement.cancel();
+        } catch (SQLException e) {
+          LOGGER.log(Level.FINE, "Unable to cancel statement", e);
+        }
+      }
+    }
+  }
+}
@@ -2,14 +2,28 @@ package org.jlab.myquery;
 
 import jakarta.json.JsonValue;
 import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
-import java.math.MathContext;
+import java.sql.SQLTimeoutException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jlab.mya.ExtraInfo;
 import org.jlab.mya.Metadata;
 import org.jlab.mya.RunningStatistics;
@@ -22,6 +36,552 @@ import org.jlab.mya.stream.EventStream;
 @SuppressWarnings("JavaDoc")
 public class QueryController extends HttpServlet {
 
+  private static final Logger LOGGER = Logger.getLogger(QueryController.class.getName());
+
+  /** Whether requests are handled asynchronously, off the container's request threads */
+  public static final boolean ASYNC_REQUESTS =
+      !"false".equalsIgnoreCase(String.valueOf(System.getenv("ASYNC_REQUESTS")).trim());
+
+  /** The max seconds an asynchronous request may take, or 0 for no limit */
+  public static final long ASYNC_TIMEOUT_SECONDS =
+      ConfigUtil.getEnvLong("ASYNC_TIMEOUT_SECONDS", 600);
+
+  /** The request threads when the runtime doesn't have virtual threads (before Java 21) */
+  public static final int ASYNC_PLATFORM_THREADS =
+      ConfigUtil.getEnvInt("ASYNC_PLATFORM_THREADS", 200);
+
+  private static final ExecutorService REQUEST_EXECUTOR = createRequestExecutor();
+
+  /** The status of a request refused by admission control */
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private static final String PERMIT_ATTRIBUTE = QueryController.class.getName() + ".permit";
+
+  /** The max seconds a client may allow a query with the timeout parameter */
+  public static final long MAX_DEADLINE_SECONDS =
+      ConfigUtil.getEnvLong("MAX_DEADLINE_SECONDS", 600);
+
+  /** The data array writer used when a request doesn't select one: generator or stream */
+  public static final String DEFAULT_EVENT_WRITER =
+      System.getenv("EVENT_WRITER") == null ? "generator" : System.getenv("EVENT_WRITER").trim();
+
+  /**
+   * Determine whether the data array should be written with an EventArrayWriter instead of the
+   * JsonGenerator. Both produce the same output.
+   *
+   * @param w The writer parameter: stream, generator, or null for DEFAULT_EVENT_WRITER
+   * @return true to use an EventArrayWriter
+   * @throws IllegalArgumentException If the writer is not recognized
+   */
+  protected static boolean useEventArrayWriter(String w) {
+    String writer = (w == null || w.trim().isEmpty()) ? DEFAULT_EVENT_WRITER : w.trim();
+
+    if (writer.equals("stream")) {
+      return true;
+    } else if (writer.equals("generator")) {
+      return false;
+    } else {
+      throw new IllegalArgumentException("Unrecognized writer (w): '" + writer + "'");
+    }
+  }
+
+  /**
+   * Determine whether the data should be written as parallel arrays (columns) instead of an array
+   * of event objects (rows). The compact layout is columns with delta encoded timestamps.
+   *
+   * @param o The output layout parameter: rows (default), columns, or compact
+   * @return true for columns or compact
+   * @throws IllegalArgumentException If the layout is not recognized
+   */
+  protected static boolean useColumnarLayout(String o) {
+    if (o == null || o.trim().isEmpty() || o.trim().equals("rows")) {
+      return false;
+    } else if (o.trim().equals("columns") || isCompactLayout(o)) {
+      return true;
+    } else {
+      throw new IllegalArgumentException("Unrecognized output layout (o): '" + o + "'");
+    }
+  }
+
+  /**
+   * Determine the encoding of the response document. JSONP responses are always JSON, otherwise
+   * the format parameter is used if present, else the Accept header. When the Accept header
+   * decides, the response varies by it, so caches don't hand one encoding to a client asking for
+   * another at the same URL.
+   *
+   * @param request The request
+   * @param response The response, which gets a Vary header if the Accept header decides
+   * @return The encoding
+   */
+  protected static ResponseEncoding getResponseEncoding(
+      HttpServletRequest request, HttpServletResponse response) {
+    if (request.getParameter("jsonp") != null) {
+      return ResponseEncoding.JSON;
+    }
+
+    String format = request.getParameter("format");
+
+    if (format == null) {
+      response.addHeader("Vary", "Accept");
+    }
+
+    return ResponseEncoding.negotiate(format, request.getHeader("Accept"));
+  }
+
+  /**
+   * Handles the request on a virtual thread, releasing the container's request thread while the
+   * query runs, so many slow queries don't exhaust the container's thread pool. Falls back to
+   * handling the request on the calling thread if async is disabled or not supported by every
+   * filter in the chain.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    if (!ASYNC_REQUESTS || !request.isAsyncSupported() || request.isAsyncStarted()) {
+      serviceSync(request, response, new QueryCanceller());
+      return;
+    }
+
+    // The CompressionFilter can't finish the response once this returns, so it is done here
+    Closeable finisher = (Closeable) request.getAttribute(CompressionFilter.FINISHER_ATTRIBUTE);
+    request.removeAttribute(CompressionFilter.FINISHER_ATTRIBUTE);
+
+    AsyncContext context = request.startAsync(request, response);
+    context.setTimeout(getAsyncTimeoutMillis());
+
+    AsyncRequest task = new AsyncRequest(context, request, response, finisher);
+    context.addListener(task);
+
+    REQUEST_EXECUTOR.execute(task);
+  }
+
+  /**
+   * Get the max milliseconds an asynchronous request may take before it is ended.
+   *
+   * @return The milliseconds, or 0 for no limit
+   */
+  protected long getAsyncTimeoutMillis() {
+    return ASYNC_TIMEOUT_SECONDS * 1000;
+  }
+
+  /**
+   * Handle the request on the current thread, with queries cancelled if the client disconnects.
+   */
+  private void serviceSync(
+      HttpServletRequest request, HttpServletResponse response, QueryCanceller canceller)
+      throws ServletException, IOException {
+    QueryMetrics.Endpoint metrics = getMetrics();
+    DisconnectAwareResponse wrapped = new DisconnectAwareResponse(response, canceller);
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    metrics.start();
+    try {
+      serviceAdmitted(request, wrapped, canceller);
+      failed = false;
+    } finally {
+      metrics.finish(
+          wrapped.getStatus(), failed, System.nanoTime() - start, wrapped.getBytesWritten());
+    }
+  }
+
+  /** Handle the request if admission control and the deployment's bulkhead let it start. */
+  private void serviceAdmitted(
+      HttpServletRequest request, HttpServletResponse response, QueryCanceller canceller)
+      throws ServletException, IOException {
+    String deployment = getDeployment(request);
+    AdmissionControl.Ticket ticket = null;
+    BulkheadPermit permit = null;
+
+    try {
+      if (!isAdmissionExempt()) {
+        ticket = admit(request, deployment);
+      }
+
+      // An unrecognized deployment is reported by the controller
+      if (!isBulkheadExempt() && QueryWebService.isDeployment(deployment)) {
+        Bulkhead bulkhead = QueryWebService.getBulkhead(deployment);
+        bulkhead.enter();
+        permit = new BulkheadPermit(bulkhead);
+        request.setAttribute(PERMIT_ATTRIBUTE, permit);
+      }
+
+      QueryCanceller.bind(canceller);
+      super.service(request, response);
+    } catch (AdmissionControl.RejectedException e) {
+      sendRejection(response, SC_TOO_MANY_REQUESTS, e.getMessage());
+    } catch (Bulkhead.FullException e) {
+      sendRejection(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServletException("Interrupted while waiting to start", e);
+    } finally {
+      QueryCanceller.bind(null);
+
+      if (permit != null) {
+        permit.release();
+      }
+
+      if (ticket != null) {
+        ticket.close();
+      }
+    }
+  }
+
+  /**
+   * Get the metrics of this controller.
+   *
+   * @return The metrics
+   */
+  protected final QueryMetrics.Endpoint getMetrics() {
+    return QueryMetrics.getEndpoint(getServletName());
+  }
+
+  /**
+   * Get the deployment a request queries.
+   *
+   * @param request The request
+   * @return The deployment name
+   */
+  protected static String getDeployment(HttpServletRequest request) {
+    String m = request.getParameter("m");
+
+    return (m != null && !m.trim().isEmpty()) ? m : "ops";
+  }
+
+  /**
+   * Determine whether requests skip admission control. Cheap requests are exempt, so they are
+   * served even while clients are being refused.
+   *
+   * @return true if exempt
+   */
+  protected boolean isAdmissionExempt() {
+    return false;
+  }
+
+  /**
+   * Admit a request for its client.
+   *
+   * @param request The request
+   * @param deployment The deployment the request queries
+   * @return The ticket, to be closed when the request is done
+   * @throws AdmissionControl.RejectedException If the request is not admitted
+   */
+  protected AdmissionControl.Ticket admit(HttpServletRequest request, String deployment)
+      throws AdmissionControl.RejectedException {
+    return AdmissionControl.enter(request, deployment);
+  }
+
+  /**
+   * Determine whether requests skip their deployment's bulkhead. Only for requests which don't hold
+   * database connections while in progress.
+   *
+   * @return true if exempt
+   */
+  protected boolean isBulkheadExempt() {
+    return false;
+  }
+
+  /**
+   * Give up the request's permit of its deployment's bulkhead while it waits for something which
+   * doesn't query, such as an identical request in flight, so waiting requests don't crowd out the
+   * deployment's others. Has no effect on a request without a permit.
+   *
+   * @param request The request
+   */
+  protected static void leaveBulkhead(HttpServletRequest request) {
+    BulkheadPermit permit = (BulkheadPermit) request.getAttribute(PERMIT_ATTRIBUTE);
+
+    if (permit != null) {
+      permit.release();
+    }
+  }
+
+  /**
+   * Take back a permit given up with {@link #leaveBulkhead}, before the request queries.
+   *
+   * @param request The request
+   * @throws Bulkhead.FullException If the deployment is too busy
+   * @throws InterruptedException If interrupted while waiting
+   */
+  protected static void reenterBulkhead(HttpServletRequest request)
+      throws Bulkhead.FullException, InterruptedException {
+    BulkheadPermit permit = (BulkheadPermit) request.getAttribute(PERMIT_ATTRIBUTE);
+
+    if (permit != null) {
+      permit.acquire();
+    }
+  }
+
+  /**
+   * Determine whether a request failed because admission control refused it, setting the
+   * Retry-After header if so. The response status should then be SC_TOO_MANY_REQUESTS.
+   *
+   * @param e The exception
+   * @param response The response
+   * @return true if refused
+   */
+  protected static boolean isRejected(Throwable e, HttpServletResponse response) {
+    if (e instanceof AdmissionControl.RejectedException) {
+      response.setHeader(
+          "Retry-After",
+          String.valueOf(((AdmissionControl.RejectedException) e).getRetryAfterSeconds()));
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Refuse a request with a status such as SC_TOO_MANY_REQUESTS and a Retry-After header.
+   *
+   * @param response The response
+   * @param status The status
+   * @param message The error message
+   * @throws IOException If unable to write
+   */
+  protected static void sendRejection(HttpServletResponse response, int status, String message)
+      throws IOException {
+    response.setStatus(status);
+    response.setHeader("Retry-After", String.valueOf(AdmissionControl.RETRY_AFTER_SECONDS));
+    response.setContentType("application/json");
+    try (JsonGenerator gen = ResponseEncoding.JSON.createGenerator(response.getOutputStream())) {
+      gen.writeStartObject();
+      gen.write("error", message);
+      gen.writeEnd();
+    }
+  }
+
+  /** Stop the request threads, such as when the application is undeployed. */
+  public static void shutdownRequestExecutor() {
+    REQUEST_EXECUTOR.shutdownNow();
+  }
+
+  /**
+   * Create the executor of asynchronous requests: a virtual thread per request if the runtime
+   * supports it, otherwise a bounded pool of platform threads. Virtual threads are looked up
+   * reflectively since the code is compiled for Java 17.
+   */
+  private static ExecutorService createRequestExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      LOGGER.log(
+          Level.INFO,
+          "Virtual threads not available, using " + ASYNC_PLATFORM_THREADS + " request threads");
+
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newFixedThreadPool(
+          ASYNC_PLATFORM_THREADS,
+          r -> {
+            Thread thread = new Thread(r, "myquery-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  /**
+   * A request's permit of its deployment's bulkhead, which it may give up while it waits. Only used
+   * by the thread handling the request.
+   */
+  private static final class BulkheadPermit {
+    private final Bulkhead bulkhead;
+    private boolean held = true;
+
+    private BulkheadPermit(Bulkhead bulkhead) {
+      this.bulkhead = bulkhead;
+    }
+
+    private void release() {
+      if (held) {
+        held = false;
+        bulkhead.exit();
+      }
+    }
+
+    private void acquire() throws Bulkhead.FullException, InterruptedException {
+      if (!held) {
+        bulkhead.enter();
+        held = true;
+      }
+    }
+  }
+
+  /** Runs a request and completes it, or ends it if it times out first. */
+  private final class AsyncRequest implements Runnable, AsyncListener {
+    private final AsyncContext context;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final Closeable finisher;
+    private final QueryCanceller canceller = new QueryCanceller();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private Thread worker;
+
+    private AsyncRequest(
+        AsyncContext context,
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Closeable finisher) {
+      this.context = context;
+      this.request = request;
+      this.response = response;
+      this.finisher = finisher;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        worker = Thread.currentThread();
+      }
+
+      try {
+        serviceSync(request, response, canceller);
+
+        if (finisher != null) {
+          finisher.close();
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.SEVERE, "Unable to service request", e);
+
+        if (!response.isCommitted()) {
+          try {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          } catch (IOException | IllegalStateException sendIssue) {
+            // Client went away
+          }
+        }
+      } finally {
+        synchronized (this) {
+          worker = null;
+        }
+        // Clear the interrupt from a timeout so it doesn't leak into the next task of a pool thread
+        Thread.interrupted();
+        complete();
+      }
+    }
+
+    private void complete() {
+      if (completed.compareAndSet(false, true)) {
+        try {
+          context.complete();
+        } catch (IllegalStateException e) {
+          // Already completed by the container
+        }
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      LOGGER.log(Level.WARNING, "Request timed out: " + request.getRequestURI());
+      stop();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      LOGGER.log(Level.FINE, "Request failed: " + request.getRequestURI(), event.getThrowable());
+      stop();
+    }
+
+    /**
+     * Cancel the request's queries, interrupt it, and end the response, since the container is
+     * done with it.
+     */
+    private void stop() {
+      canceller.cancel();
+
+      synchronized (this) {
+        if (worker != null) {
+          worker.interrupt();
+        }
+      }
+
+      complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {}
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+
+  /**
+   * Start the deadline of the request's queries. The deadline is passed to the database as the
+   * query timeout of each statement, and may be enforced while reading with a DeadlineStream.
+   *
+   * @param timeout The timeout parameter in seconds, or null for the default
+   * @param defaultSeconds The endpoint's default seconds, or 0 for no deadline by default
+   * @return The seconds allowed, or 0 if there is no deadline
+   * @throws IllegalArgumentException If the timeout parameter is not a positive number
+   */
+  protected static long startDeadline(String timeout, long defaultSeconds) {
+    long seconds = defaultSeconds;
+
+    if (timeout != null && !timeout.trim().isEmpty()) {
+      try {
+        seconds = Long.parseLong(timeout.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Timeout (timeout) is not a number: '" + timeout + "'");
+      }
+
+      if (seconds <= 0) {
+        throw new IllegalArgumentException("Timeout (timeout) must be > 0");
+      }
+
+      if (MAX_DEADLINE_SECONDS > 0) {
+        seconds = Math.min(seconds, MAX_DEADLINE_SECONDS);
+      }
+    }
+
+    QueryCanceller canceller = QueryCanceller.current();
+
+    if (seconds <= 0 || canceller == null) {
+      return 0;
+    }
+
+    canceller.setDeadline(seconds * 1000);
+
+    return seconds;
+  }
+
+  /**
+   * Determine whether a query failed because the request ran out of time, either its own deadline
+   * or that of an identical request whose result it shared.
+   *
+   * @param e The exception
+   * @return true if out of time
+   */
+  protected static boolean isDeadlineExceeded(Throwable e) {
+    if (QueryCanceller.isCurrentExpired()) {
+      return true;
+    }
+
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLTimeoutException) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Determine whether the output layout is compact: columns with delta encoded timestamps.
+   *
+   * @param o The output layout parameter
+   * @return true for compact
+   */
+  protected static boolean isCompactLayout(String o) {
+    return o != null && o.trim().equals("compact");
+  }
+
   private void writeDisconnectAndType(JsonGenerator gen, Event event) {
     if (event.getCode().isDisconnection()) {
       gen.write("x", JsonValue.TRUE);
@@ -31,6 +591,73 @@ public class QueryController extends HttpServlet {
     }
   }
 
+  /**
+   * Write an event of any supported type, using the write method of its class.
+   *
+   * @param name The name of the event object, or null if an array element
+   * @param gen The JsonGenerator
+   * @param event The event
+   * @param formatAsMillisSinceEpoch true to format timestamp as millis since epoch
+   * @param adjustMillisWithServerOffset true to adjust timestamp to server timezone offset
+   * @param timestampFormatter timestamp formatter
+   * @param sigFigs The number of significant figures to round float values to
+   * @throws IllegalArgumentException If the event type is not supported
+   */
+  public void writeEvent(
+      String name,
+      JsonGenerator gen,
+      Event event,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs) {
+    if (event instanceof AnalyzedFloatEvent) {
+      writeAnalyzedFloatEvent(
+          name,
+          gen,
+          (AnalyzedFloatEvent) event,
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter,
+          sigFigs);
+    } else if (event instanceof FloatEvent) {
+      writeFloatEvent(
+          name,
+          gen,
+          (FloatEvent) event,
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter,
+          sigFigs);
+    } else if (event instanceof LabeledEnumEvent) {
+      writeLabeledEnumEvent(
+          name,
+          gen,
+          (LabeledEnumEvent) event,
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter);
+    } else if (event instanceof IntEvent) {
+      writeIntEvent(
+          name,
+          gen,
+          (IntEvent) event,
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter);
+    } else if (event instanceof MultiStringEvent) {
+      writeMultiStringEvent(
+          name,
+          gen,
+          (MultiStringEvent) event,
+          formatAsMillisSinceEpoch,
+          adjustMillisWithServerOffset,
+          timestampFormatter);
+    } else {
+      throw new IllegalArgumentException("Unsupported data type: " + event.getClass());
+    }
+  }
+
   public void writeIntEvent(
       String name,
       JsonGenerator gen,
@@ -83,10 +710,8 @@ public class QueryController extends HttpServlet {
         timestampFormatter);
 
     if (!event.getCode().isDisconnection()) {
-      // Round number (banker's rounding) and create String then create new BigDecimal to ensure no
-      // quotes are used in JSON
-      BigDecimal bd = new BigDecimal(event.getValue());
-      gen.write("v", bd.round(new MathContext(sigFigs)));
+      // Round number (HALF_UP, same output as BigDecimal) and write as an unquoted JSON number
+      SignificantFigureFormatter.write(gen, "v", event.getValue(), sigFigs);
     }
     writeDisconnectAndType(gen, event);
 
@@ -116,10 +741,8 @@ public class QueryController extends HttpServlet {
         timestampFormatter);
 
     if (!event.getCode().isDisconnection()) {
-      // Round number (banker's rounding) and create String then create new BigDecimal to ensure no
-      // quotes are used in JSON
-      BigDecimal bd = new BigDecimal(event.getValue());
-      gen.write("v", bd.round(new MathContext(sigFigs)));
+      // Round number (HALF_UP, same output as BigDecimal) and write as an unquoted JSON number
+      SignificantFigureFormatter.write(gen, "v", event.getValue(), sigFigs);
     }
     writeDisconnectAndType(gen, event);
 
@@ -132,8 +755,7 @@ public class QueryController extends HttpServlet {
       // loop that
       // references short[] map for position/index of each stat
       // i for integration?   Good enough for now
-      BigDecimal bd = new BigDecimal(stats[0]);
-      gen.write("i", bd.round(new MathContext(sigFigs)));
+      SignificantFigureFormatter.write(gen, "i", stats[0], sigFigs);
     }
 
     gen.writeEnd();
@@ -231,8 +853,6 @@ public class QueryController extends HttpServlet {
     gen.write("eventCount", stat.getEventCount());
     gen.write("updateCount", stat.getUpdateCount());
 
-    MathContext context = new MathContext(sigFigs);
-
     if (stat.getDuration() == null) {
       gen.writeNull("duration");
     } else {
@@ -249,32 +869,27 @@ public class QueryController extends HttpServlet {
     if (stat.getMax() == null) {
       gen.writeNull("max");
     } else {
-      BigDecimal bd = new BigDecimal(stat.getMax());
-      gen.write("max", bd.round(context));
+      SignificantFigureFormatter.write(gen, "max", stat.getMax(), sigFigs);
     }
     if (stat.getMean() == null) {
       gen.writeNull("mean");
     } else {
-      BigDecimal bd = new BigDecimal(stat.getMean());
-      gen.write("mean", bd.round(context));
+      SignificantFigureFormatter.write(gen, "mean", stat.getMean(), sigFigs);
     }
     if (stat.getMin() == null) {
       gen.writeNull("min");
     } else {
-      BigDecimal bd = new BigDecimal(stat.getMin());
-      gen.write("min", bd.round(context));
+      SignificantFigureFormatter.write(gen, "min", stat.getMin(), sigFigs);
     }
     if (stat.getRms() == null) {
       gen.writeNull("rms");
     } else {
-      BigDecimal bd = new BigDecimal(stat.getRms());
-      gen.write("rms", bd.round(context));
+      SignificantFigureFormatter.write(gen, "rms", stat.getRms(), sigFigs);
     }
     if (stat.getSigma() == null) {
       gen.writeNull("stdev");
     } else {
-      BigDecimal bd = new BigDecimal(stat.getSigma());
-      gen.write("stdev", bd.round(context));
+      SignificantFigureFormatter.write(gen, "stdev", stat.getSigma(), sigFigs);
     }
     gen.writeEnd();
   }
@@ -364,6 +979,95 @@ public class QueryController extends HttpServlet {
     }
   }
 
+  /**
+   * Write out the events of a stream with an EventArrayWriter. The generator must have started the
+   * data array, and it is flushed first so the events follow everything it has written; the
+   * generator may then end the array as usual.
+   *
+   * @param gen The JsonGenerator which started the array
+   * @param out The OutputStream the generator writes to
+   * @param stream The EventStream, of a type EventArrayWriter supports
+   * @param formatAsMillisSinceEpoch true to format timestamp as millis since epoch
+   * @param adjustMillisWithServerOffset true to adjust timestamp to server timezone offset
+   * @param timestampFormatter timestamp formatter
+   * @param sigFigs The number of significant figures to round float values to
+   * @return The count of events written
+   * @throws IOException If Unable to generate the stream
+   */
+  public long generateEventArray(
+      JsonGenerator gen,
+      OutputStream out,
+      EventStream<? extends Event> stream,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs)
+      throws IOException {
+    gen.flush();
+
+    EventArrayWriter writer =
+        new EventArrayWriter(
+            out,
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter,
+            sigFigs);
+
+    try {
+      return writer.writeStream(stream);
+    } finally {
+      // Events written before any error are kept, as with the generator
+      writer.flush();
+    }
+  }
+
+  /**
+   * Write out the events of a stream as the columns of a ColumnarEventWriter. The generator must
+   * have started the data object, and it is flushed before the columns are written; the generator
+   * may then end the object as usual.
+   *
+   * @param gen The JsonGenerator which started the object
+   * @param out The OutputStream the generator writes to
+   * @param encoding The encoding of the generator
+   * @param stream The EventStream, of a type ColumnarEventWriter supports
+   * @param formatAsMillisSinceEpoch true to format timestamp as millis since epoch
+   * @param adjustMillisWithServerOffset true to adjust timestamp to server timezone offset
+   * @param timestampFormatter timestamp formatter
+   * @param sigFigs The number of significant figures to round float values to
+   * @param deltaTimestamps true to write timestamps as deltas (the compact layout)
+   * @param step The expected milliseconds between events, or 0 if not fixed
+   * @return The count of events written
+   * @throws IOException If Unable to generate the stream
+   */
+  public long generateColumns(
+      JsonGenerator gen,
+      OutputStream out,
+      ResponseEncoding encoding,
+      EventStream<? extends Event> stream,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs,
+      boolean deltaTimestamps,
+      long step)
+      throws IOException {
+    ColumnarEventWriter writer =
+        new ColumnarEventWriter(
+            encoding,
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter,
+            sigFigs,
+            deltaTimestamps,
+            step);
+
+    long count = writer.addStream(stream);
+
+    writer.writeTo(gen, out);
+
+    return count;
+  }
+
   /**
    * Write out the IntEventStream to a JsonGenerator.
    *
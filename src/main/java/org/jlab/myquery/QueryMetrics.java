@@ -0,0 +1,437 @@
+package org.jlab.myquery;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request and query metrics, written in the Prometheus text format by the /metrics endpoint. All
+ * recording is with LongAdder counters, so recording never blocks and costs little enough to stay
+ * on in production; the counters are only summed when the metrics are written.
+ *
+ * @author agent
+ */
+public final class QueryMetrics {
+
+  /** The upper bounds in seconds of the request duration histogram buckets */
+  private static final double[] REQUEST_BUCKETS = {
+    0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300
+  };
+
+  /** The upper bounds in seconds of the connection pool wait histogram buckets */
+  private static final double[] POOL_WAIT_BUCKETS = {
+    0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30
+  };
+
+  private static final ConcurrentHashMap<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+
+  private static final ConcurrentHashMap<String, Histogram> POOL_WAITS = new ConcurrentHashMap<>();
+
+  private QueryMetrics() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Get the metrics of a controller.
+   *
+   * @param name The servlet name of the controller, such as IntervalController
+   * @return The metrics
+   */
+  public static Endpoint getEndpoint(String name) {
+    return ENDPOINTS.computeIfAbsent(name, n -> new Endpoint());
+  }
+
+  /**
+   * Record the time taken to get a connection from a deployment's pool.
+   *
+   * @param deployment The deployment name
+   * @param nanos The nanoseconds waited
+   */
+  public static void recordPoolWait(String deployment, long nanos) {
+    POOL_WAITS.computeIfAbsent(deployment, d -> new Histogram(POOL_WAIT_BUCKETS)).record(nanos);
+  }
+
+  /**
+   * Write all metrics in the Prometheus text exposition format.
+   *
+   * @param out The writer
+   * @throws IOException If unable to write
+   */
+  public static void writeTo(Writer out) throws IOException {
+    // Sorted so the output is stable between scrapes
+    Map<String, Endpoint> endpoints = new TreeMap<>(ENDPOINTS);
+
+    help(out, "myquery_requests_total", "counter", "Requests handled, by status class");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      for (int i = 0; i < entry.getValue().statuses.length; i++) {
+        sample(
+            out,
+            "myquery_requests_total",
+            endpoint(entry) + ",status=\"" + (i + 1) + "xx\"",
+            entry.getValue().statuses[i].sum());
+      }
+    }
+
+    help(out, "myquery_errors_total", "counter", "Requests which failed or had an error status");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      sample(out, "myquery_errors_total", endpoint(entry), entry.getValue().errors.sum());
+    }
+
+    help(out, "myquery_requests_in_progress", "gauge", "Requests being handled");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      sample(out, "myquery_requests_in_progress", endpoint(entry), entry.getValue().active.sum());
+    }
+
+    help(out, "myquery_request_duration_seconds", "histogram", "Time to handle a request");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      entry.getValue().durations.writeTo(out, "myquery_request_duration_seconds", endpoint(entry));
+    }
+
+    help(out, "myquery_events_written_total", "counter", "Events written (returnCount)");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      sample(out, "myquery_events_written_total", endpoint(entry), entry.getValue().events.sum());
+    }
+
+    help(out, "myquery_bytes_written_total", "counter", "Response bytes, before compression");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      sample(out, "myquery_bytes_written_total", endpoint(entry), entry.getValue().bytes.sum());
+    }
+
+    help(out, "myquery_responses_sampled_total", "counter", "Responses by whether data sampled");
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      Endpoint e = entry.getValue();
+      if (e.sampled.sum() + e.unsampled.sum() > 0) {
+        sample(
+            out,
+            "myquery_responses_sampled_total",
+            endpoint(entry) + ",sampled=\"true\"",
+            e.sampled.sum());
+        sample(
+            out,
+            "myquery_responses_sampled_total",
+            endpoint(entry) + ",sampled=\"false\"",
+            e.unsampled.sum());
+      }
+    }
+
+    help(out, "myquery_pool_wait_seconds", "histogram", "Time to get a database connection");
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(POOL_WAITS).entrySet()) {
+      entry.getValue().writeTo(out, "myquery_pool_wait_seconds", deployment(entry.getKey()));
+    }
+
+    writeCacheMetrics(out);
+    writeCoalescingMetrics(out);
+    writeAdmissionMetrics(out);
+
+    help(out, "myquery_cancelled_requests_total", "counter", "Requests cancelled by disconnect");
+    sample(out, "myquery_cancelled_requests_total", null, QueryCanceller.getCancelledCount());
+
+    help(out, "myquery_expired_requests_total", "counter", "Requests which ran out of time");
+    sample(out, "myquery_expired_requests_total", null, QueryCanceller.getExpiredCount());
+
+    help(out, "myquery_tail_watched_channels", "gauge", "Channels polled for /tail clients");
+    sample(out, "myquery_tail_watched_channels", null, TailWebService.getWatchedChannelCount());
+
+    help(out, "myquery_tail_coalesced_updates_total", "counter", "Updates skipped by slow tails");
+    sample(out, "myquery_tail_coalesced_updates_total", null, TailWebService.getCoalescedCount());
+  }
+
+  private static void writeCacheMetrics(Writer out) throws IOException {
+    ResponseCache cache = ResponseCache.INTERVAL_CACHE;
+
+    help(out, "myquery_response_cache_hits_total", "counter", "/interval response cache hits");
+    sample(out, "myquery_response_cache_hits_total", "tier=\"memory\"", cache.getMemoryHitCount());
+    sample(out, "myquery_response_cache_hits_total", "tier=\"disk\"", cache.getDiskHitCount());
+
+    help(out, "myquery_response_cache_misses_total", "counter", "/interval response cache misses");
+    sample(out, "myquery_response_cache_misses_total", null, cache.getMissCount());
+
+    help(out, "myquery_response_cache_evictions_total", "counter", "Responses evicted");
+    sample(out, "myquery_response_cache_evictions_total", null, cache.getEvictionCount());
+
+    help(out, "myquery_metadata_cache_hits_total", "counter", "Channel metadata cache hits");
+    for (Bulkhead bulkhead : bulkheads().values()) {
+      MetadataCache metadata = QueryWebService.getMetadataCache(bulkhead.getDeployment());
+      sample(
+          out,
+          "myquery_metadata_cache_hits_total",
+          deployment(bulkhead.getDeployment()),
+          metadata.getHitCount() + metadata.getNegativeHitCount());
+    }
+
+    help(out, "myquery_metadata_cache_misses_total", "counter", "Channel metadata cache misses");
+    for (Bulkhead bulkhead : bulkheads().values()) {
+      sample(
+          out,
+          "myquery_metadata_cache_misses_total",
+          deployment(bulkhead.getDeployment()),
+          QueryWebService.getMetadataCache(bulkhead.getDeployment()).getMissCount());
+    }
+  }
+
+  private static void writeCoalescingMetrics(Writer out) throws IOException {
+    Map<String, SingleFlight<?>> flights = new TreeMap<>();
+    flights.put("interval", IntervalWebService.RESPONSE_FLIGHTS);
+    flights.put("mystats", IntervalWebService.STATS_FLIGHTS);
+    flights.put("point", PointWebService.POINT_FLIGHTS);
+
+    help(out, "myquery_single_flight_leaders_total", "counter", "Queries done for coalesced keys");
+    for (Map.Entry<String, SingleFlight<?>> entry : flights.entrySet()) {
+      sample(
+          out,
+          "myquery_single_flight_leaders_total",
+          "flight=\"" + entry.getKey() + "\"",
+          entry.getValue().getLeaderCount());
+    }
+
+    help(out, "myquery_single_flight_coalesced_total", "counter", "Queries shared, not repeated");
+    for (Map.Entry<String, SingleFlight<?>> entry : flights.entrySet()) {
+      sample(
+          out,
+          "myquery_single_flight_coalesced_total",
+          "flight=\"" + entry.getKey() + "\"",
+          entry.getValue().getCoalescedCount());
+    }
+  }
+
+  private static void writeAdmissionMetrics(Writer out) throws IOException {
+    help(out, "myquery_admission_admitted_total", "counter", "Requests admitted");
+    sample(out, "myquery_admission_admitted_total", null, AdmissionControl.getAdmittedCount());
+
+    help(out, "myquery_admission_rejected_total", "counter", "Requests refused with 429");
+    sample(
+        out,
+        "myquery_admission_rejected_total",
+        "reason=\"client\"",
+        AdmissionControl.getRejectedClientCount());
+    sample(
+        out,
+        "myquery_admission_rejected_total",
+        "reason=\"expensive\"",
+        AdmissionControl.getRejectedExpensiveCount());
+
+    help(out, "myquery_admission_expensive_in_progress", "gauge", "Expensive requests running");
+    sample(
+        out,
+        "myquery_admission_expensive_in_progress",
+        null,
+        AdmissionControl.getExpensiveInProgress());
+
+    help(out, "myquery_admission_queued_seconds_total", "counter", "Time waited for a slot");
+    seconds(out, "myquery_admission_queued_seconds_total", null, AdmissionControl.getQueuedNanos());
+
+    Map<String, Bulkhead> bulkheads = bulkheads();
+
+    help(out, "myquery_bulkhead_active_requests", "gauge", "Requests of a deployment running");
+    for (Bulkhead b : bulkheads.values()) {
+      sample(
+          out,
+          "myquery_bulkhead_active_requests",
+          deployment(b.getDeployment()),
+          b.getActiveCount());
+    }
+
+    help(out, "myquery_bulkhead_waiting_requests", "gauge", "Requests waiting to start");
+    for (Bulkhead b : bulkheads.values()) {
+      sample(
+          out,
+          "myquery_bulkhead_waiting_requests",
+          deployment(b.getDeployment()),
+          b.getWaitingCount());
+    }
+
+    help(out, "myquery_bulkhead_rejected_total", "counter", "Requests refused with 503");
+    for (Bulkhead b : bulkheads.values()) {
+      sample(
+          out,
+          "myquery_bulkhead_rejected_total",
+          deployment(b.getDeployment()) + ",reason=\"full\"",
+          b.getRejectedFullCount());
+      sample(
+          out,
+          "myquery_bulkhead_rejected_total",
+          deployment(b.getDeployment()) + ",reason=\"timeout\"",
+          b.getRejectedTimeoutCount());
+    }
+
+    help(out, "myquery_bulkhead_wait_seconds_total", "counter", "Time waited to start");
+    for (Bulkhead b : bulkheads.values()) {
+      seconds(
+          out,
+          "myquery_bulkhead_wait_seconds_total",
+          deployment(b.getDeployment()),
+          b.getWaitNanos());
+    }
+
+    help(out, "myquery_bulkhead_query_overflows_total", "counter", "Parallel queries not queued");
+    for (Bulkhead b : bulkheads.values()) {
+      sample(
+          out,
+          "myquery_bulkhead_query_overflows_total",
+          deployment(b.getDeployment()),
+          b.getQueryOverflowCount());
+    }
+  }
+
+  private static Map<String, Bulkhead> bulkheads() {
+    Map<String, Bulkhead> bulkheads = new TreeMap<>();
+
+    for (Bulkhead bulkhead : QueryWebService.getBulkheads()) {
+      bulkheads.put(bulkhead.getDeployment(), bulkhead);
+    }
+
+    return bulkheads;
+  }
+
+  private static String endpoint(Map.Entry<String, ?> entry) {
+    return "controller=\"" + escape(entry.getKey()) + "\"";
+  }
+
+  private static String deployment(String deployment) {
+    return "deployment=\"" + escape(deployment) + "\"";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void help(Writer out, String name, String type, String help) throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  private static void sample(Writer out, String name, String labels, long value)
+      throws IOException {
+    out.write(name);
+    if (labels != null) {
+      out.write("{" + labels + "}");
+    }
+    out.write(" " + value + "\n");
+  }
+
+  private static void seconds(Writer out, String name, String labels, long nanos)
+      throws IOException {
+    out.write(name);
+    if (labels != null) {
+      out.write("{" + labels + "}");
+    }
+    out.write(" " + (nanos / 1e9) + "\n");
+  }
+
+  /** The metrics of a controller. */
+  public static final class Endpoint {
+    private final LongAdder[] statuses = newAdders(5);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final Histogram durations = new Histogram(REQUEST_BUCKETS);
+    private final LongAdder events = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder unsampled = new LongAdder();
+
+    private Endpoint() {}
+
+    /** Count a request starting. */
+    public void start() {
+      active.increment();
+    }
+
+    /**
+     * Count a request finishing.
+     *
+     * @param status The response status
+     * @param failed true if the request threw an exception
+     * @param nanos The nanoseconds taken
+     * @param bytesWritten The response bytes written
+     */
+    public void finish(int status, boolean failed, long nanos, long bytesWritten) {
+      active.decrement();
+
+      if (failed) {
+        status = 500;
+      }
+
+      int index = status / 100 - 1;
+      if (index >= 0 && index < statuses.length) {
+        statuses[index].increment();
+      }
+
+      if (failed || status >= 400) {
+        errors.increment();
+      }
+
+      durations.record(nanos);
+      bytes.add(bytesWritten);
+    }
+
+    /**
+     * Count events written to a response.
+     *
+     * @param count The number of events
+     */
+    public void addEvents(long count) {
+      events.add(count);
+    }
+
+    /**
+     * Count a response by whether its data was sampled.
+     *
+     * @param isSampled true if sampled
+     */
+    public void addResponse(boolean isSampled) {
+      (isSampled ? sampled : unsampled).increment();
+    }
+  }
+
+  /** A histogram with fixed buckets, recorded without locking. */
+  private static final class Histogram {
+    private final double[] bounds;
+    private final long[] boundNanos;
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+
+    private Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.boundNanos = new long[bounds.length];
+      for (int i = 0; i < bounds.length; i++) {
+        boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+      }
+      // The last bucket is +Inf
+      this.buckets = newAdders(bounds.length + 1);
+    }
+
+    private void record(long nanos) {
+      int i = 0;
+      while (i < boundNanos.length && nanos > boundNanos[i]) {
+        i++;
+      }
+
+      buckets[i].increment();
+      sumNanos.add(nanos);
+    }
+
+    private void writeTo(Writer out, String name, String labels) throws IOException {
+      // Prometheus buckets are cumulative
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String le = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+        sample(out, name + "_bucket", labels + ",le=\"" + le + "\"", cumulative);
+      }
+      seconds(out, name + "_sum", labels, sumNanos.sum());
+      sample(out, name + "_count", labels, cumulative);
+    }
+  }
+
+  private static LongAdder[] newAdders(int length) {
+    LongAdder[] adders = new LongAdder[length];
+    for (int i = 0; i < length; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+}
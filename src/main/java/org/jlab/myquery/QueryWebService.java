@@ -1,7 +1,15 @@
 package org.jlab.myquery;
 
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import javax.naming.NamingException;
+import org.jlab.mya.ExtraInfo;
+import org.jlab.mya.Metadata;
 import org.jlab.mya.nexus.DataNexus;
 import org.jlab.mya.nexus.PooledNexus;
 
@@ -10,13 +18,33 @@ import org.jlab.mya.nexus.PooledNexus;
  */
 public class QueryWebService {
 
+  /**
+   * The number of threads per deployment used to run queries in parallel. Defaults to the maxTotal
+   * of the connection pools in the example context.xml so parallel queries don't wait on the pool.
+   */
+  public static final int PARALLEL_QUERY_THREADS =
+      ConfigUtil.getEnvInt("PARALLEL_QUERY_THREADS", 4);
+
   protected static final ConcurrentHashMap<String, PooledNexus> nexusMap =
       new ConcurrentHashMap<>();
 
+  protected static final ConcurrentHashMap<String, MetadataCache> metadataCacheMap =
+      new ConcurrentHashMap<>();
+
+  protected static final ConcurrentHashMap<String, ExtraInfoCache> extraInfoCacheMap =
+      new ConcurrentHashMap<>();
+
+  protected static final ConcurrentHashMap<String, Bulkhead> bulkheadMap =
+      new ConcurrentHashMap<>();
+
   static {
     for (String d : DataNexus.getDeploymentNames()) {
       try {
-        nexusMap.putIfAbsent(d, new PooledNexus(d));
+        PooledNexus nexus = new CancellableNexus(d);
+        nexusMap.putIfAbsent(d, nexus);
+        metadataCacheMap.putIfAbsent(d, new MetadataCache(nexus));
+        extraInfoCacheMap.putIfAbsent(d, new ExtraInfoCache(nexus));
+        bulkheadMap.putIfAbsent(d, new Bulkhead(d, PARALLEL_QUERY_THREADS));
       } catch (NamingException e) {
         throw new ExceptionInInitializerError(e);
       }
@@ -30,4 +58,105 @@ public class QueryWebService {
 
     return nexusMap.get(deployment);
   }
+
+  /**
+   * Get the Metadata cache for a deployment.
+   *
+   * @param deployment The deployment name
+   * @return The cache
+   */
+  public static MetadataCache getMetadataCache(String deployment) {
+    if (!metadataCacheMap.containsKey(deployment)) {
+      throw new IllegalArgumentException("Unrecognized deployment - " + deployment);
+    }
+
+    return metadataCacheMap.get(deployment);
+  }
+
+  /**
+   * Find the Metadata for a channel, consulting the deployment's Metadata cache first.
+   *
+   * @param nexus The DataNexus of the deployment
+   * @param c The channel name
+   * @return The Metadata or null if not found
+   * @throws SQLException If unable to query the database
+   */
+  protected final Metadata findCachedMetadata(DataNexus nexus, String c) throws SQLException {
+    return getMetadataCache(nexus.getDeployment()).findMetadata(c);
+  }
+
+  /**
+   * Get the ExtraInfo cache for a deployment.
+   *
+   * @param deployment The deployment name
+   * @return The cache
+   */
+  public static ExtraInfoCache getExtraInfoCache(String deployment) {
+    if (!extraInfoCacheMap.containsKey(deployment)) {
+      throw new IllegalArgumentException("Unrecognized deployment - " + deployment);
+    }
+
+    return extraInfoCacheMap.get(deployment);
+  }
+
+  /**
+   * Find the ExtraInfo for a channel, answered from the deployment's ExtraInfo cache when possible.
+   *
+   * @param nexus The DataNexus of the deployment
+   * @param metadata The channel metadata
+   * @param type The ExtraInfo type, such as enum_strings
+   * @param begin The begin time, or null for the beginning of history
+   * @param end The end time, or null for the end of history
+   * @return The ExtraInfo list
+   * @throws SQLException If unable to query the database
+   */
+  protected final List<ExtraInfo> findCachedExtraInfo(
+      DataNexus nexus, Metadata metadata, String type, Instant begin, Instant end)
+      throws SQLException {
+    return getExtraInfoCache(nexus.getDeployment()).findExtraInfo(metadata, type, begin, end);
+  }
+
+  /**
+   * Get the executor for running queries against a deployment in parallel. The executor has a
+   * bounded number of threads so parallel queries never hold more than that many connections.
+   *
+   * @param deployment The deployment name
+   * @return The executor
+   */
+  public static ExecutorService getExecutor(String deployment) {
+    return getBulkhead(deployment).getExecutor();
+  }
+
+  /**
+   * Get the bulkhead isolating the requests of a deployment from those of the others.
+   *
+   * @param deployment The deployment name
+   * @return The bulkhead
+   */
+  public static Bulkhead getBulkhead(String deployment) {
+    if (!bulkheadMap.containsKey(deployment)) {
+      throw new IllegalArgumentException("Unrecognized deployment - " + deployment);
+    }
+
+    return bulkheadMap.get(deployment);
+  }
+
+  /**
+   * Get the bulkheads of all deployments.
+   *
+   * @return The bulkheads
+   */
+  public static Collection<Bulkhead> getBulkheads() {
+    return Collections.unmodifiableCollection(bulkheadMap.values());
+  }
+
+  /**
+   * Determine whether a deployment is configured.
+   *
+   * @param deployment The deployment name
+   * @return true if configured
+   */
+  public static boolean isDeployment(String deployment) {
+    return deployment != null && nexusMap.containsKey(deployment);
+  }
 }
@@ -0,0 +1,461 @@
+package org.jlab.myquery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A server-side cache of serialized response bodies for queries whose results can no longer change
+ * (time windows entirely in the past).
+ *
+ * <p>Bodies are kept in memory up to a byte budget. When the memory budget is exceeded entries are
+ * evicted using either a least recently used (LRU) or least frequently used (LFU) policy, and if a
+ * disk budget is configured evicted entries spill to files on disk where they are again evicted LRU
+ * once the disk budget is exceeded. A disk hit is promoted back into memory.
+ *
+ * <p>Configured with the environment variables RESPONSE_CACHE_MEMORY_BYTES (default 64 MiB, zero
+ * disables caching), RESPONSE_CACHE_MAX_ENTRY_BYTES (default 8 MiB), RESPONSE_CACHE_DISK_BYTES
+ * (default 0, no disk tier), RESPONSE_CACHE_DIR (default a myquery-response-cache directory in
+ * java.io.tmpdir), RESPONSE_CACHE_POLICY (LRU or LFU, default LRU), RESPONSE_CACHE_TTL_SECONDS
+ * (default 86400; bounds how stale the channel metadata echoed in a response can become), and
+ * RESPONSE_CACHE_MIN_AGE_SECONDS (default 300; how far in the past a window must end before it is
+ * considered complete, since events are archived with some delay).
+ *
+ * @author agent
+ */
+public class ResponseCache {
+
+  private static final Logger LOGGER = Logger.getLogger(ResponseCache.class.getName());
+
+  public enum Policy {
+    LRU,
+    LFU
+  }
+
+  public static final ResponseCache INTERVAL_CACHE = new ResponseCache("interval");
+
+  private final long memoryBudget =
+      ConfigUtil.getEnvLong("RESPONSE_CACHE_MEMORY_BYTES", 64L * 1024 * 1024);
+  private final long maxEntryBytes =
+      ConfigUtil.getEnvLong("RESPONSE_CACHE_MAX_ENTRY_BYTES", 8L * 1024 * 1024);
+  private final long diskBudget = ConfigUtil.getEnvLong("RESPONSE_CACHE_DISK_BYTES", 0);
+  private final long ttlMillis = ConfigUtil.getEnvLong("RESPONSE_CACHE_TTL_SECONDS", 86400) * 1000;
+  private final long minAgeSeconds = ConfigUtil.getEnvLong("RESPONSE_CACHE_MIN_AGE_SECONDS", 300);
+  private final Policy policy;
+  private final Path diskDir;
+
+  private final LinkedHashMap<String, Entry> memoryMap = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, DiskEntry> diskMap = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes = 0;
+  private long diskBytes = 0;
+
+  private final LongAdder memoryHits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private ResponseCache(String name) {
+    String p = System.getenv("RESPONSE_CACHE_POLICY");
+    policy = (p == null || p.trim().isEmpty()) ? Policy.LRU : Policy.valueOf(p.trim());
+
+    String dir = System.getenv("RESPONSE_CACHE_DIR");
+    if (dir == null || dir.trim().isEmpty()) {
+      diskDir = Paths.get(System.getProperty("java.io.tmpdir"), "myquery-response-cache", name);
+    } else {
+      diskDir = Paths.get(dir.trim(), name);
+    }
+  }
+
+  public boolean isEnabled() {
+    return memoryBudget > 0;
+  }
+
+  /**
+   * Determine whether a response for a window ending at the given time may be cached.
+   *
+   * @param end The end of the requested time window
+   * @return true if caching is enabled and the window is old enough to be complete
+   */
+  public boolean isCacheable(Instant end) {
+    return isEnabled() && end.isBefore(Instant.now().minusSeconds(minAgeSeconds));
+  }
+
+  public long getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * Lookup a cached response.
+   *
+   * @param key The normalized request key
+   * @return The cached response or null if not cached
+   */
+  public CachedResponse get(String key) {
+    if (!isEnabled()) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    DiskEntry diskEntry;
+
+    synchronized (this) {
+      Entry entry = memoryMap.get(key);
+
+      if (entry != null) {
+        if (now - entry.response.createdMillis < ttlMillis) {
+          entry.hits++;
+          memoryHits.increment();
+          return entry.response;
+        }
+        memoryMap.remove(key);
+        memoryBytes -= entry.response.body.length;
+      }
+
+      diskEntry = diskMap.get(key);
+    }
+
+    if (diskEntry != null) {
+      CachedResponse response = readFromDisk(key, diskEntry);
+
+      if (response != null && now - response.createdMillis < ttlMillis) {
+        diskHits.increment();
+        put(key, response);
+        return response;
+      }
+    }
+
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Store a response body in the cache.
+   *
+   * @param key The normalized request key
+   * @param response The response
+   */
+  public void put(String key, CachedResponse response) {
+    if (!isEnabled() || response.body.length > maxEntryBytes) {
+      return;
+    }
+
+    List<Map.Entry<String, Entry>> spilled = new ArrayList<>();
+
+    synchronized (this) {
+      Entry previous = memoryMap.put(key, new Entry(response));
+      if (previous != null) {
+        memoryBytes -= previous.response.body.length;
+      }
+      memoryBytes += response.body.length;
+
+      DiskEntry stale = diskMap.remove(key);
+      if (stale != null) {
+        diskBytes -= stale.size;
+        deleteQuietly(stale.path);
+      }
+
+      while (memoryBytes > memoryBudget && !memoryMap.isEmpty()) {
+        Map.Entry<String, Entry> victim = selectVictim();
+        memoryMap.remove(victim.getKey());
+        memoryBytes -= victim.getValue().response.body.length;
+        evictions.increment();
+        spilled.add(victim);
+      }
+    }
+
+    if (diskBudget > 0) {
+      for (Map.Entry<String, Entry> victim : spilled) {
+        writeToDisk(victim.getKey(), victim.getValue().response);
+      }
+    }
+  }
+
+  private Map.Entry<String, Entry> selectVictim() {
+    Iterator<Map.Entry<String, Entry>> iterator = memoryMap.entrySet().iterator();
+    Map.Entry<String, Entry> victim = iterator.next(); // Least recently used
+
+    if (policy == Policy.LFU) {
+      while (iterator.hasNext()) {
+        Map.Entry<String, Entry> candidate = iterator.next();
+        if (candidate.getValue().hits < victim.getValue().hits) {
+          victim = candidate;
+        }
+      }
+    }
+
+    return victim;
+  }
+
+  private void writeToDisk(String key, CachedResponse response) {
+    Path path = diskDir.resolve(hash(key));
+
+    try {
+      Files.createDirectories(diskDir);
+      try (OutputStream out = Files.newOutputStream(path)) {
+        out.write(response.sampled ? 1 : 0);
+        out.write(longToBytes(response.createdMillis));
+        out.write(response.body);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to spill cached response to disk", e);
+      deleteQuietly(path);
+      return;
+    }
+
+    long size = response.body.length + 9L;
+    List<Path> deletes = new ArrayList<>();
+
+    synchronized (this) {
+      DiskEntry previous = diskMap.put(key, new DiskEntry(path, size));
+      if (previous != null) {
+        diskBytes -= previous.size;
+      }
+      diskBytes += size;
+
+      Iterator<Map.Entry<String, DiskEntry>> iterator = diskMap.entrySet().iterator();
+      while (diskBytes > diskBudget && iterator.hasNext()) {
+        DiskEntry victim = iterator.next().getValue();
+        iterator.remove();
+        diskBytes -= victim.size;
+        evictions.increment();
+        deletes.add(victim.path);
+      }
+    }
+
+    for (Path p : deletes) {
+      deleteQuietly(p);
+    }
+  }
+
+  private CachedResponse readFromDisk(String key, DiskEntry entry) {
+    try {
+      byte[] bytes = Files.readAllBytes(entry.path);
+      boolean sampled = bytes[0] == 1;
+      long createdMillis = bytesToLong(bytes, 1);
+      byte[] body = new byte[bytes.length - 9];
+      System.arraycopy(bytes, 9, body, 0, body.length);
+      return new CachedResponse(body, sampled, createdMillis);
+    } catch (IOException | RuntimeException e) {
+      // Presumably evicted concurrently
+      synchronized (this) {
+        if (diskMap.get(key) == entry) {
+          diskMap.remove(key);
+          diskBytes -= entry.size;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Discard all cached responses, including any on disk. */
+  public void clear() {
+    List<Path> deletes = new ArrayList<>();
+
+    synchronized (this) {
+      memoryMap.clear();
+      memoryBytes = 0;
+      for (DiskEntry entry : diskMap.values()) {
+        deletes.add(entry.path);
+      }
+      diskMap.clear();
+      diskBytes = 0;
+    }
+
+    for (Path p : deletes) {
+      deleteQuietly(p);
+    }
+  }
+
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  public synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  public long getMemoryHitCount() {
+    return memoryHits.sum();
+  }
+
+  public long getDiskHitCount() {
+    return diskHits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to delete cached response file: " + path, e);
+    }
+  }
+
+  private static String hash(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] longToBytes(long value) {
+    byte[] bytes = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  private static long bytesToLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (bytes[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  /** A serialized response body plus what is needed to reproduce its headers. */
+  public static final class CachedResponse {
+    private final byte[] body;
+    private final boolean sampled;
+    private final long createdMillis;
+
+    public CachedResponse(byte[] body, boolean sampled) {
+      this(body, sampled, System.currentTimeMillis());
+    }
+
+    private CachedResponse(byte[] body, boolean sampled, long createdMillis) {
+      this.body = body;
+      this.sampled = sampled;
+      this.createdMillis = createdMillis;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public boolean isSampled() {
+      return sampled;
+    }
+  }
+
+  /**
+   * An OutputStream which writes through to another stream while keeping a copy of everything
+   * written, up to a limit. If the limit is exceeded the copy is abandoned.
+   */
+  public static final class CaptureOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final long limit;
+    private final Runnable onOverflow;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream(8192);
+
+    public CaptureOutputStream(OutputStream out, long limit) {
+      this(out, limit, null);
+    }
+
+    /**
+     * Create a new CaptureOutputStream.
+     *
+     * @param out The stream to write through to
+     * @param limit The max bytes to copy
+     * @param onOverflow Run when the limit is exceeded, or null
+     */
+    public CaptureOutputStream(OutputStream out, long limit, Runnable onOverflow) {
+      this.out = out;
+      this.limit = limit;
+      this.onOverflow = onOverflow;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      if (copy != null) {
+        copy.write(b);
+        checkLimit();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (copy != null) {
+        copy.write(b, off, len);
+        checkLimit();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private void checkLimit() {
+      if (copy.size() > limit) {
+        copy = null;
+
+        if (onOverflow != null) {
+          onOverflow.run();
+        }
+      }
+    }
+
+    /**
+     * Get the captured bytes.
+     *
+     * @return The bytes or null if the limit was exceeded
+     */
+    public byte[] getCapturedBytes() {
+      return copy == null ? null : copy.toByteArray();
+    }
+  }
+
+  private static final class Entry {
+    private final CachedResponse response;
+    private long hits = 0;
+
+    private Entry(CachedResponse response) {
+      this.response = response;
+    }
+  }
+
+  private static final class DiskEntry {
+    private final Path path;
+    private final long size;
+
+    private DiskEntry(Path path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+  }
+}
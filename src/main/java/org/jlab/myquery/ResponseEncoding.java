@@ -0,0 +1,136 @@
+package org.jlab.myquery;
+
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonGeneratorFactory;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * The encodings a response document can be written in. Every encoding is written through the
+ * JsonGenerator interface, so the QueryController write methods work unchanged with any of them.
+ *
+ * <p>The binary encoding is CBOR (RFC 8949) rather than MessagePack because CBOR has indefinite
+ * length arrays and maps, so responses can be streamed without knowing the number of events in
+ * advance.
+ *
+ * @author agent
+ */
+public enum ResponseEncoding {
+  JSON("application/json"),
+  CBOR("application/cbor");
+
+  /** Creating generators through a shared factory avoids a provider lookup per generator */
+  private static final JsonGeneratorFactory JSON_FACTORY =
+      Json.createGeneratorFactory(Collections.emptyMap());
+
+  private final String contentType;
+
+  ResponseEncoding(String contentType) {
+    this.contentType = contentType;
+  }
+
+  /**
+   * Choose the encoding from the format parameter if given, otherwise from the Accept header.
+   * Formats which aren't encodings of the JSON document (such as arrow) are answered with JSON, for
+   * example when reporting an error.
+   *
+   * @param format The format parameter: json, cbor, or null
+   * @param accept The Accept header, or null
+   * @return The encoding
+   */
+  public static ResponseEncoding negotiate(String format, String accept) {
+    if (format != null) {
+      return format.equals("cbor") ? CBOR : JSON;
+    }
+
+    if (accepts(accept, CBOR.contentType)) {
+      return CBOR;
+    }
+
+    return JSON;
+  }
+
+  /**
+   * Determine whether an Accept header names a media type with a non-zero quality. Wildcards are
+   * ignored, since they are answered with the default of JSON.
+   *
+   * @param accept The Accept header, or null
+   * @param mediaType The media type, such as application/cbor
+   * @return true if acceptable
+   */
+  public static boolean accepts(String accept, String mediaType) {
+    if (accept == null) {
+      return false;
+    }
+
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+
+      if (!parts[0].trim().equalsIgnoreCase(mediaType)) {
+        continue;
+      }
+
+      boolean acceptable = true;
+
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            acceptable = Double.parseDouble(param.substring(2).trim()) > 0;
+          } catch (NumberFormatException e) {
+            acceptable = false;
+          }
+        }
+      }
+
+      return acceptable;
+    }
+
+    return false;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Create a generator.
+   *
+   * @param out The OutputStream, which is closed when the generator is closed
+   * @return The generator
+   */
+  public JsonGenerator createGenerator(OutputStream out) {
+    if (this == CBOR) {
+      return new CborGenerator(out);
+    }
+
+    return JSON_FACTORY.createGenerator(out);
+  }
+
+  /**
+   * Encode an object member name, for writing pre-encoded members directly to the output after a
+   * generator which started the object has been flushed.
+   *
+   * @param name The member name
+   * @param first true if this is the first member of the object
+   * @return The bytes
+   */
+  public byte[] encodeName(String name, boolean first) {
+    if (this == CBOR) {
+      return CborGenerator.encodeText(name);
+    }
+
+    return ((first ? "" : ",") + "\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the bytes separating pre-encoded object members or array elements.
+   *
+   * @return The separator, which may be empty
+   */
+  public byte[] getSeparator() {
+    return this == CBOR ? new byte[0] : new byte[] {','};
+  }
+}
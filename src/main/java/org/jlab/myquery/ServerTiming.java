@@ -0,0 +1,168 @@
+package org.jlab.myquery;
+
+import jakarta.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jlab.mya.event.Event;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * Times the phases of handling a request with System.nanoTime, for the Server-Timing response
+ * header and optionally a timing object in the response. A phase runs from when it begins until
+ * the next phase begins or {@link #end} is called; a phase which occurs more than once is summed.
+ *
+ * <p>Reading a streamed query's events and writing them are interleaved, so reads can be timed
+ * separately with {@link #timeReads}: the time spent reading is the fetch phase and the rest of
+ * the time spent writing the data is the serialize phase.
+ *
+ * @author agent
+ */
+public class ServerTiming {
+
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+  private String phase = null;
+  private long phaseStart;
+  private TimedStream<?> timedStream = null;
+
+  /**
+   * Begin a phase, ending the current one if any.
+   *
+   * @param name The phase name, a token such as metadata
+   */
+  public void begin(String name) {
+    end();
+    phase = name;
+    phaseStart = System.nanoTime();
+  }
+
+  /** End the current phase, if any. */
+  public void end() {
+    if (phase != null) {
+      add(phase, System.nanoTime() - phaseStart);
+      phase = null;
+    }
+  }
+
+  /**
+   * Add time to a phase.
+   *
+   * @param name The phase name
+   * @param nanos The nanoseconds
+   */
+  public void add(String name, long nanos) {
+    phases.merge(name, nanos, Long::sum);
+  }
+
+  /**
+   * Wrap a stream so the time spent reading it is timed, for {@link #addWrite}.
+   *
+   * @param stream The stream
+   * @param <T> The event type
+   * @return The stream to read instead
+   */
+  public <T extends Event> EventStream<T> timeReads(EventStream<T> stream) {
+    TimedStream<T> timed = new TimedStream<>(stream);
+    timedStream = timed;
+    return timed;
+  }
+
+  /**
+   * Add the time spent writing the data: the time spent reading the stream passed to {@link
+   * #timeReads} to the fetch phase, and the rest to the serialize phase.
+   *
+   * @param nanos The nanoseconds spent writing the data, including reading it
+   */
+  public void addWrite(long nanos) {
+    long readNanos = timedStream == null ? 0 : timedStream.readNanos;
+
+    if (timedStream != null) {
+      add("fetch", readNanos);
+    }
+
+    add("serialize", nanos - readNanos);
+  }
+
+  /**
+   * Get the Server-Timing header value, with durations in milliseconds.
+   *
+   * @return The header value, such as metadata;dur=0.512, open;dur=12.030
+   */
+  public String toHeader() {
+    StringBuilder header = new StringBuilder();
+
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      if (header.length() > 0) {
+        header.append(", ");
+      }
+      header.append(entry.getKey()).append(";dur=").append(toMillis(entry.getValue()));
+    }
+
+    return header.toString();
+  }
+
+  /**
+   * Write the phases as a JSON object of milliseconds.
+   *
+   * @param name The object name
+   * @param gen The generator
+   */
+  public void write(String name, JsonGenerator gen) {
+    gen.writeStartObject(name);
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      gen.write(entry.getKey(), toMillis(entry.getValue()));
+    }
+    gen.writeEnd();
+  }
+
+  /**
+   * Get the phases as JSON object text of milliseconds. The phase names are tokens, so need no
+   * escaping.
+   *
+   * @return The JSON text
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{");
+
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append('"').append(entry.getKey()).append("\":").append(toMillis(entry.getValue()));
+    }
+
+    return json.append('}').toString();
+  }
+
+  private static BigDecimal toMillis(long nanos) {
+    return BigDecimal.valueOf(nanos).movePointLeft(6).setScale(3, RoundingMode.HALF_UP);
+  }
+
+  /** Sums the time spent reading the wrapped stream. */
+  private static final class TimedStream<T extends Event> extends EventStream<T> {
+    private final EventStream<T> wrapped;
+    private long readNanos = 0;
+
+    private TimedStream(EventStream<T> wrapped) {
+      super(wrapped.getType());
+      this.wrapped = wrapped;
+    }
+
+    @Override
+    public T read() throws IOException {
+      long start = System.nanoTime();
+      try {
+        return wrapped.read();
+      } finally {
+        readNanos += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      wrapped.close();
+    }
+  }
+}
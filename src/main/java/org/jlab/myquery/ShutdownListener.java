@@ -0,0 +1,25 @@
+package org.jlab.myquery;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+
+/**
+ * This ServletContextListener stops the application's static thread pools when it is undeployed,
+ * so their threads don't outlive it and keep its classloader from being collected.
+ *
+ * @author agent
+ */
+@WebListener
+public class ShutdownListener implements ServletContextListener {
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    QueryController.shutdownRequestExecutor();
+    TailWebService.shutdown();
+
+    for (Bulkhead bulkhead : QueryWebService.getBulkheads()) {
+      bulkhead.shutdown();
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package org.jlab.myquery;
+
+import jakarta.json.JsonNumber;
+import jakarta.json.stream.JsonGenerator;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats a double rounded to a number of significant figures, producing exactly the same
+ * characters as <code>new BigDecimal(value).round(new MathContext(sigFigs)).toString()</code>
+ * (HALF_UP rounding of the exact binary value, trailing zeros kept, and BigDecimal's scientific
+ * notation rules), but without allocating BigDecimals.
+ *
+ * <p>The double is decomposed into its exact binary significand and exponent, and the value scaled
+ * by a power of ten is computed exactly with 128-bit integer arithmetic, so the rounding decision
+ * is exact. The rare values outside the range this covers (roughly below 1e-20 or at or above
+ * 2^63) fall back to BigDecimal.
+ *
+ * @author agent
+ */
+public final class SignificantFigureFormatter {
+
+  /** The max number of characters written for sigFigs of at most 18 */
+  public static final int MAX_LENGTH = 32;
+
+  private static final long[] POW10 = new long[19];
+  private static final long[] POW5 = new long[28];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+    POW5[0] = 1;
+    for (int i = 1; i < POW5.length; i++) {
+      POW5[i] = POW5[i - 1] * 5;
+    }
+  }
+
+  /** Returned when the scaled value is too large for a long */
+  private static final long TOO_BIG = Long.MAX_VALUE;
+
+  /** Reused by write, as a generator is done with a number before the write returns */
+  private static final ThreadLocal<RoundedNumber> SCRATCH =
+      ThreadLocal.withInitial(RoundedNumber::new);
+
+  private SignificantFigureFormatter() {
+    // Can't instantiate publicly
+  }
+
+  /**
+   * Write the rounded value as ASCII into a byte array.
+   *
+   * @param value The value
+   * @param sigFigs The number of significant figures, 1 to 18
+   * @param buf The destination, which must have at least MAX_LENGTH bytes available at pos
+   * @param pos The position in the destination to start writing at
+   * @return The position after the last byte written
+   * @throws NumberFormatException If the value is NaN or infinite, as BigDecimal does
+   */
+  public static int format(double value, int sigFigs, byte[] buf, int pos) {
+    if (sigFigs < 1 || sigFigs > 18) {
+      throw new IllegalArgumentException("sigFigs must be 1 to 18: " + sigFigs);
+    }
+
+    long bits = Double.doubleToRawLongBits(value);
+    int biasedExponent = (int) ((bits >>> 52) & 0x7FF);
+
+    if (biasedExponent == 0x7FF) {
+      throw new NumberFormatException("Infinite or NaN");
+    }
+
+    if (value == 0) { // Including negative zero
+      buf[pos++] = '0';
+      return pos;
+    }
+
+    long significand = bits & 0xFFFFFFFFFFFFFL;
+    int exponent;
+    if (biasedExponent == 0) { // Subnormal
+      exponent = -1074;
+    } else {
+      significand |= 1L << 52;
+      exponent = biasedExponent - 1075;
+    }
+    int trailingZeros = Long.numberOfTrailingZeros(significand);
+    significand >>>= trailingZeros;
+    exponent += trailingZeros;
+
+    long unscaled;
+    int scale;
+
+    if (exponent >= 0) { // Integer
+      if (64 - Long.numberOfLeadingZeros(significand) + exponent > 63) {
+        return formatWithBigDecimal(value, sigFigs, buf, pos);
+      }
+
+      long integer = significand << exponent;
+      int digits = countDigits(integer);
+
+      if (digits <= sigFigs) {
+        unscaled = integer;
+        scale = 0;
+      } else {
+        long divisor = POW10[digits - sigFigs];
+        unscaled = integer / divisor;
+        long remainder = integer % divisor;
+        if (remainder >= divisor - remainder) {
+          unscaled++;
+        }
+        scale = sigFigs - digits;
+      }
+    } else {
+      int shift = -exponent;
+
+      // The exact decimal value is significand * 5^shift with scale shift; if that has no more
+      // than sigFigs digits no rounding is done
+      long exact = -1;
+      if (shift < POW5.length && Math.multiplyHigh(significand, POW5[shift]) == 0) {
+        exact = significand * POW5[shift];
+      }
+
+      if (exact >= 0 && exact < POW10[sigFigs]) {
+        unscaled = exact;
+        scale = shift;
+      } else {
+        // Scale by 10^k so the integer part has exactly sigFigs digits.  The decimal exponent is
+        // estimated from the binary exponent and corrected below if off by one.
+        int binaryExponent = exponent + 63 - Long.numberOfLeadingZeros(significand);
+        int k = sigFigs - 1 - (int) Math.floor(binaryExponent * 0.30102999566398114);
+        long scaled = -1;
+        boolean roundUp = false;
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+          if (k > 18 || k < -18) {
+            return formatWithBigDecimal(value, sigFigs, buf, pos);
+          }
+
+          if (k >= 0) {
+            long hi = Math.multiplyHigh(significand, POW10[k]);
+            long lo = significand * POW10[k];
+
+            if (shift < 64) {
+              if ((hi >>> shift) != 0) {
+                scaled = TOO_BIG;
+              } else {
+                scaled = (hi << (64 - shift)) | (lo >>> shift);
+                if (scaled < 0) {
+                  scaled = TOO_BIG;
+                }
+                long remainder = lo & ((1L << shift) - 1);
+                roundUp = Long.compareUnsigned(remainder, 1L << (shift - 1)) >= 0;
+              }
+            } else if (shift < 128) {
+              int hiShift = shift - 64;
+              scaled = hi >>> hiShift;
+              if (hiShift == 0) {
+                roundUp = Long.compareUnsigned(lo, 1L << 63) >= 0;
+              } else {
+                long remainderHi = hi & ((1L << hiShift) - 1);
+                roundUp = Long.compareUnsigned(remainderHi, 1L << (hiShift - 1)) >= 0;
+              }
+            } else {
+              scaled = 0;
+            }
+          } else {
+            long pow = POW10[-k];
+            if (shift >= 62 || pow > (Long.MAX_VALUE >> shift)) {
+              scaled = 0; // Divisor exceeds significand
+            } else {
+              long divisor = pow << shift;
+              scaled = significand / divisor;
+              long remainder = significand % divisor;
+              roundUp = remainder >= divisor - remainder;
+            }
+          }
+
+          if (scaled >= POW10[sigFigs]) {
+            k--;
+          } else if (scaled < POW10[sigFigs - 1]) {
+            k++;
+          } else {
+            break;
+          }
+        }
+
+        if (scaled < POW10[sigFigs - 1] || scaled >= POW10[sigFigs]) {
+          return formatWithBigDecimal(value, sigFigs, buf, pos);
+        }
+
+        unscaled = roundUp ? scaled + 1 : scaled;
+        scale = k;
+      }
+    }
+
+    if (unscaled == POW10[sigFigs]) { // Rounding carried into a new digit
+      unscaled = POW10[sigFigs - 1];
+      scale--;
+    }
+
+    if (value < 0) {
+      buf[pos++] = '-';
+    }
+
+    return layout(unscaled, scale, buf, pos);
+  }
+
+  /**
+   * Format the rounded value as a String.
+   *
+   * @param value The value
+   * @param sigFigs The number of significant figures, 1 to 18
+   * @return The String
+   */
+  public static String toString(double value, int sigFigs) {
+    byte[] buf = new byte[MAX_LENGTH];
+    int length = format(value, sigFigs, buf, 0);
+    return new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Wrap the rounded value as a JsonNumber so it can be written unquoted by a JsonGenerator.
+   *
+   * @param value The value
+   * @param sigFigs The number of significant figures, 1 to 18
+   * @return The JsonNumber
+   */
+  public static JsonNumber toJsonNumber(double value, int sigFigs) {
+    return new RoundedNumber().set(value, sigFigs);
+  }
+
+  /**
+   * Write the rounded value unquoted as an object member. Unlike toJsonNumber, the digits are
+   * formatted into a buffer reused by the thread, so the only allocation per value is the String
+   * the generator asks the number for.
+   *
+   * @param gen The generator
+   * @param name The member name
+   * @param value The value
+   * @param sigFigs The number of significant figures, 1 to 18
+   */
+  public static void write(JsonGenerator gen, String name, double value, int sigFigs) {
+    gen.write(name, SCRATCH.get().set(value, sigFigs));
+  }
+
+  /**
+   * Write the rounded value unquoted as an array element, the same as write with a name does.
+   *
+   * @param gen The generator
+   * @param value The value
+   * @param sigFigs The number of significant figures, 1 to 18
+   */
+  public static void write(JsonGenerator gen, double value, int sigFigs) {
+    gen.write(SCRATCH.get().set(value, sigFigs));
+  }
+
+  /** Lays out digits the way BigDecimal.toString does. */
+  private static int layout(long unscaled, int scale, byte[] buf, int pos) {
+    int digits = countDigits(unscaled);
+    long adjusted = -(long) scale + (digits - 1);
+
+    if (scale == 0) {
+      return writeDigits(unscaled, digits, buf, pos);
+    }
+
+    if (scale > 0 && adjusted >= -6) { // Plain notation
+      int pad = scale - digits;
+      if (pad >= 0) {
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        for (int i = 0; i < pad; i++) {
+          buf[pos++] = '0';
+        }
+        return writeDigits(unscaled, digits, buf, pos);
+      }
+
+      int intDigits = -pad;
+      long divisor = POW10[scale];
+      pos = writeDigits(unscaled / divisor, intDigits, buf, pos);
+      buf[pos++] = '.';
+      return writeDigits(unscaled % divisor, scale, buf, pos);
+    }
+
+    // Scientific notation
+    long divisor = POW10[digits - 1];
+    buf[pos++] = (byte) ('0' + unscaled / divisor);
+    if (digits > 1) {
+      buf[pos++] = '.';
+      pos = writeDigits(unscaled % divisor, digits - 1, buf, pos);
+    }
+    if (adjusted != 0) {
+      buf[pos++] = 'E';
+      if (adjusted > 0) {
+        buf[pos++] = '+';
+      } else {
+        buf[pos++] = '-';
+        adjusted = -adjusted;
+      }
+      pos = writeDigits(adjusted, countDigits(adjusted), buf, pos);
+    }
+    return pos;
+  }
+
+  /** Writes exactly count digits, zero padded on the left. */
+  private static int writeDigits(long value, int count, byte[] buf, int pos) {
+    for (int i = pos + count - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return pos + count;
+  }
+
+  private static int countDigits(long value) {
+    int digits = 1;
+    while (digits < POW10.length && value >= POW10[digits]) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private static int formatWithBigDecimal(double value, int sigFigs, byte[] buf, int pos) {
+    String text = new BigDecimal(value).round(new MathContext(sigFigs)).toString();
+    for (int i = 0; i < text.length(); i++) {
+      buf[pos++] = (byte) text.charAt(i);
+    }
+    return pos;
+  }
+
+  /** A JsonNumber whose text is already formatted, and only made a String if asked for. */
+  private static final class RoundedNumber implements JsonNumber {
+    private final byte[] buf = new byte[MAX_LENGTH];
+    private int length;
+    private String text;
+
+    private RoundedNumber set(double value, int sigFigs) {
+      length = format(value, sigFigs, buf, 0);
+      text = null;
+      return this;
+    }
+
+    @Override
+    public boolean isIntegral() {
+      return bigDecimalValue().scale() == 0;
+    }
+
+    @Override
+    public int intValue() {
+      return bigDecimalValue().intValue();
+    }
+
+    @Override
+    public int intValueExact() {
+      return bigDecimalValue().intValueExact();
+    }
+
+    @Override
+    public long longValue() {
+      return bigDecimalValue().longValue();
+    }
+
+    @Override
+    public long longValueExact() {
+      return bigDecimalValue().longValueExact();
+    }
+
+    @Override
+    public BigInteger bigIntegerValue() {
+      return bigDecimalValue().toBigInteger();
+    }
+
+    @Override
+    public BigInteger bigIntegerValueExact() {
+      return bigDecimalValue().toBigIntegerExact();
+    }
+
+    @Override
+    public double doubleValue() {
+      return Double.parseDouble(toString());
+    }
+
+    @Override
+    public BigDecimal bigDecimalValue() {
+      return new BigDecimal(toString());
+    }
+
+    @Override
+    public ValueType getValueType() {
+      return ValueType.NUMBER;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof JsonNumber
+          && bigDecimalValue().equals(((JsonNumber) obj).bigDecimalValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return bigDecimalValue().hashCode();
+    }
+
+    @Override
+    public String toString() {
+      if (text == null) {
+        text = new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+      }
+      return text;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package org.jlab.myquery;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical work: the first caller with a key (the leader) does the work, and
+ * callers with the same key which arrive while it is in flight (followers) wait for and share its
+ * result instead of repeating it. A key is forgotten as soon as its result is ready, so this is not
+ * a cache; results are only shared between overlapping calls.
+ *
+ * <p>The number of flights is bounded, since each may hold a result in memory for its followers.
+ * When the bound is reached new keys run without coalescing.
+ *
+ * @param <V> The result type
+ * @author agent
+ */
+public class SingleFlight<V> {
+
+  private static final Object ABANDONED = new Object();
+
+  private final ConcurrentHashMap<String, CompletableFuture<Object>> flights =
+      new ConcurrentHashMap<>();
+  private final int maxFlights;
+
+  private final LongAdder leaders = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder unshared = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+
+  /**
+   * Create a new SingleFlight.
+   *
+   * @param maxFlights The max keys in flight at once (0 disables coalescing)
+   */
+  public SingleFlight(int maxFlights) {
+    this.maxFlights = maxFlights;
+  }
+
+  /**
+   * Join the flight for a key, leading it if there isn't one. The leader must call {@link
+   * Flight#complete} or {@link Flight#abandon} when done, even if it fails.
+   *
+   * @param key The key identifying the work
+   * @return The flight
+   */
+  public Flight join(String key) {
+    if (flights.size() >= maxFlights) {
+      overflows.increment();
+      return new Flight(null, null, true);
+    }
+
+    CompletableFuture<Object> created = new CompletableFuture<>();
+    CompletableFuture<Object> existing = flights.putIfAbsent(key, created);
+
+    if (existing == null) {
+      leaders.increment();
+      return new Flight(key, created, true);
+    }
+
+    coalesced.increment();
+    return new Flight(key, existing, false);
+  }
+
+  /**
+   * Do the work for a key, or share the result of an identical call already doing it. Exceptions
+   * are shared too, except those of the leader's own request: its cancellation, or running out of
+   * its own time. A follower waits no longer than its own deadline, after which it does the work
+   * itself.
+   *
+   * @param key The key identifying the work
+   * @param work The work
+   * @return The result, which may be null
+   * @throws Exception If the work failed
+   */
+  @SuppressWarnings("unchecked")
+  public V execute(String key, Callable<V> work) throws Exception {
+    Flight flight = join(key);
+
+    if (flight.isLeader()) {
+      try {
+        V value = work.call();
+        flight.complete(value);
+        return value;
+      } catch (Exception e) {
+        // A cancelled or expired request's failure isn't a result the followers should share, as
+        // their own deadlines may not have passed; abandoning the flight lets them do the work
+        if (!QueryCanceller.isCurrentCancelled() && !QueryController.isDeadlineExceeded(e)) {
+          flight.fail(e);
+        }
+        throw e;
+      } finally {
+        flight.abandon();
+      }
+    }
+
+    Object result;
+    try {
+      QueryCanceller canceller = QueryCanceller.current();
+
+      if (canceller != null && canceller.hasDeadline()) {
+        long remaining = canceller.getDeadlineNanos() - System.nanoTime();
+        result = flight.future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+      } else {
+        result = flight.future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    } catch (TimeoutException e) {
+      // Out of time; the work reports this follower's own deadline
+      result = ABANDONED;
+    }
+
+    if (result == ABANDONED) {
+      unshared.increment();
+      return work.call();
+    }
+
+    return (V) result;
+  }
+
+  /**
+   * Get the number of keys in flight.
+   *
+   * @return The number of keys
+   */
+  public int getFlightCount() {
+    return flights.size();
+  }
+
+  /**
+   * Get the number of times the work was done by a leader.
+   *
+   * @return The count
+   */
+  public long getLeaderCount() {
+    return leaders.sum();
+  }
+
+  /**
+   * Get the number of callers which joined a flight instead of doing the work.
+   *
+   * @return The count
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  /**
+   * Get the number of followers which did the work anyway since the leader had nothing to share in
+   * time.
+   *
+   * @return The count
+   */
+  public long getUnsharedCount() {
+    return unshared.sum();
+  }
+
+  /**
+   * Get the number of callers which didn't coalesce because too many keys were in flight.
+   *
+   * @return The count
+   */
+  public long getOverflowCount() {
+    return overflows.sum();
+  }
+
+  /** A caller's membership in the flight for a key. */
+  public final class Flight {
+    private final String key;
+    private final CompletableFuture<Object> future;
+    private final boolean leader;
+
+    private Flight(String key, CompletableFuture<Object> future, boolean leader) {
+      this.key = key;
+      this.future = future;
+      this.leader = leader;
+    }
+
+    /**
+     * Determine whether this caller must do the work. A caller which couldn't join a flight is a
+     * leader with no followers.
+     *
+     * @return true if the leader
+     */
+    public boolean isLeader() {
+      return leader;
+    }
+
+    /**
+     * Wait for the leader's result. Only for followers.
+     *
+     * @param timeoutMillis The max milliseconds to wait
+     * @return The result, or null if the leader abandoned the flight, completed it with null, or
+     *     didn't finish in time, in which case the follower must do the work itself
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public V await(long timeoutMillis) throws InterruptedException {
+      Object result = null;
+
+      try {
+        result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        // Do the work instead
+      }
+
+      if (result == null || result == ABANDONED) {
+        unshared.increment();
+        return null;
+      }
+
+      return (V) result;
+    }
+
+    /**
+     * Share the result with the followers. Only for the leader.
+     *
+     * @param value The result
+     */
+    public void complete(V value) {
+      finish(value);
+    }
+
+    /**
+     * Share a failure with the followers. Only for the leader.
+     *
+     * @param e The cause
+     */
+    public void fail(Exception e) {
+      if (future != null) {
+        flights.remove(key, future);
+        future.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * End the flight without a result, so the followers do the work themselves. Has no effect if
+     * the flight has already ended. Only for the leader.
+     */
+    public void abandon() {
+      finish(ABANDONED);
+    }
+
+    private void finish(Object value) {
+      if (future != null) {
+        // Removed first, so callers arriving from now on start a new flight
+        flights.remove(key, future);
+        future.complete(value);
+      }
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package org.jlab.myquery;
+
+import jakarta.json.stream.JsonGenerator;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.mya.Metadata;
+import org.jlab.mya.event.Event;
+
+/**
+ * Live tail of one or more channels as Server-Sent Events. A point event with the prior point of
+ * each channel is sent first (the same object /point returns, plus the channel name), then an
+ * update event for each newly archived event. A comment is sent when there have been no events for
+ * a while so proxies don't close the connection. The response ends after TAIL_MAX_SECONDS, and
+ * EventSource clients then reconnect automatically.
+ *
+ * @author agent
+ */
+@WebServlet(
+    name = "TailController",
+    urlPatterns = {"/tail"},
+    asyncSupported = true)
+public class TailController extends QueryController {
+
+  private static final Logger LOGGER = Logger.getLogger(TailController.class.getName());
+
+  /** The max milliseconds without sending anything */
+  public static final long HEARTBEAT_MILLIS = ConfigUtil.getEnvLong("TAIL_HEARTBEAT_MILLIS", 15000);
+
+  /** The max seconds a response stays open */
+  public static final long MAX_SECONDS = ConfigUtil.getEnvLong("TAIL_MAX_SECONDS", 3600);
+
+  /** The max channels of one tail */
+  public static final int MAX_CHANNELS = ConfigUtil.getEnvInt("TAIL_MAX_CHANNELS", 100);
+
+  /**
+   * A tail stays open for a long time but queries nothing itself, as the pollers are shared, so it
+   * counts against its client's open tails rather than its requests in progress.
+   */
+  @Override
+  protected AdmissionControl.Ticket admit(HttpServletRequest request, String deployment)
+      throws AdmissionControl.RejectedException {
+    return AdmissionControl.enterTail(request, deployment);
+  }
+
+  /** The pollers query on behalf of all tails, so a tail holds no connection while it waits. */
+  @Override
+  protected boolean isBulkheadExempt() {
+    return true;
+  }
+
+  /** The response stays open for TAIL_MAX_SECONDS, so it must not time out before then. */
+  @Override
+  protected long getAsyncTimeoutMillis() {
+    long timeout = super.getAsyncTimeoutMillis();
+
+    if (timeout <= 0) {
+      return timeout;
+    }
+
+    return Math.max(timeout, MAX_SECONDS * 1000 + 2 * HEARTBEAT_MILLIS);
+  }
+
+  /**
+   * Handles the HTTP <code>GET</code> method.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    String errorReason = null;
+    TailWebService service = null;
+    List<Metadata> channels = new ArrayList<>();
+
+    String c = request.getParameter("c");
+    String m = request.getParameter("m");
+    String f = request.getParameter("f");
+    String v = request.getParameter("v");
+    String s = request.getParameter("s");
+    String u = request.getParameter("u");
+    String a = request.getParameter("a");
+
+    try {
+      if (c == null || c.trim().isEmpty()) {
+        throw new Exception("Channel (c) is required");
+      }
+
+      String deployment = "ops";
+
+      if (m != null && !m.trim().isEmpty()) {
+        deployment = m;
+      }
+
+      service = new TailWebService(deployment);
+
+      Set<String> names = new LinkedHashSet<>();
+      for (String name : c.split(",")) {
+        if (!name.trim().isEmpty()) {
+          names.add(name.trim());
+        }
+      }
+
+      if (MAX_CHANNELS > 0 && names.size() > MAX_CHANNELS) {
+        throw new Exception("Too many channels (c): " + MAX_CHANNELS + " allowed");
+      }
+
+      for (String name : names) {
+        Metadata metadata = service.findMetadata(name);
+
+        if (metadata == null) {
+          throw new Exception(
+              "Unable to find channel: '" + name + "' in deployment: '" + deployment + "'");
+        }
+
+        channels.add(metadata);
+      }
+    } catch (Exception ex) {
+      LOGGER.log(Level.SEVERE, "Unable to service request", ex);
+      errorReason = ex.getMessage();
+    }
+
+    if (errorReason != null) {
+      response.setContentType("application/json");
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      try (JsonGenerator gen = ResponseEncoding.JSON.createGenerator(response.getOutputStream())) {
+        gen.writeStartObject();
+        gen.write("error", errorReason);
+        gen.writeEnd();
+      }
+      return;
+    }
+
+    boolean formatAsMillisSinceEpoch = (u != null);
+    boolean adjustMillisWithServerOffset = (a != null);
+    boolean enumsAsStrings = (s != null);
+    DateTimeFormatter timestampFormatter = FormatUtil.getInstantFormatter(f);
+    short sigFigs = FormatUtil.getSignificantFigures(v);
+
+    // Identifies the formatting options, so subscribers asking for the same share one encoding
+    String format = u + "|" + a + "|" + f + "|" + v + "|" + s;
+
+    response.setContentType("text/event-stream");
+    // Ask reverse proxies such as nginx not to buffer the stream
+    response.setHeader("X-Accel-Buffering", "no");
+
+    TailWebService.Subscriber subscriber = new TailWebService.Subscriber();
+    for (Metadata metadata : channels) {
+      service.subscribe(metadata, subscriber);
+    }
+
+    try {
+      OutputStream out = response.getOutputStream();
+      response.flushBuffer();
+
+      long deadline = System.nanoTime() + MAX_SECONDS * 1_000_000_000L;
+      while (System.nanoTime() - deadline < 0) {
+        TailWebService.Update update = subscriber.take(HEARTBEAT_MILLIS);
+
+        if (update == null) {
+          out.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        while (update != null) {
+          writeUpdate(
+              out,
+              service,
+              update,
+              format,
+              enumsAsStrings,
+              formatAsMillisSinceEpoch,
+              adjustMillisWithServerOffset,
+              timestampFormatter,
+              sigFigs);
+          update = subscriber.poll();
+        }
+
+        response.flushBuffer();
+      }
+    } catch (IOException ex) {
+      // Usually the client went away
+      LOGGER.log(Level.FINE, "Tail ended", ex);
+    } catch (SQLException ex) {
+      LOGGER.log(Level.SEVERE, "Unable to label event", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (Metadata metadata : channels) {
+        service.unsubscribe(metadata, subscriber);
+      }
+    }
+  }
+
+  private void writeUpdate(
+      OutputStream out,
+      TailWebService service,
+      TailWebService.Update update,
+      String format,
+      boolean enumsAsStrings,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs)
+      throws IOException, SQLException {
+    byte[] encoded = update.getEncoded(format);
+
+    if (encoded == null) {
+      encoded =
+          encodeUpdate(
+              service,
+              update,
+              enumsAsStrings,
+              formatAsMillisSinceEpoch,
+              adjustMillisWithServerOffset,
+              timestampFormatter,
+              sigFigs);
+      update.setEncoded(format, encoded);
+    }
+
+    out.write(encoded);
+  }
+
+  private byte[] encodeUpdate(
+      TailWebService service,
+      TailWebService.Update update,
+      boolean enumsAsStrings,
+      boolean formatAsMillisSinceEpoch,
+      boolean adjustMillisWithServerOffset,
+      DateTimeFormatter timestampFormatter,
+      short sigFigs)
+      throws SQLException {
+    Metadata metadata = update.getMetadata();
+    Event event = update.getEvent();
+
+    if (enumsAsStrings) {
+      event = service.labelEvent(metadata, event);
+    }
+
+    // The JSON is a single line, since the generator escapes any newlines in strings
+    String type = update.isPrior() ? "point" : "update";
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    buffer.writeBytes(("event: " + type + "\ndata: ").getBytes(StandardCharsets.UTF_8));
+
+    try (JsonGenerator gen = ResponseEncoding.JSON.createGenerator(buffer)) {
+      gen.writeStartObject();
+      gen.write("channel", metadata.getName());
+      if (update.isPrior()) {
+        gen.write("datatype", metadata.getMyaType().name());
+        gen.write("datasize", metadata.getSize());
+        gen.write("datahost", metadata.getHost());
+      }
+      if (event == null) {
+        gen.writeStartObject("data");
+        gen.writeEnd();
+      } else {
+        writeEvent(
+            "data",
+            gen,
+            event,
+            formatAsMillisSinceEpoch,
+            adjustMillisWithServerOffset,
+            timestampFormatter,
+            sigFigs);
+      }
+      gen.writeEnd();
+    }
+
+    buffer.writeBytes("\n\n".getBytes(StandardCharsets.UTF_8));
+
+    return buffer.toByteArray();
+  }
+}
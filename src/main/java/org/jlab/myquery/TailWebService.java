@@ -0,0 +1,420 @@
+package org.jlab.myquery;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.mya.ExtraInfo;
+import org.jlab.mya.Metadata;
+import org.jlab.mya.MyaDataType;
+import org.jlab.mya.event.Event;
+import org.jlab.mya.event.IntEvent;
+import org.jlab.mya.event.LabeledEnumEvent;
+import org.jlab.mya.nexus.DataNexus;
+import org.jlab.mya.stream.EventStream;
+
+/**
+ * Live tail of channels. Each watched channel has a single poller, shared by all subscribers, which
+ * queries for the events archived since the last event it saw and hands them to every subscriber.
+ * The database is therefore queried once per channel per poll no matter how many clients watch it.
+ *
+ * <p>Watches are registered by deployment and channel name, so identical watches from different
+ * clients share one poller. A new subscriber first receives the prior point (the latest archived
+ * event, or null if there is none) from the poller, without a query of its own, then each new
+ * event. The poller is stopped when its last subscriber leaves.
+ *
+ * @author agent
+ */
+public class TailWebService extends QueryWebService {
+
+  private static final Logger LOGGER = Logger.getLogger(TailWebService.class.getName());
+
+  /** Milliseconds between queries for new events of a watched channel */
+  public static final long POLL_MILLIS = ConfigUtil.getEnvLong("TAIL_POLL_MILLIS", 1000);
+
+  /** Threads running the pollers of all deployments */
+  public static final int POLL_THREADS = ConfigUtil.getEnvInt("TAIL_POLL_THREADS", 2);
+
+  /** Updates waiting for a subscriber before they are coalesced to the latest of each channel */
+  public static final int MAX_PENDING = ConfigUtil.getEnvInt("TAIL_MAX_PENDING", 1000);
+
+  /** Archived timestamps come from IOC clocks, which may be ahead of ours */
+  private static final Duration LOOKAHEAD = Duration.ofDays(1);
+
+  private static final ScheduledExecutorService POLLER =
+      Executors.newScheduledThreadPool(POLL_THREADS, new PollerThreadFactory());
+
+  private static final ConcurrentHashMap<String, ChannelTail> TAILS = new ConcurrentHashMap<>();
+
+  private static final AtomicLong COALESCED = new AtomicLong();
+
+  private final DataNexus nexus;
+
+  public TailWebService(String deployment) {
+    nexus = getNexus(deployment);
+  }
+
+  public Metadata findMetadata(String c) throws SQLException {
+    return findCachedMetadata(nexus, c);
+  }
+
+  /**
+   * Label an enum event from the channel's label history, the same as /point does.
+   *
+   * @param metadata The channel metadata
+   * @param event The event, or null
+   * @return The labeled event, or the event unchanged if not an enum
+   * @throws SQLException If unable to query the label history
+   */
+  public Event labelEvent(Metadata metadata, Event event) throws SQLException {
+    if (event == null || metadata.getMyaType() != MyaDataType.DBR_ENUM) {
+      return event;
+    }
+
+    List<ExtraInfo> labels =
+        findCachedExtraInfo(nexus, metadata, "enum_strings", null, event.getTimestampAsInstant());
+    return LabeledEnumEvent.findLabelFromHistory((IntEvent) event, labels);
+  }
+
+  /**
+   * Start delivering a channel's updates to a subscriber, starting the channel's poller if it isn't
+   * already running.
+   *
+   * @param metadata The channel metadata
+   * @param subscriber The subscriber
+   */
+  public void subscribe(Metadata metadata, Subscriber subscriber) {
+    TAILS.compute(
+        getKey(metadata),
+        (key, tail) -> {
+          if (tail == null) {
+            tail = new ChannelTail(nexus, metadata);
+            tail.start();
+          }
+          tail.add(subscriber);
+          return tail;
+        });
+  }
+
+  /**
+   * Stop delivering a channel's updates to a subscriber, stopping the channel's poller if it was
+   * the last subscriber.
+   *
+   * @param metadata The channel metadata
+   * @param subscriber The subscriber
+   */
+  public void unsubscribe(Metadata metadata, Subscriber subscriber) {
+    TAILS.computeIfPresent(
+        getKey(metadata),
+        (key, tail) -> {
+          if (tail.remove(subscriber)) {
+            tail.stop();
+            return null;
+          }
+          return tail;
+        });
+  }
+
+  /**
+   * Get the number of channels being polled, across all deployments.
+   *
+   * @return The number of channels
+   */
+  public static int getWatchedChannelCount() {
+    return TAILS.size();
+  }
+
+  /**
+   * Get the number of updates skipped because a subscriber fell behind.
+   *
+   * @return The number of updates
+   */
+  public static long getCoalescedCount() {
+    return COALESCED.get();
+  }
+
+  /** Stop all pollers and their threads, such as when the application is undeployed. */
+  public static void shutdown() {
+    POLLER.shutdownNow();
+    TAILS.clear();
+  }
+
+  private String getKey(Metadata metadata) {
+    return nexus.getDeployment() + "|" + metadata.getName();
+  }
+
+  /**
+   * A channel update: the prior point when subscribing, or a newly archived event. The same update
+   * is handed to every subscriber of the channel, so the most recent encoding of it is kept for
+   * reuse by subscribers asking for the same format.
+   */
+  public static final class Update {
+    private final Metadata metadata;
+    private final Event event;
+    private final boolean prior;
+    private volatile Encoded encoded;
+
+    private Update(Metadata metadata, Event event, boolean prior) {
+      this.metadata = metadata;
+      this.event = event;
+      this.prior = prior;
+    }
+
+    public Metadata getMetadata() {
+      return metadata;
+    }
+
+    /**
+     * Get the event.
+     *
+     * @return The event, which is null for a prior point of a channel without history
+     */
+    public Event getEvent() {
+      return event;
+    }
+
+    public boolean isPrior() {
+      return prior;
+    }
+
+    /**
+     * Get the cached encoding of this update.
+     *
+     * @param format A key identifying the formatting options
+     * @return The bytes, or null if not encoded with the same options
+     */
+    public byte[] getEncoded(String format) {
+      Encoded e = encoded;
+      return (e != null && e.format.equals(format)) ? e.bytes : null;
+    }
+
+    /**
+     * Cache an encoding of this update, replacing any with other formatting options.
+     *
+     * @param format A key identifying the formatting options
+     * @param bytes The bytes, which must not be modified afterwards
+     */
+    public void setEncoded(String format, byte[] bytes) {
+      encoded = new Encoded(format, bytes);
+    }
+  }
+
+  private static final class Encoded {
+    private final String format;
+    private final byte[] bytes;
+
+    private Encoded(String format, byte[] bytes) {
+      this.format = format;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Receives the updates of the channels it is subscribed to, in order per channel. A subscriber
+   * that falls behind (such as a client on a slow network) doesn't buffer without bound: once
+   * TAIL_MAX_PENDING updates are waiting, the waiting updates are coalesced to the latest of each
+   * channel, so the client skips intermediate events but stays current.
+   */
+  public static final class Subscriber {
+    private final ArrayDeque<Update> queue = new ArrayDeque<>();
+
+    // Not a monitor, as waiting on one would pin the virtual thread of the request to its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Wait for the next update.
+     *
+     * @param timeoutMillis The max milliseconds to wait
+     * @return The update, or null if none arrived in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Update take(long timeoutMillis) throws InterruptedException {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+      lock.lockInterruptibly();
+      try {
+        while (queue.isEmpty()) {
+          if (remaining <= 0) {
+            return null;
+          }
+
+          remaining = available.awaitNanos(remaining);
+        }
+
+        return queue.poll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Get the next update without waiting.
+     *
+     * @return The update, or null if there is none
+     */
+    public Update poll() {
+      lock.lock();
+      try {
+        return queue.poll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void offer(Update update) {
+      lock.lock();
+      try {
+        if (queue.size() >= MAX_PENDING) {
+          coalesce();
+        }
+
+        queue.add(update);
+        available.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Replace the waiting updates with the latest of each channel. */
+    private void coalesce() {
+      Map<String, Update> latest = new LinkedHashMap<>();
+
+      for (Update update : queue) {
+        Update previous = latest.remove(update.metadata.getName());
+
+        // A prior point not yet sent must still be sent as one, as it carries the channel info
+        if (previous != null && previous.prior && !update.prior) {
+          update = new Update(update.metadata, update.event, true);
+        }
+
+        latest.put(update.metadata.getName(), update);
+      }
+
+      COALESCED.addAndGet(queue.size() - latest.size());
+
+      queue.clear();
+      queue.addAll(latest.values());
+    }
+  }
+
+  /** Polls a channel for new events on behalf of all of its subscribers. */
+  private static final class ChannelTail implements Runnable {
+    private final DataNexus nexus;
+    private final Metadata metadata;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private ScheduledFuture<?> future;
+
+    // Only written by the poll, but read when subscribing
+    private boolean initialized = false;
+    private Event latest;
+    private Instant lastSeen;
+
+    private ChannelTail(DataNexus nexus, Metadata metadata) {
+      this.nexus = nexus;
+      this.metadata = metadata;
+    }
+
+    private void start() {
+      future = POLLER.scheduleWithFixedDelay(this, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+      future.cancel(false);
+    }
+
+    private synchronized void add(Subscriber subscriber) {
+      subscribers.add(subscriber);
+
+      if (initialized) {
+        subscriber.offer(new Update(metadata, latest, true));
+      }
+    }
+
+    /** Returns true if there are no subscribers left. */
+    private synchronized boolean remove(Subscriber subscriber) {
+      subscribers.remove(subscriber);
+      return subscribers.isEmpty();
+    }
+
+    @Override
+    public void run() {
+      // An exception would cancel future polls, so log it and try again next time
+      try {
+        poll();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Unable to poll channel: " + metadata.getName(), e);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void poll() throws Exception {
+      if (!initialized) {
+        Instant now = Instant.now();
+        Event prior = nexus.findEvent(metadata, now, true, true, false);
+
+        synchronized (this) {
+          latest = prior;
+          lastSeen = (prior == null) ? now : prior.getTimestampAsInstant();
+          initialized = true;
+          publish(prior, true);
+        }
+        return;
+      }
+
+      List<Event> events = new ArrayList<>();
+      try (EventStream<Event> stream =
+          nexus.openEventStream(metadata, lastSeen, Instant.now().plus(LOOKAHEAD))) {
+        Event event;
+        while ((event = stream.read()) != null) {
+          // The query includes the begin time, which is the last event already published
+          if (event.getTimestampAsInstant().isAfter(lastSeen)) {
+            events.add(event);
+          }
+        }
+      }
+
+      synchronized (this) {
+        for (Event event : events) {
+          latest = event;
+          lastSeen = event.getTimestampAsInstant();
+          publish(event, false);
+        }
+      }
+    }
+
+    private void publish(Event event, boolean prior) {
+      Update update = new Update(metadata, event, prior);
+      for (Subscriber subscriber : subscribers) {
+        subscriber.offer(update);
+      }
+    }
+  }
+
+  private static final class PollerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "myquery-tail-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
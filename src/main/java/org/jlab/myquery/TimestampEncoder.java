@@ -0,0 +1,254 @@
+package org.jlab.myquery;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats event timestamps in local time without the per event allocations of ZonedDateTime and
+ * DateTimeFormatter.
+ *
+ * <p>The zone offset is cached until the next offset transition (daylight saving change), the
+ * formatted date is cached per day and the formatted date and time is cached per second, so
+ * consecutive events usually only need their fractional second digits written. Timestamp
+ * formatters of the forms yyyy-MM-dd'T'HH:mm:ss and yyyy-MM-dd HH:mm:ss.S... are supported; any
+ * other formatter (or a year outside 1000 to 9999) falls back to the formatter itself. A formatter
+ * is recognized by comparing its output with the encoder's for a few probe timestamps, so the
+ * output is always identical to the formatter's.
+ *
+ * <p>Not thread safe: use {@link #get(DateTimeFormatter)} to obtain an encoder for the current
+ * thread.
+ *
+ * @author agent
+ */
+public final class TimestampEncoder {
+
+  /** The max number of bytes written by encode */
+  public static final int MAX_LENGTH = 29;
+
+  private static final ThreadLocal<TimestampEncoder> CURRENT = new ThreadLocal<>();
+
+  private static final Instant[] PROBES = {
+    Instant.parse("2019-08-12T04:05:06.123456789Z"),
+    Instant.parse("2001-12-31T23:59:59.987654321Z"),
+    Instant.parse("2024-02-29T12:00:00Z")
+  };
+
+  private final DateTimeFormatter formatter;
+  private final ZoneId zone;
+  private final ZoneRules rules;
+  private final byte separator;
+  private final int fractionDigits;
+  private boolean supported;
+
+  private long offsetValidFrom = Long.MAX_VALUE;
+  private long offsetValidUntil = Long.MIN_VALUE;
+  private int offsetSeconds;
+
+  private long cachedDay = Long.MIN_VALUE;
+  private final byte[] datePrefix = new byte[11];
+
+  private long cachedSecond = Long.MIN_VALUE;
+  private final byte[] secondPrefix = new byte[19];
+
+  private final byte[] scratch = new byte[MAX_LENGTH];
+
+  /**
+   * Create a new encoder. Use get instead, which reuses the encoder of the current thread.
+   *
+   * @param formatter The timestamp formatter
+   * @param zone The local time zone
+   */
+  TimestampEncoder(DateTimeFormatter formatter, ZoneId zone) {
+    this.formatter = formatter;
+    this.zone = zone;
+    this.rules = zone.getRules();
+
+    String probe = PROBES[0].atZone(zone).format(formatter);
+    boolean recognized =
+        (probe.length() == 19 || (probe.length() > 20 && probe.length() <= MAX_LENGTH))
+            && (probe.charAt(10) == 'T' || probe.charAt(10) == ' ')
+            && (probe.length() == 19 || probe.charAt(19) == '.');
+
+    this.separator = recognized ? (byte) probe.charAt(10) : (byte) 'T';
+    this.fractionDigits = recognized ? Math.max(0, probe.length() - 20) : 0;
+
+    // Encode the probes directly and only keep doing so if they match the formatter
+    this.supported = recognized;
+    for (int i = 0; supported && i < PROBES.length; i++) {
+      supported = PROBES[i].atZone(zone).format(formatter).equals(encodeToString(PROBES[i]));
+    }
+
+    // Start over with empty caches
+    this.offsetValidFrom = Long.MAX_VALUE;
+    this.offsetValidUntil = Long.MIN_VALUE;
+    this.cachedDay = Long.MIN_VALUE;
+    this.cachedSecond = Long.MIN_VALUE;
+  }
+
+  /**
+   * Get the encoder of the current thread for a formatter, reusing the previous one if it was
+   * created for the same formatter instance.
+   *
+   * @param formatter The timestamp formatter
+   * @return The encoder
+   */
+  public static TimestampEncoder get(DateTimeFormatter formatter) {
+    TimestampEncoder encoder = CURRENT.get();
+
+    if (encoder == null || encoder.formatter != formatter) {
+      encoder = new TimestampEncoder(formatter, FormatUtil.DEFAULT_ZONE);
+      CURRENT.set(encoder);
+    }
+
+    return encoder;
+  }
+
+  /**
+   * Get the local zone offset at an instant.
+   *
+   * @param epochSecond The seconds since Epoch
+   * @return The offset in seconds
+   */
+  public int getOffsetSeconds(long epochSecond) {
+    if (epochSecond < offsetValidFrom || epochSecond >= offsetValidUntil) {
+      Instant instant = Instant.ofEpochSecond(epochSecond);
+      ZoneOffsetTransition next = rules.nextTransition(instant);
+
+      offsetSeconds = rules.getOffset(instant).getTotalSeconds();
+      offsetValidFrom = epochSecond;
+      offsetValidUntil = (next == null) ? Long.MAX_VALUE : next.toEpochSecond();
+    }
+
+    return offsetSeconds;
+  }
+
+  /**
+   * Return the milliseconds since Epoch plus the local time offset, the same as
+   * FormatUtil.getLocalTime.
+   *
+   * @param millisSinceEpoch The milliseconds since Epoch in UTC
+   * @return milliseconds since Epoch adjusted with local time offset
+   */
+  public long toLocalMillis(long millisSinceEpoch) {
+    return millisSinceEpoch + getOffsetSeconds(Math.floorDiv(millisSinceEpoch, 1000)) * 1000L;
+  }
+
+  /**
+   * Write the formatted timestamp as ASCII into a byte array.
+   *
+   * @param timestamp The timestamp
+   * @param buf The destination, which must have at least MAX_LENGTH bytes available at pos
+   * @param pos The position in the destination to start writing at
+   * @return The position after the last byte written
+   */
+  public int encode(Instant timestamp, byte[] buf, int pos) {
+    if (!supported) {
+      return writeAscii(timestamp.atZone(zone).format(formatter), buf, pos);
+    }
+
+    long epochSecond = timestamp.getEpochSecond();
+
+    if (epochSecond != cachedSecond) {
+      long localSecond = epochSecond + getOffsetSeconds(epochSecond);
+      long day = Math.floorDiv(localSecond, 86400);
+
+      if (day != cachedDay) {
+        if (!writeDate(day)) {
+          return writeAscii(timestamp.atZone(zone).format(formatter), buf, pos);
+        }
+        cachedDay = day;
+      }
+
+      int secondOfDay = (int) Math.floorMod(localSecond, 86400);
+      System.arraycopy(datePrefix, 0, secondPrefix, 0, 11);
+      write2(secondOfDay / 3600, secondPrefix, 11);
+      secondPrefix[13] = ':';
+      write2((secondOfDay / 60) % 60, secondPrefix, 14);
+      secondPrefix[16] = ':';
+      write2(secondOfDay % 60, secondPrefix, 17);
+      cachedSecond = epochSecond;
+    }
+
+    System.arraycopy(secondPrefix, 0, buf, pos, 19);
+    pos += 19;
+
+    if (fractionDigits > 0) {
+      buf[pos++] = '.';
+      int nanos = timestamp.getNano();
+      // Truncated, as DateTimeFormatter does
+      for (int i = 9; i > fractionDigits; i--) {
+        nanos /= 10;
+      }
+      for (int i = pos + fractionDigits - 1; i >= pos; i--) {
+        buf[i] = (byte) ('0' + nanos % 10);
+        nanos /= 10;
+      }
+      pos += fractionDigits;
+    }
+
+    return pos;
+  }
+
+  /**
+   * Format the timestamp as a String.
+   *
+   * @param timestamp The timestamp
+   * @return The formatted timestamp
+   */
+  public String format(Instant timestamp) {
+    if (!supported) {
+      return timestamp.atZone(zone).format(formatter);
+    }
+
+    return encodeToString(timestamp);
+  }
+
+  private String encodeToString(Instant timestamp) {
+    int length = encode(timestamp, scratch, 0);
+    return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /** Writes yyyy-MM-dd plus separator for the local epoch day; false if year out of range. */
+  private boolean writeDate(long epochDay) {
+    // Civil from days (proleptic Gregorian), as in LocalDate.ofEpochDay
+    long zeroDay = epochDay + 719468;
+    long era = Math.floorDiv(zeroDay, 146097);
+    long dayOfEra = zeroDay - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+    int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    if (year < 1000 || year > 9999) {
+      return false;
+    }
+
+    write2((int) (year / 100), datePrefix, 0);
+    write2((int) (year % 100), datePrefix, 2);
+    datePrefix[4] = '-';
+    write2(month, datePrefix, 5);
+    datePrefix[7] = '-';
+    write2(day, datePrefix, 8);
+    datePrefix[10] = separator;
+
+    return true;
+  }
+
+  private static void write2(int value, byte[] buf, int pos) {
+    buf[pos] = (byte) ('0' + value / 10);
+    buf[pos + 1] = (byte) ('0' + value % 10);
+  }
+
+  private static int writeAscii(String text, byte[] buf, int pos) {
+    for (int i = 0; i < text.length(); i++) {
+      buf[pos++] = (byte) text.charAt(i);
+    }
+    return pos;
+  }
+}
@@ -0,0 +1,116 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/** Checks the client and cost estimates of admission control. */
+public class AdmissionControlTest {
+
+  @Test
+  public void singleEntryTest() {
+    assertEquals("192.0.2.1", AdmissionControl.getClientEntry("192.0.2.1", 1));
+    assertEquals("192.0.2.1", AdmissionControl.getClientEntry(" 192.0.2.1 ", 2));
+  }
+
+  @Test
+  public void spoofedEntryTest() {
+    // Whatever the client sent is to the left of what the trusted proxy appended
+    assertEquals("192.0.2.1", AdmissionControl.getClientEntry("spoofed, 192.0.2.1", 1));
+    assertEquals("192.0.2.1", AdmissionControl.getClientEntry("a, b, 192.0.2.1", 1));
+  }
+
+  @Test
+  public void hopsTest() {
+    assertEquals("192.0.2.1", AdmissionControl.getClientEntry("spoofed, 192.0.2.1, 10.0.0.1", 2));
+    assertEquals("10.0.0.1", AdmissionControl.getClientEntry("spoofed, 192.0.2.1, 10.0.0.1", 0));
+  }
+
+  @Test
+  public void estimateEventsTest() {
+    Instant begin = Instant.parse("2019-08-12T00:00:00Z");
+
+    assertEquals(0, AdmissionControl.estimateEvents(begin, begin));
+    assertEquals(0, AdmissionControl.estimateEvents(begin, begin.minusSeconds(3600)));
+    assertEquals(
+        AdmissionControl.EVENTS_PER_HOUR * 24,
+        AdmissionControl.estimateEvents(begin, begin.plusSeconds(86400)));
+  }
+
+  @Test
+  public void concurrentRequestsTest() throws Exception {
+    String client = "192.0.2.99";
+    int threads = 16;
+    AtomicInteger inProgress = new AtomicInteger();
+    AtomicInteger maxInProgress = new AtomicInteger();
+    AtomicInteger rejected = new AtomicInteger();
+
+    Callable<Void> task =
+        () -> {
+          for (int i = 0; i < 2000; i++) {
+            try (AdmissionControl.Ticket ticket =
+                AdmissionControl.enter(newRequest(client), "docker")) {
+              maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+              Thread.yield();
+              inProgress.decrementAndGet();
+            } catch (AdmissionControl.RejectedException e) {
+              rejected.incrementAndGet();
+            }
+          }
+          return null;
+        };
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = executor.invokeAll(Collections.nCopies(threads, task));
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Every admitted request released its count, and no more were admitted than allowed
+    assertEquals(0, AdmissionControl.getRequestsInProgress(client));
+    if (AdmissionControl.CLIENT_CONCURRENCY > 0) {
+      assertTrue(maxInProgress.get() <= AdmissionControl.CLIENT_CONCURRENCY);
+      assertTrue(rejected.get() > 0);
+    }
+  }
+
+  /** A request from a remote address, which only keeps attributes. */
+  private static HttpServletRequest newRequest(String remoteAddr) {
+    Map<String, Object> attributes = new HashMap<>();
+
+    return (HttpServletRequest)
+        Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getRemoteAddr":
+                  return remoteAddr;
+                case "getAttribute":
+                  return attributes.get((String) args[0]);
+                case "setAttribute":
+                  attributes.put((String) args[0], args[1]);
+                  return null;
+                default:
+                  return null;
+              }
+            });
+  }
+}
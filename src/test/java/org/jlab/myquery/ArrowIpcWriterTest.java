@@ -0,0 +1,238 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.jlab.mya.TimeUtil;
+import org.jlab.mya.event.EventCode;
+import org.jlab.mya.event.FloatEvent;
+import org.jlab.mya.stream.EventStream;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Decodes the Arrow IPC stream of a few known events with a minimal FlatBuffers reader, checking
+ * the schema, the record batch and the layout of its buffers against the Arrow format.
+ */
+public class ArrowIpcWriterTest {
+
+  private static final Instant BEGIN = Instant.parse("2019-08-12T00:00:00Z");
+
+  private ByteBuffer stream;
+
+  @Before
+  public void writeStream() throws IOException {
+    List<FloatEvent> events =
+        List.of(
+            event(0, EventCode.UPDATE, 1.5f),
+            event(1, EventCode.NETWORK_DISCONNECTION, 0),
+            event(2, EventCode.UPDATE, -2.25f));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowIpcWriter writer =
+        new ArrowIpcWriter(out, FloatEvent.class, Map.of("datatype", "DBR_DOUBLE"));
+    assertEquals(3, writer.writeStream(new ListStream(events)));
+
+    stream = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Test
+  public void schemaTest() {
+    int message = readMessageRoot();
+    assertEquals(4, getShort(message, 0)); // V5
+    assertEquals(1, getByte(message, 1)); // Schema
+    assertEquals(0, getLong(message, 3)); // No body
+
+    int schema = getChild(message, 2);
+    int fields = getChild(schema, 1);
+    assertEquals(3, getInt(fields));
+
+    int timestamp = getTableElement(fields, 0);
+    assertEquals("timestamp", getString(getChild(timestamp, 0)));
+    assertEquals(0, getByte(timestamp, 1)); // Not nullable
+    assertEquals(10, getByte(timestamp, 2)); // Timestamp
+    assertEquals(3, getShort(getChild(timestamp, 3), 0)); // Nanosecond
+    assertEquals("UTC", getString(getChild(getChild(timestamp, 3), 1)));
+
+    int value = getTableElement(fields, 1);
+    assertEquals("value", getString(getChild(value, 0)));
+    assertEquals(1, getByte(value, 1));
+    assertEquals(3, getByte(value, 2)); // FloatingPoint
+    assertEquals(2, getShort(getChild(value, 3), 0)); // Double
+
+    int code = getTableElement(fields, 2);
+    assertEquals("code", getString(getChild(code, 0)));
+    assertEquals(1, getByte(code, 1));
+    assertEquals(5, getByte(code, 2)); // Utf8
+
+    int customMetadata = getChild(schema, 2);
+    assertEquals(1, getInt(customMetadata));
+    int keyValue = getTableElement(customMetadata, 0);
+    assertEquals("datatype", getString(getChild(keyValue, 0)));
+    assertEquals("DBR_DOUBLE", getString(getChild(keyValue, 1)));
+  }
+
+  @Test
+  public void recordBatchTest() {
+    skipMessage();
+
+    int message = readMessageRoot();
+    assertEquals(3, getByte(message, 1)); // RecordBatch
+    long bodyLength = getLong(message, 3);
+    int body = stream.position();
+    assertEquals(0, body % 8);
+    assertEquals(0, bodyLength % 8);
+
+    int recordBatch = getChild(message, 2);
+    assertEquals(3, getLong(recordBatch, 0));
+
+    // FieldNode structs: length, null count
+    int nodes = getChild(recordBatch, 1);
+    assertEquals(0, (nodes + 4) % 8);
+    long[][] expectedNodes = {{3, 0}, {3, 1}, {3, 2}};
+    assertEquals(expectedNodes.length, getInt(nodes));
+    for (int i = 0; i < expectedNodes.length; i++) {
+      assertEquals(expectedNodes[i][0], stream.getLong(nodes + 4 + 16 * i));
+      assertEquals(expectedNodes[i][1], stream.getLong(nodes + 12 + 16 * i));
+    }
+
+    // Buffer structs: offset, length.  A column without nulls omits its validity bitmap.
+    int buffers = getChild(recordBatch, 2);
+    assertEquals(0, (buffers + 4) % 8);
+    long[][] expectedBuffers = {
+      {0, 0}, {0, 24}, // timestamp validity, values
+      {24, 1}, {32, 24}, // value validity, values
+      {56, 1}, {64, 16}, {80, 21} // code validity, offsets, data
+    };
+    assertEquals(expectedBuffers.length, getInt(buffers));
+    for (int i = 0; i < expectedBuffers.length; i++) {
+      long offset = stream.getLong(buffers + 4 + 16 * i);
+      assertEquals(expectedBuffers[i][0], offset);
+      assertEquals(expectedBuffers[i][1], stream.getLong(buffers + 12 + 16 * i));
+      assertEquals(0, offset % 8);
+    }
+    assertEquals(104, bodyLength);
+
+    long seconds = BEGIN.getEpochSecond();
+    for (int i = 0; i < 3; i++) {
+      assertEquals((seconds + i) * 1_000_000_000L, stream.getLong(body + 8 * i));
+    }
+
+    assertEquals(0b101, stream.get(body + 24));
+    assertEquals(1.5, stream.getDouble(body + 32), 0);
+    assertEquals(-2.25, stream.getDouble(body + 48), 0);
+
+    assertEquals(0b010, stream.get(body + 56));
+    int[] expectedOffsets = {0, 0, 21, 21};
+    for (int i = 0; i < expectedOffsets.length; i++) {
+      assertEquals(expectedOffsets[i], stream.getInt(body + 64 + 4 * i));
+    }
+    byte[] data = new byte[21];
+    stream.get(body + 80, data);
+    assertEquals("NETWORK_DISCONNECTION", new String(data, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void endOfStreamTest() {
+    skipMessage();
+    skipMessage();
+
+    assertEquals(-1, stream.getInt());
+    assertEquals(0, stream.getInt());
+    assertEquals(0, stream.remaining());
+  }
+
+  private static FloatEvent event(int seconds, EventCode code, float value) {
+    return new FloatEvent(TimeUtil.toMyaTimestamp(BEGIN.plusSeconds(seconds)), code, value);
+  }
+
+  /** Reads a message prefix, leaving the stream at the body; returns the Message table. */
+  private int readMessageRoot() {
+    assertEquals(-1, stream.getInt()); // Continuation marker
+    int metadataLength = stream.getInt();
+    assertEquals(0, metadataLength % 8);
+
+    int metadata = stream.position();
+    stream.position(metadata + metadataLength);
+    return metadata + stream.getInt(metadata);
+  }
+
+  private void skipMessage() {
+    int message = readMessageRoot();
+    stream.position(stream.position() + (int) getLong(message, 3));
+  }
+
+  /** The position of a table field, or 0 if absent so the default applies. */
+  private int getFieldPos(int table, int id) {
+    int vtable = table - stream.getInt(table);
+    int vtableLength = stream.getShort(vtable);
+    int entry = 4 + 2 * id;
+    int offset = (entry < vtableLength) ? stream.getShort(vtable + entry) : 0;
+    return (offset == 0) ? 0 : table + offset;
+  }
+
+  /** The position of the table, vector or string a table field refers to. */
+  private int getChild(int table, int id) {
+    int pos = getFieldPos(table, id);
+    return pos + stream.getInt(pos);
+  }
+
+  private int getTableElement(int vector, int index) {
+    int pos = vector + 4 + 4 * index;
+    return pos + stream.getInt(pos);
+  }
+
+  private int getByte(int table, int id) {
+    int pos = getFieldPos(table, id);
+    return (pos == 0) ? 0 : stream.get(pos);
+  }
+
+  private int getShort(int table, int id) {
+    int pos = getFieldPos(table, id);
+    assertEquals(0, pos % 2);
+    return (pos == 0) ? 0 : stream.getShort(pos);
+  }
+
+  private long getLong(int table, int id) {
+    int pos = getFieldPos(table, id);
+    assertEquals(0, pos % 8);
+    return (pos == 0) ? 0 : stream.getLong(pos);
+  }
+
+  private int getInt(int pos) {
+    return stream.getInt(pos);
+  }
+
+  private String getString(int pos) {
+    byte[] bytes = new byte[stream.getInt(pos)];
+    stream.get(pos + 4, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static final class ListStream extends EventStream<FloatEvent> {
+    private final Iterator<FloatEvent> events;
+
+    private ListStream(List<FloatEvent> events) {
+      super(FloatEvent.class);
+      this.events = events.iterator();
+    }
+
+    @Override
+    public FloatEvent read() {
+      return events.hasNext() ? events.next() : null;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to release
+    }
+  }
+}
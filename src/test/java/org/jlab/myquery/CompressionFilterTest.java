@@ -0,0 +1,44 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks the Accept-Encoding negotiation of CompressionFilter. */
+public class CompressionFilterTest {
+
+  @Test
+  public void absentTest() {
+    assertFalse(CompressionFilter.acceptsGzip(null));
+    assertFalse(CompressionFilter.acceptsGzip(""));
+    assertFalse(CompressionFilter.acceptsGzip("identity"));
+    assertFalse(CompressionFilter.acceptsGzip("br, deflate"));
+  }
+
+  @Test
+  public void byNameTest() {
+    assertTrue(CompressionFilter.acceptsGzip("gzip"));
+    assertTrue(CompressionFilter.acceptsGzip("deflate, GZIP;q=0.5, br"));
+    assertTrue(CompressionFilter.acceptsGzip("x-gzip"));
+  }
+
+  @Test
+  public void zeroQualityTest() {
+    assertFalse(CompressionFilter.acceptsGzip("gzip;q=0"));
+    assertFalse(CompressionFilter.acceptsGzip("gzip; q=0.0, deflate"));
+    assertFalse(CompressionFilter.acceptsGzip("x-gzip;q=0"));
+    assertFalse(CompressionFilter.acceptsGzip("gzip;q=invalid"));
+  }
+
+  @Test
+  public void wildcardTest() {
+    assertTrue(CompressionFilter.acceptsGzip("*"));
+    assertTrue(CompressionFilter.acceptsGzip("br, *;q=0.1"));
+    assertFalse(CompressionFilter.acceptsGzip("*;q=0"));
+
+    // Naming gzip overrides the wildcard either way
+    assertFalse(CompressionFilter.acceptsGzip("*, gzip;q=0"));
+    assertTrue(CompressionFilter.acceptsGzip("gzip, *;q=0"));
+  }
+}
@@ -0,0 +1,38 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks that the response encoding is negotiated from the format parameter and Accept header. */
+public class ResponseEncodingTest {
+
+  @Test
+  public void formatTest() {
+    assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate("cbor", "application/json"));
+    assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("json", "application/cbor"));
+    assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("arrow", "application/cbor"));
+  }
+
+  @Test
+  public void acceptTest() {
+    assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate(null, null));
+    assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate(null, "*/*"));
+    assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate(null, "application/cbor"));
+    assertEquals(
+        ResponseEncoding.CBOR,
+        ResponseEncoding.negotiate(null, "application/json;q=0.5, Application/CBOR"));
+  }
+
+  @Test
+  public void qualityTest() {
+    assertFalse(ResponseEncoding.accepts("application/cbor;q=0", "application/cbor"));
+    assertFalse(ResponseEncoding.accepts("application/cbor; q=0.0", "application/cbor"));
+    assertFalse(ResponseEncoding.accepts("application/cbor;q=x", "application/cbor"));
+    assertTrue(ResponseEncoding.accepts("application/cbor;q=0.1", "application/cbor"));
+    assertFalse(ResponseEncoding.accepts("application/cbor-seq", "application/cbor"));
+    assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate(null, "application/cbor;q=0"));
+  }
+}
@@ -0,0 +1,120 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks that SignificantFigureFormatter produces the same characters as the BigDecimal rounding it
+ * replaced.
+ */
+public class SignificantFigureFormatterTest {
+
+  private static final double[] SPECIAL_VALUES = {
+    0.0,
+    -0.0,
+    1,
+    0.5,
+    0.1,
+    0.3,
+    1e-7,
+    1e-6,
+    9.9999995e-7,
+    95.371,
+    95.9059,
+    999999.5,
+    9999999,
+    123456789.5,
+    1e15,
+    1e18,
+    1e20,
+    9.223372036854776E18,
+    1e-20,
+    1e-300,
+    Double.MIN_VALUE,
+    Double.MAX_VALUE,
+    (double) 95.371f,
+    (double) 0.1f
+  };
+
+  private static String expected(double value, int sigFigs) {
+    return new BigDecimal(value).round(new MathContext(sigFigs)).toString();
+  }
+
+  private static void check(double value, int sigFigs) {
+    assertEquals(
+        "value: " + value + ", sigFigs: " + sigFigs,
+        expected(value, sigFigs),
+        SignificantFigureFormatter.toString(value, sigFigs));
+  }
+
+  @Test
+  public void specialValuesTest() {
+    for (double value : SPECIAL_VALUES) {
+      for (int sigFigs = 1; sigFigs <= 18; sigFigs++) {
+        check(value, sigFigs);
+        check(-value, sigFigs);
+      }
+    }
+  }
+
+  @Test
+  public void halfwayValuesTest() {
+    // Exact binary halves must round up (HALF_UP), not to even
+    for (long n = 1; n < 20000; n++) {
+      for (int sigFigs = 1; sigFigs <= 6; sigFigs++) {
+        check(n + 0.5, sigFigs);
+        check(n / 8.0, sigFigs);
+      }
+    }
+  }
+
+  @Test
+  public void randomValuesTest() {
+    Random random = new Random(42);
+
+    for (int i = 0; i < 200000; i++) {
+      double value;
+      switch (i % 4) {
+        case 0:
+          value = Double.longBitsToDouble(random.nextLong());
+          break;
+        case 1:
+          value = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+          break;
+        case 2:
+          // Archived floats widened to double
+          value = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(24) - 12));
+          break;
+        default:
+          value = Math.round(random.nextDouble() * 1e6) / Math.pow(10, random.nextInt(8));
+          break;
+      }
+
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        continue;
+      }
+
+      check(value, 1 + random.nextInt(18));
+      check(value, 6);
+    }
+  }
+
+  @Test
+  public void writesIntoBufferTest() {
+    byte[] buf = new byte[4 + SignificantFigureFormatter.MAX_LENGTH];
+    buf[0] = 'x';
+
+    int end = SignificantFigureFormatter.format(95.371, 6, buf, 1);
+
+    assertEquals("x95.3710", new String(buf, 0, end));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void notANumberTest() {
+    SignificantFigureFormatter.toString(Double.NaN, 6);
+  }
+}
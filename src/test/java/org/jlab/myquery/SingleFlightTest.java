@@ -0,0 +1,278 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/** Checks how SingleFlight shares a leader's outcome with its followers. */
+public class SingleFlightTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void leaderCompleteTest() throws InterruptedException {
+    SingleFlight<String> single = new SingleFlight<>(10);
+
+    SingleFlight<String>.Flight leader = single.join("a");
+    SingleFlight<String>.Flight follower = single.join("a");
+    assertTrue(leader.isLeader());
+    assertFalse(follower.isLeader());
+    assertEquals(1, single.getFlightCount());
+
+    leader.complete("result");
+    assertEquals("result", follower.await(1000));
+    assertEquals(0, single.getFlightCount());
+
+    // Not a cache: a caller arriving after the result leads a new flight
+    assertTrue(single.join("a").isLeader());
+    assertEquals(2, single.getLeaderCount());
+    assertEquals(1, single.getCoalescedCount());
+    assertEquals(0, single.getUnsharedCount());
+  }
+
+  @Test
+  public void leaderFailTest() throws InterruptedException {
+    SingleFlight<String> single = new SingleFlight<>(10);
+
+    SingleFlight<String>.Flight leader = single.join("a");
+    SingleFlight<String>.Flight follower = single.join("a");
+
+    leader.fail(new Exception("failed"));
+    leader.abandon(); // No effect once ended
+
+    // The follower does the work itself
+    assertNull(follower.await(1000));
+    assertEquals(1, single.getUnsharedCount());
+    assertEquals(0, single.getFlightCount());
+  }
+
+  @Test
+  public void leaderAbandonTest() throws InterruptedException {
+    SingleFlight<String> single = new SingleFlight<>(10);
+
+    SingleFlight<String>.Flight leader = single.join("a");
+    SingleFlight<String>.Flight follower = single.join("a");
+
+    leader.abandon();
+    leader.complete("too late");
+
+    assertNull(follower.await(1000));
+    assertEquals(1, single.getUnsharedCount());
+    assertEquals(0, single.getFlightCount());
+  }
+
+  @Test
+  public void followerTimeoutTest() throws InterruptedException {
+    SingleFlight<String> single = new SingleFlight<>(10);
+
+    SingleFlight<String>.Flight leader = single.join("a");
+    SingleFlight<String>.Flight follower = single.join("a");
+
+    long start = System.nanoTime();
+    assertNull(follower.await(50));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(1, single.getUnsharedCount());
+
+    // The flight continues for callers still waiting
+    assertEquals(1, single.getFlightCount());
+    SingleFlight<String>.Flight late = single.join("a");
+    leader.complete("result");
+    assertEquals("result", late.await(1000));
+  }
+
+  @Test
+  public void overflowTest() throws InterruptedException {
+    SingleFlight<String> single = new SingleFlight<>(1);
+
+    SingleFlight<String>.Flight a = single.join("a");
+    SingleFlight<String>.Flight b = single.join("b");
+    SingleFlight<String>.Flight anotherB = single.join("b");
+
+    // Too many keys in flight, so b runs without coalescing
+    assertTrue(b.isLeader());
+    assertTrue(anotherB.isLeader());
+    assertEquals(2, single.getOverflowCount());
+    assertEquals(1, single.getFlightCount());
+
+    b.complete("ignored");
+    b.abandon();
+    a.complete("result");
+    assertEquals(0, single.getFlightCount());
+  }
+
+  @Test
+  public void disabledTest() {
+    SingleFlight<String> single = new SingleFlight<>(0);
+
+    assertTrue(single.join("a").isLeader());
+    assertTrue(single.join("a").isLeader());
+    assertEquals(0, single.getLeaderCount());
+    assertEquals(2, single.getOverflowCount());
+  }
+
+  @Test
+  public void executeSharesResultTest() throws Exception {
+    SingleFlight<String> single = new SingleFlight<>(10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> leader =
+        executor.submit(
+            () ->
+                single.execute(
+                    "a",
+                    () -> {
+                      started.countDown();
+                      release.await();
+                      return "result";
+                    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    Future<String> follower = executor.submit(() -> single.execute("a", () -> "repeated"));
+    awaitCoalesced(single);
+    release.countDown();
+
+    assertEquals("result", leader.get(5, TimeUnit.SECONDS));
+    assertEquals("result", follower.get(5, TimeUnit.SECONDS));
+    assertEquals(0, single.getFlightCount());
+  }
+
+  @Test
+  public void executeSharesExceptionTest() throws Exception {
+    SingleFlight<String> single = new SingleFlight<>(10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Exception failure = new Exception("failed");
+
+    Future<String> leader =
+        executor.submit(
+            () ->
+                single.execute(
+                    "a",
+                    () -> {
+                      started.countDown();
+                      release.await();
+                      throw failure;
+                    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    Future<String> follower = executor.submit(() -> single.execute("a", () -> "repeated"));
+    awaitCoalesced(single);
+    release.countDown();
+
+    assertSame(failure, getFailure(leader));
+    assertSame(failure, getFailure(follower));
+    assertEquals(0, single.getFlightCount());
+  }
+
+  @Test
+  public void executeExpiredLeaderTest() throws Exception {
+    SingleFlight<String> single = new SingleFlight<>(10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> leader =
+        executor.submit(
+            withDeadline(
+                0,
+                () ->
+                    single.execute(
+                        "a",
+                        () -> {
+                          started.countDown();
+                          release.await();
+                          throw new SQLTimeoutException("Query deadline exceeded");
+                        })));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    Future<String> follower = executor.submit(() -> single.execute("a", () -> "own"));
+    awaitCoalesced(single);
+    release.countDown();
+
+    // The leader ran out of its own time, so the follower does the work instead of failing
+    assertTrue(getFailure(leader) instanceof SQLTimeoutException);
+    assertEquals("own", follower.get(5, TimeUnit.SECONDS));
+    assertEquals(1, single.getUnsharedCount());
+  }
+
+  @Test
+  public void executeFollowerDeadlineTest() throws Exception {
+    SingleFlight<String> single = new SingleFlight<>(10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> leader =
+        executor.submit(
+            () ->
+                single.execute(
+                    "a",
+                    () -> {
+                      started.countDown();
+                      release.await();
+                      return "result";
+                    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    // The follower stops waiting at its deadline, while the leader is still working
+    Future<String> follower =
+        executor.submit(withDeadline(50, () -> single.execute("a", () -> "own")));
+    assertEquals("own", follower.get(5, TimeUnit.SECONDS));
+    assertEquals(1, single.getUnsharedCount());
+
+    release.countDown();
+    assertEquals("result", leader.get(5, TimeUnit.SECONDS));
+  }
+
+  /** Runs a task for a request with a deadline the given milliseconds from when it starts. */
+  private static Callable<String> withDeadline(long timeoutMillis, Callable<String> task) {
+    return () -> {
+      QueryCanceller canceller = new QueryCanceller();
+      canceller.setDeadline(timeoutMillis);
+      QueryCanceller.bind(canceller);
+      try {
+        return task.call();
+      } finally {
+        QueryCanceller.bind(null);
+      }
+    };
+  }
+
+  private static void awaitCoalesced(SingleFlight<String> single) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (single.getCoalescedCount() == 0) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("Follower did not join the flight");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  private static Throwable getFailure(Future<String> future) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    fail("Expected an exception");
+    return null;
+  }
+}
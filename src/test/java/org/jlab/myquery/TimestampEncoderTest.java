@@ -0,0 +1,101 @@
+package org.jlab.myquery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+import org.junit.Test;
+
+/**
+ * Checks that TimestampEncoder produces the same characters as the DateTimeFormatter it replaced,
+ * including across daylight saving transitions where its cached offset and date must change.
+ */
+public class TimestampEncoderTest {
+
+  private static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+  private static final DateTimeFormatter[] FORMATTERS = {
+    FormatUtil.DATE_TIME_NO_FRACTIONAL,
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.S"),
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"),
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS"),
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSSSS"),
+    // Not recognized, so formatted by the formatter itself
+    DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss z")
+  };
+
+  /** Spring forward (01:59:59 EST to 03:00:00 EDT) and fall back (01:59:59 EDT to 01:00:00 EST) */
+  private static final Instant[] TRANSITIONS = {
+    Instant.parse("2019-03-10T07:00:00Z"), Instant.parse("2019-11-03T06:00:00Z")
+  };
+
+  @Test
+  public void acrossTransitionsTest() {
+    for (DateTimeFormatter formatter : FORMATTERS) {
+      TimestampEncoder encoder = new TimestampEncoder(formatter, ZONE);
+
+      for (Instant transition : TRANSITIONS) {
+        // Forwards then backwards, so the cached offset, date and second are each invalidated
+        for (long millis = -7_200_000; millis <= 7_200_000; millis += 1_234_567) {
+          assertFormat(formatter, encoder, transition.plusMillis(millis).plusNanos(123_456));
+        }
+        for (long millis = 7_200_000; millis >= -7_200_000; millis -= 1_234_567) {
+          assertFormat(formatter, encoder, transition.plusMillis(millis).plusNanos(987_654));
+        }
+
+        assertFormat(formatter, encoder, transition.minusNanos(1));
+        assertFormat(formatter, encoder, transition);
+      }
+    }
+  }
+
+  @Test
+  public void dayBoundaryTest() {
+    TimestampEncoder encoder = new TimestampEncoder(FORMATTERS[3], ZONE);
+
+    Instant midnight = Instant.parse("2019-12-31T05:00:00Z");
+    assertFormat(FORMATTERS[3], encoder, midnight.minusNanos(1000));
+    assertFormat(FORMATTERS[3], encoder, midnight);
+    assertFormat(FORMATTERS[3], encoder, midnight.plusSeconds(86400));
+  }
+
+  @Test
+  public void localMillisTest() {
+    TimestampEncoder encoder = new TimestampEncoder(FormatUtil.DATE_TIME_NO_FRACTIONAL, ZONE);
+    ZoneRules rules = ZONE.getRules();
+
+    for (Instant transition : TRANSITIONS) {
+      for (long millis = -3_600_000; millis <= 3_600_000; millis += 600_001) {
+        Instant instant = transition.plusMillis(millis);
+        long expected =
+            instant.toEpochMilli() + rules.getOffset(instant).getTotalSeconds() * 1000L;
+
+        assertEquals(expected, encoder.toLocalMillis(instant.toEpochMilli()));
+      }
+    }
+  }
+
+  @Test
+  public void writesIntoBufferTest() {
+    TimestampEncoder encoder = new TimestampEncoder(FORMATTERS[3], ZONE);
+    byte[] buf = new byte[4 + TimestampEncoder.MAX_LENGTH];
+    buf[0] = 'x';
+
+    int end = encoder.encode(TRANSITIONS[1], buf, 1);
+
+    assertEquals('x', buf[0]);
+    assertEquals("2019-11-03 01:00:00.000000", new String(buf, 1, end - 1));
+  }
+
+  private static void assertFormat(
+      DateTimeFormatter formatter, TimestampEncoder encoder, Instant instant) {
+    String expected = instant.atZone(ZONE).format(formatter);
+    assertEquals(instant.toString(), expected, encoder.format(instant));
+
+    byte[] buf = new byte[TimestampEncoder.MAX_LENGTH];
+    int length = encoder.encode(instant, buf, 0);
+    assertEquals(instant.toString(), expected, new String(buf, 0, length));
+  }
+}